@@ -1,17 +1,32 @@
 package snp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
 import javax.tools.ToolProvider;
@@ -26,14 +41,42 @@ import javax.tools.JavaCompiler.CompilationTask;
 public class CompileUtility {
 
     /**
-     * The regex pattern for the expected position for where to put licenses within source code.
+     * The algorithm a SWH seals licenses with, and the classes compiled by compileSharedSWHClasses
+     * check their seal with.
      */
-    private static final String LICENSE_PATTERN = "\\s*[/*].*LICENSE.*[*/]\\s*";
-    
+    public static final String LICENSE_SEAL_ALGO = "SHA256withRSA";
+
+    /**
+     * The options passed to the compiler for every compilation.
+     */
+    private static final List<String> COMPILE_OPTIONS = Collections.emptyList();
+
+    /**
+     * The character set sources are hashed in.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
-     * The regex pattern for the expected position for where to put passwords within source code.
+     * Shares softwareHouse compilations that are identical and happening at the same time, e.g.
+     * a Linker's VER arriving whilst the same license is being precompiled. Compilations run on
+     * threads of their own, so that each caller can stop waiting at its own deadline.
      */
-    private static final String PASSWORD_PATTERN = "\\s*[/*].*PASSWORD.*[*/]\\s*";
+    private static final SingleFlight<Map<String, byte[]>> SWH_COMPILES =
+            new SingleFlight<Map<String, byte[]>>(Executors.newCachedThreadPool(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "shared-compile");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }));
+
+    /**
+     * The compile worker processes softwareHouse compilations are sent to, or null to compile
+     * inside this JVM.
+     */
+    private static volatile CompileWorkerPool workerPool;
 
     /**
      * Compiling a softwareHouse file. The compilation will protect the resulting classfile
@@ -48,30 +91,301 @@ public class CompileUtility {
         if(license == null) {
             return false;
         }
-        Scanner sc = null;
-        try {
-            sc = new Scanner(file);
-        } catch (FileNotFoundException e) {
-            Log.error("Could not find file: %s", file.getAbsolutePath());
-            e.printStackTrace();
+        CharSequence source = injectSWHLicense(file,
+                "private static final String LICENSE_STRING = \"" + license + "\";\n");
+        if (source == null) {
             return false;
         }
-        
-        StringWriter writer = new StringWriter();
-        while (sc.hasNextLine()) {
-            String s = sc.nextLine();
-            writer.write(s+"\n");
-            s.trim();
-            //
-            if (s.matches(LICENSE_PATTERN)) {
-                writer.write("private static final String LICENSE_STRING = \"" + license + "\";\n");
-                sc.nextLine();
+        JavaFileObject srcFile = new JavaSourceFromFile(className, source);
+        return compileJavaFileObject(srcFile);
+    }
+
+    /**
+     * Compiling several softwareHouse files, each protected by its own license, in a single
+     * compiler invocation. Unlike compileSWHFile, nothing is written to disk: the resulting class
+     * files are returned in memory.
+     * @param files a map from fully qualified classname to the file to be compiled
+     * @param licenses a map from fully qualified classname to the license used to protect it
+     * @return a map from binary classname (e.g. fb.fizz.Fizz or fb.fizz.Fizz$1) to the bytes of
+     * the class file, or null if any of the files could not be read or compiled. Null is also
+     * returned if a file is not provided with a license.
+     */
+    public static Map<String, byte[]> compileSWHClasses(Map<String, File> files,
+            Map<String, String> licenses) {
+        return compileSWHClasses(files, licenses, null);
+    }
+
+    /**
+     * As compileSWHClasses(files, licenses), giving up once a deadline passes.
+     * @param files a map from fully qualified classname to the file to be compiled
+     * @param licenses a map from fully qualified classname to the license used to protect it
+     * @param deadline when to give up, or null to take as long as it takes
+     * @return a map from binary classname to the bytes of the class file, or null if any of the
+     * files could not be read or compiled in time
+     */
+    public static Map<String, byte[]> compileSWHClasses(Map<String, File> files,
+            Map<String, String> licenses, Deadline deadline) {
+        if (files == null || licenses == null) {
+            return null;
+        }
+        // sorted, so that identical work always produces an identical key
+        Map<String, CharSequence> sources = new TreeMap<String, CharSequence>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            String license = licenses.get(entry.getKey());
+            if (license == null) {
+                return null;
             }
+            CharSequence source = injectSWHLicense(entry.getValue(),
+                    "private static final String LICENSE_STRING = \"" + license + "\";\n");
+            if (source == null) {
+                return null;
+            }
+            sources.put(entry.getKey(), source);
         }
-        
-        JavaFileObject srcFile = new JavaSourceFromFile(className, writer.toString());
-        sc.close();
-        return compileJavaFileObject(srcFile);
+        return compileSWHSources(sources, deadline);
+    }
+
+    /**
+     * Compiling several softwareHouse files in a single compiler invocation, without protecting
+     * them with any particular license. Instead, each resulting class reads its license from the
+     * resource at licenseResourcePath(className) when it is first loaded, and refuses to load if
+     * that resource is missing, or its seal was not made by the private key matching sealKey for
+     * this class and license. This way every licensee can be served the same class files.
+     * Nothing is written to disk: the resulting class files are returned in memory.
+     * @param files a map from fully qualified classname to the file to be compiled
+     * @param sealKey the public key of the SWH sealing the licenses
+     * @return a map from binary classname to the bytes of the class file, or null if any of the
+     * files could not be read or compiled.
+     */
+    public static Map<String, byte[]> compileSharedSWHClasses(Map<String, File> files,
+            PublicKey sealKey) {
+        return compileSharedSWHClasses(files, sealKey, null);
+    }
+
+    /**
+     * As compileSharedSWHClasses(files, sealKey), giving up once a deadline passes.
+     * @param files a map from fully qualified classname to the file to be compiled
+     * @param sealKey the public key of the SWH sealing the licenses
+     * @param deadline when to give up, or null to take as long as it takes
+     * @return a map from binary classname to the bytes of the class file, or null if any of the
+     * files could not be read or compiled in time
+     */
+    public static Map<String, byte[]> compileSharedSWHClasses(Map<String, File> files,
+            PublicKey sealKey, Deadline deadline) {
+        if (files == null) {
+            return null;
+        }
+        Map<String, CharSequence> sources = new TreeMap<String, CharSequence>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            String className = entry.getKey();
+            String simpleName = className.substring(className.lastIndexOf('.') + 1);
+            CharSequence source = injectSWHLicense(entry.getValue(),
+                    "private static final String LICENSE_STRING = snpLoadLicense();\n"
+                    + "private static String snpLoadLicense() {\n"
+                    + "    java.io.InputStream in = " + simpleName + ".class.getResourceAsStream(\"/"
+                    + licenseResourcePath(className) + "\");\n"
+                    + "    if (in == null) {\n"
+                    + "        throw new IllegalStateException(\"No license for " + className
+                    + "\");\n"
+                    + "    }\n"
+                    + "    java.util.Scanner sc = new java.util.Scanner(in, \"UTF-8\");\n"
+                    + "    String license = sc.nextLine();\n"
+                    + "    String seal = sc.hasNextLine() ? sc.nextLine() : \"\";\n"
+                    + "    sc.close();\n"
+                    + "    try {\n"
+                    + "        java.security.Signature verifier =\n"
+                    + "                java.security.Signature.getInstance(\""
+                    + LICENSE_SEAL_ALGO + "\");\n"
+                    + "        verifier.initVerify(java.security.KeyFactory.getInstance(\""
+                    + sealKey.getAlgorithm() + "\").generatePublic(\n"
+                    + "                new java.security.spec.X509EncodedKeySpec(snpFromHex(\""
+                    + NetworkUtilities.bytesToHex(sealKey.getEncoded()) + "\"))));\n"
+                    + "        verifier.update((\"" + className
+                    + "\\n\" + license).getBytes(\"UTF-8\"));\n"
+                    + "        if (verifier.verify(snpFromHex(seal))) {\n"
+                    + "            return license;\n"
+                    + "        }\n"
+                    + "    } catch (java.security.GeneralSecurityException e) {\n"
+                    + "    } catch (java.io.UnsupportedEncodingException e) {\n"
+                    + "    } catch (NumberFormatException e) {\n"
+                    + "    }\n"
+                    + "    throw new IllegalStateException(\"License for " + className
+                    + " is not sealed by its software house\");\n"
+                    + "}\n"
+                    + "private static byte[] snpFromHex(String hex) {\n"
+                    + "    byte[] bytes = new byte[hex.length() / 2];\n"
+                    + "    for (int i = 0; i < bytes.length; i++) {\n"
+                    + "        bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2),"
+                    + " 16);\n"
+                    + "    }\n"
+                    + "    return bytes;\n"
+                    + "}\n");
+            if (source == null) {
+                return null;
+            }
+            sources.put(className, source);
+        }
+        return compileSWHSources(sources, deadline);
+    }
+
+    /**
+     * @param className the fully qualified classname of a library
+     * @return the path, within a JAR, of the resource holding the library's license when it was
+     * compiled by compileSharedSWHClasses
+     */
+    public static String licenseResourcePath(String className) {
+        return "META-INF/licenses/" + className;
+    }
+
+    /**
+     * @param className the fully qualified classname of a library
+     * @param license a license for the library
+     * @return what the SWH signs to seal the license to the library
+     */
+    public static byte[] licenseSealInput(String className, String license) {
+        return (className + "\n" + license).getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * @param license a license for a library compiled by compileSharedSWHClasses
+     * @param seal the SWH's signature over licenseSealInput, in hex
+     * @return the contents of the library's license resource: the license, which the library
+     * reads when it is loaded, followed by the seal
+     */
+    public static byte[] licenseResource(String license, String seal) {
+        return (license + "\n" + seal + "\n").getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Private method to compile softwareHouse sources in memory, sharing the work with any
+     * identical compilation that is already happening.
+     * The compilation is shared by callers with different deadlines, so it is not bound by any of
+     * them: each caller stops waiting at its own deadline, and once every caller has stopped
+     * waiting the compilation is cancelled if it is still waiting for a compile worker. A
+     * compilation already on a worker, or inside this JVM, runs to the end.
+     * @param sources a sorted map from fully qualified classname to source code
+     * @param deadline when to give up, or null to take as long as it takes
+     * @return a map from binary classname to the bytes of the class file, or null if compilation
+     * failed or did not finish in time
+     */
+    private static Map<String, byte[]> compileSWHSources(
+            final Map<String, CharSequence> sources, Deadline deadline) {
+        String key = compileKey(sources);
+        if (key == null) {
+            return null;
+        }
+        return SWH_COMPILES.run(key, new Callable<Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> call() {
+                CompileWorkerPool pool = workerPool;
+                Map<String, byte[]> classes = pool != null ? pool.compile(sources)
+                        : compileInMemory(sources);
+                if (classes == null) {
+                    return null;
+                }
+                // the same result may be handed to several callers, so nobody may change it
+                return Collections.unmodifiableMap(classes);
+            }
+        }, deadline);
+    }
+
+    /**
+     * Compiles sources in this JVM, keeping the resulting class files in memory.
+     * @param sources a map from fully qualified classname to source code
+     * @return a map from binary classname to the bytes of the class file, or null if compilation
+     * failed
+     */
+    static Map<String, byte[]> compileInMemory(Map<String, CharSequence> sources) {
+        List<JavaFileObject> srcFiles = new ArrayList<JavaFileObject>();
+        for (Map.Entry<String, CharSequence> entry : sources.entrySet()) {
+            srcFiles.add(new JavaSourceFromFile(entry.getKey(), entry.getValue()));
+        }
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        if (!compileJavaFileObjects(srcFiles, classes)) {
+            return null;
+        }
+        return classes;
+    }
+
+    /**
+     * Sends every softwareHouse compilation to a pool of compile worker processes, instead of
+     * running javac inside this JVM. Developer compilations are unaffected.
+     * @param pool the pool to use, or null to compile inside this JVM again
+     */
+    public static void setWorkerPool(CompileWorkerPool pool) {
+        workerPool = pool;
+    }
+
+    /**
+     * @return true if the calling thread's most recent softwareHouse compilation was done by that
+     * thread, false if it shared an identical compilation that was already in flight
+     */
+    public static boolean lastCompileWasOwn() {
+        return SWH_COMPILES.executedLast();
+    }
+
+    /**
+     * @return a human readable summary of how many softwareHouse compilations were shared, and how
+     * the compile worker pool (if any) is coping
+     */
+    public static String getStatistics() {
+        CompileWorkerPool pool = workerPool;
+        return "compile: " + SWH_COMPILES.getStatistics()
+                + (pool != null ? "\n" + pool.getStatistics() : "");
+    }
+
+    /**
+     * Private method to identify a compilation by a hash of its options and sources.
+     * @param sources a sorted map from fully qualified classname to source code
+     * @return the hex encoded SHA-256 hash identifying the compilation, or null if it could not be
+     * computed
+     */
+    private static String compileKey(Map<String, CharSequence> sources) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String option : COMPILE_OPTIONS) {
+                md.update(option.getBytes("UTF-8"));
+                md.update((byte) 0);
+            }
+            for (Map.Entry<String, CharSequence> entry : sources.entrySet()) {
+                md.update(entry.getKey().getBytes("UTF-8"));
+                md.update((byte) 0);
+                md.update(UTF8.encode(CharBuffer.wrap(entry.getValue())));
+                md.update((byte) 0);
+            }
+            return NetworkUtilities.bytesToHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            Log.error("Could not construct SHA-256 message digest");
+            e.printStackTrace();
+        } catch (UnsupportedEncodingException e) {
+            Log.error("UTF-8 is not supported");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Renders a softwareHouse file with the given code where the license is expected, in place of
+     * the line following the license marker.
+     * @param file the file to be rendered
+     * @param licenseCode the code declaring LICENSE_STRING
+     * @return the protected source code, or null if the file could not be read
+     */
+    private static CharSequence injectSWHLicense(File file, final String licenseCode) {
+        SourceTemplate template = SourceTemplate.forFile(file);
+        if (template == null) {
+            return null;
+        }
+        return template.render(new SourceTemplate.Filler() {
+            @Override
+            public boolean fill(SourceTemplate.Marker marker, StringBuilder out) {
+                if (marker == SourceTemplate.Marker.LICENSE) {
+                    out.append(licenseCode);
+                    return true;
+                }
+                return false;
+            }
+        });
     }
 
     /**
@@ -85,42 +399,37 @@ public class CompileUtility {
      * @param password the password used to protect program
      * @return true if compilation is successful, false otherwise. False will be returned if parameters provided are null.
      */
-    public static boolean compileDevFile(File file, String className, Map<String, String> licenses,
-            String password) {
+    public static boolean compileDevFile(File file, String className,
+            final Map<String, String> licenses, final String password) {
         if(password == null || licenses == null) {
             return false;
         }
-        Scanner sc = null;
         System.err.println(file.getAbsolutePath());
-        try {
-            sc = new Scanner(file);
-        } catch (FileNotFoundException e) {
-            Log.error("Could not find file: %s", file.getAbsolutePath());
-            e.printStackTrace();
+        SourceTemplate template = SourceTemplate.forFile(file);
+        if (template == null) {
             return false;
         }
         
-        StringWriter writer = new StringWriter();
-        while (sc.hasNextLine()) {
-            String s = sc.nextLine();
-            writer.write(s+"\n");
-            s.trim();
-            if (s.matches(LICENSE_PATTERN)) {
-                Set<String> libnames = licenses.keySet();
-                for(String name : libnames) {
-                    //if a developer is compiling code with null entries, that's their choice and we 
-                    //are not handling that
-                    writer.write("LICENSE_MAP.put(\"" + name + "\", \"" + licenses.get(name) +"\");\n");
+        CharSequence source = template.render(new SourceTemplate.Filler() {
+            @Override
+            public boolean fill(SourceTemplate.Marker marker, StringBuilder out) {
+                if (marker == SourceTemplate.Marker.LICENSE) {
+                    for (Map.Entry<String, String> entry : licenses.entrySet()) {
+                        //if a developer is compiling code with null entries, that's their choice
+                        //and we are not handling that
+                        out.append("LICENSE_MAP.put(\"").append(entry.getKey()).append("\", \"")
+                                .append(entry.getValue()).append("\");\n");
+                    }
+                    return false;
                 }
-            } else if (s.matches(PASSWORD_PATTERN)) {
-                writer.write("private static final String PASSWORD = \"" + password + "\";\n");
-                sc.nextLine();
                 // HACK: skip next line as it is: private static final String PASSWORD = "";
+                out.append("private static final String PASSWORD = \"").append(password)
+                        .append("\";\n");
+                return true;
             }
-        }
+        });
         
-        JavaFileObject srcFile = new JavaSourceFromFile(className, writer.toString());
-        sc.close();
+        JavaFileObject srcFile = new JavaSourceFromFile(className, source);
         return compileJavaFileObject(srcFile);
     }
 
@@ -130,14 +439,31 @@ public class CompileUtility {
      * @return true if compilation is successful. False otherwise.
      */
     private static boolean compileJavaFileObject(JavaFileObject file) {
+        return compileJavaFileObjects(Arrays.asList(file), null);
+    }
+
+    /**
+     * Private method to compile several pieces of java code on the fly in one compiler invocation.
+     * @param files files to be compiled
+     * @param classes if not null, the resulting class files are put in this map (from binary
+     * classname to class file bytes) instead of being written to disk
+     * @return true if compilation is successful. False otherwise.
+     */
+    private static boolean compileJavaFileObjects(List<JavaFileObject> files,
+            Map<String, byte[]> classes) {
         
         DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
         
-        Iterable<? extends JavaFileObject> compilationUnits = Arrays.asList(file);
-        // note: resulting class ends up inside the same directory as running Java program
-        CompilationTask task = compiler.getTask(null, null, diagnostics, null, null,
-                compilationUnits);
+        ClassFileManager fileManager = null;
+        if (classes != null) {
+            fileManager = new ClassFileManager(compiler.getStandardFileManager(diagnostics, null,
+                    null));
+        }
+        // note: unless an in-memory file manager is given, resulting class ends up inside the same
+        // directory as running Java program
+        CompilationTask task = compiler.getTask(null, fileManager, diagnostics, COMPILE_OPTIONS,
+                null, files);
 
         boolean success = task.call();
         for (Diagnostic<?> diagnostic : diagnostics.getDiagnostics()) {
@@ -153,6 +479,9 @@ public class CompileUtility {
 
         }
         
+        if (success && fileManager != null) {
+            classes.putAll(fileManager.getClassFiles());
+        }
         return success;
     }
 
@@ -160,9 +489,9 @@ public class CompileUtility {
      * A representation of a Java source file object.
      */
     private static class JavaSourceFromFile extends SimpleJavaFileObject {
-        private final String code;
+        private final CharSequence code;
     
-        JavaSourceFromFile(String name, String code) {
+        JavaSourceFromFile(String name, CharSequence code) {
             super(URI.create("string:///" + name.replace('.', '/') + Kind.SOURCE.extension),
                     Kind.SOURCE);
             this.code = code;
@@ -173,4 +502,59 @@ public class CompileUtility {
             return code;
         }
     }
+
+    /**
+     * A representation of a Java class file that is held in memory.
+     */
+    private static class JavaClassInMemory extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        JavaClassInMemory(String name) {
+            super(URI.create("bytes:///" + name.replace('.', '/') + Kind.CLASS.extension),
+                    Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+
+        /**
+         * @return the bytes the compiler has written to this class file
+         */
+        byte[] getBytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * A file manager which keeps every class file the compiler produces in memory.
+     */
+    private static class ClassFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        private final Map<String, JavaClassInMemory> classFiles =
+                new HashMap<String, JavaClassInMemory>();
+
+        ClassFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                JavaFileObject.Kind kind, FileObject sibling) {
+            JavaClassInMemory classFile = new JavaClassInMemory(className);
+            classFiles.put(className, classFile);
+            return classFile;
+        }
+
+        /**
+         * @return a map from binary classname to the bytes of the class file
+         */
+        Map<String, byte[]> getClassFiles() {
+            Map<String, byte[]> result = new HashMap<String, byte[]>();
+            for (Map.Entry<String, JavaClassInMemory> entry : classFiles.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().getBytes());
+            }
+            return result;
+        }
+    }
 }
@@ -0,0 +1,145 @@
+package snp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A long-lived compile worker process, started by a CompileWorkerPool.
+ * The worker reads compilations from its standard input and writes the resulting class files to
+ * its standard output, one compilation at a time, until its input is closed. Anything the worker
+ * (or javac) would normally print goes to standard error instead, so that it cannot corrupt the
+ * stream of results.
+ *
+ * A compilation is the number of sources followed by each (classname, source) pair; a result is
+ * the number of class files followed by each (binary classname, class file) pair, or -1 if the
+ * compilation failed.
+ * @author Edwin Tay(20529864) && Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class CompileWorker {
+
+    /**
+     * The character set sources are sent in.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes a compilation to a worker.
+     * @param out the stream to the worker
+     * @param sources a map from fully qualified classname to source code
+     * @throws IOException if the compilation could not be written
+     */
+    static void writeSources(DataOutputStream out, Map<String, CharSequence> sources)
+            throws IOException {
+        out.writeInt(sources.size());
+        for (Map.Entry<String, CharSequence> entry : sources.entrySet()) {
+            out.writeUTF(entry.getKey());
+            // sources may be longer than writeUTF allows
+            byte[] source = entry.getValue().toString().getBytes(UTF8);
+            out.writeInt(source.length);
+            out.write(source);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a compilation written by writeSources.
+     * @param in the stream from the pool
+     * @return a map from fully qualified classname to source code
+     * @throws IOException if the compilation could not be read
+     */
+    private static Map<String, CharSequence> readSources(DataInputStream in) throws IOException {
+        int nSources = in.readInt();
+        Map<String, CharSequence> sources = new TreeMap<String, CharSequence>();
+        for (int i = 0; i < nSources; i++) {
+            String className = in.readUTF();
+            byte[] source = new byte[in.readInt()];
+            in.readFully(source);
+            sources.put(className, new String(source, UTF8));
+        }
+        return sources;
+    }
+
+    /**
+     * Writes the result of a compilation back to the pool.
+     * @param out the stream to the pool
+     * @param classes a map from binary classname to class file bytes, or null if compilation failed
+     * @throws IOException if the result could not be written
+     */
+    private static void writeClasses(DataOutputStream out, Map<String, byte[]> classes)
+            throws IOException {
+        if (classes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the result of a compilation written by writeClasses.
+     * @param in the stream from the worker
+     * @return a map from binary classname to class file bytes, or null if compilation failed
+     * @throws IOException if the result could not be read
+     */
+    static Map<String, byte[]> readClasses(DataInputStream in) throws IOException {
+        int nClasses = in.readInt();
+        if (nClasses < 0) {
+            return null;
+        }
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        for (int i = 0; i < nClasses; i++) {
+            String className = in.readUTF();
+            byte[] classFile = new byte[in.readInt()];
+            in.readFully(classFile);
+            classes.put(className, classFile);
+        }
+        return classes;
+    }
+
+    /**
+     * The main program for a compile worker. No arguments are expected.
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+        // from here on, only results may be written to the real standard output
+        System.setOut(System.err);
+
+        while (true) {
+            Map<String, CharSequence> sources;
+            try {
+                sources = readSources(in);
+            } catch (EOFException e) {
+                // the pool has retired us
+                break;
+            } catch (IOException e) {
+                Log.error("Compile worker could not read compilation");
+                e.printStackTrace();
+                break;
+            }
+
+            try {
+                writeClasses(out, CompileUtility.compileInMemory(sources));
+            } catch (IOException e) {
+                Log.error("Compile worker could not write result");
+                e.printStackTrace();
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package snp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of long-lived compile worker JVMs (see CompileWorker), talked to over pipes.
+ * Running javac in separate processes keeps compile load (and the garbage it makes) out of the
+ * heap of the process that is issuing licenses. Each worker is started with a capped heap and is
+ * warmed up with a small compilation before it is used; it is replaced with a fresh worker after a
+ * set number of compilations, or as soon as it misbehaves. A worker that cannot be replaced
+ * straight away is started in the background, retrying until it starts, so the pool never shrinks
+ * for good.
+ * @author Edwin Tay(20529864) && Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class CompileWorkerPool {
+
+    /**
+     * A tiny compilation sent to each new worker, so that javac is loaded before real work arrives.
+     */
+    private static final Map<String, CharSequence> WARM_UP = Collections
+            .<String, CharSequence>singletonMap("snp.WarmUp", "package snp; class WarmUp { }");
+
+    /**
+     * Kills workers whose compilations run past their deadlines.
+     */
+    private static final ScheduledExecutorService WATCHDOG = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "compile-watchdog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Starts workers in place of ones that could not be replaced straight away.
+     */
+    private static final ScheduledExecutorService RESPAWNER = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "compile-respawn");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * How long a compilation without a deadline waits for a free worker before giving up, in
+     * milliseconds.
+     */
+    private static final long MAX_WAIT_MILLIS = 120000;
+
+    /**
+     * How long to wait before trying again to start a worker that could not be started, in
+     * milliseconds; the wait doubles with each failure, up to RESPAWN_MAX_MILLIS.
+     */
+    private static final long RESPAWN_MIN_MILLIS = 1000;
+
+    /**
+     * The longest wait between attempts to start a worker, in milliseconds.
+     */
+    private static final long RESPAWN_MAX_MILLIS = 30000;
+
+    /**
+     * Workers that are waiting for a compilation.
+     */
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+
+    /**
+     * The maximum heap size of each worker, in megabytes.
+     */
+    private final int heapMB;
+
+    /**
+     * The number of compilations after which a worker is replaced.
+     */
+    private final int recycleAfter;
+
+    /**
+     * Number of compilations waiting for a worker.
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * The largest number of compilations that have waited for a worker at once.
+     */
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * Total time compilations have spent waiting for a worker, in nanoseconds.
+     */
+    private final AtomicLong queueNanos = new AtomicLong();
+
+    /**
+     * Number of compilations done by workers.
+     */
+    private final AtomicLong compiles = new AtomicLong();
+
+    /**
+     * Number of workers replaced after reaching recycleAfter compilations.
+     */
+    private final AtomicLong recycled = new AtomicLong();
+
+    /**
+     * Number of workers replaced because they failed.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Number of compilations abandoned because their deadline passed, or no worker became free.
+     */
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * Number of workers that could not be replaced yet, and are being started in the background.
+     */
+    private final AtomicInteger missing = new AtomicInteger();
+
+    /**
+     * Starts and warms up the workers.
+     * @param size the number of workers
+     * @param heapMB the maximum heap size of each worker, in megabytes
+     * @param recycleAfter the number of compilations after which a worker is replaced
+     * @throws IOException if a worker could not be started
+     */
+    public CompileWorkerPool(int size, int heapMB, int recycleAfter) throws IOException {
+        this.heapMB = heapMB;
+        this.recycleAfter = recycleAfter;
+        List<Worker> started = new ArrayList<Worker>();
+        for (int i = 0; i < size; i++) {
+            started.add(startWorker());
+        }
+        idle.addAll(started);
+        Log.log("Started %d compile workers with %dMB heaps\n", size, heapMB);
+    }
+
+    /**
+     * Compiles sources on the next free worker, waiting up to MAX_WAIT_MILLIS for one if they are
+     * all busy.
+     * @param sources a map from fully qualified classname to source code
+     * @return a map from binary classname to class file bytes, or null if compilation failed or
+     * no worker became free
+     */
+    public Map<String, byte[]> compile(Map<String, CharSequence> sources) {
+        return compile(sources, null);
+    }
+
+    /**
+     * Compiles sources on the next free worker, waiting for one if they are all busy, but giving
+     * up at a deadline. A worker that is still compiling when the deadline passes is killed and
+     * replaced.
+     * @param sources a map from fully qualified classname to source code
+     * @param deadline when to give up, or null to take as long as the compilation takes once it
+     * has a worker, after waiting up to MAX_WAIT_MILLIS for one
+     * @return a map from binary classname to class file bytes, or null if compilation failed or
+     * did not finish in time
+     */
+    public Map<String, byte[]> compile(Map<String, CharSequence> sources, Deadline deadline) {
+        int depth = queueDepth.incrementAndGet();
+        int max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+
+        long start = System.nanoTime();
+        Worker worker;
+        try {
+            // even without a deadline the wait is bounded, since every worker may be missing
+            long waitMillis = deadline == null ? MAX_WAIT_MILLIS : deadline.remainingMillis();
+            worker = idle.poll(Math.max(0, waitMillis), TimeUnit.MILLISECONDS);
+            if (worker == null) {
+                if (deadline == null) {
+                    Log.log("No compile worker became free within %d ms\n", MAX_WAIT_MILLIS);
+                }
+                cancelled.incrementAndGet();
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            queueDepth.decrementAndGet();
+            queueNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        Map<String, byte[]> classes = null;
+        ScheduledFuture<?> kill = null;
+        try {
+            if (deadline != null) {
+                final Worker doomed = worker;
+                kill = WATCHDOG.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        doomed.process.destroy();
+                    }
+                }, Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+            }
+            classes = worker.compile(sources);
+            compiles.incrementAndGet();
+            if (kill != null && !kill.cancel(false)) {
+                // the watchdog fired just as the worker finished, so it cannot be used again
+                worker = replace(worker);
+            } else if (worker.compiles >= recycleAfter) {
+                recycled.incrementAndGet();
+                worker = replace(worker);
+            }
+        } catch (IOException e) {
+            if (kill != null && kill.isDone()) {
+                Log.log("Compilation ran past its deadline; replacing its worker");
+                cancelled.incrementAndGet();
+            } else {
+                Log.error("Compile worker failed; replacing it");
+                e.printStackTrace();
+                failed.incrementAndGet();
+            }
+            worker = replace(worker);
+        }
+        if (worker != null) {
+            idle.add(worker);
+        }
+        return classes;
+    }
+
+    /**
+     * @return a human readable summary of how the pool is coping
+     */
+    public String getStatistics() {
+        long n = compiles.get();
+        return String.format("compile workers: idle=%d queued=%d max-queued=%d compiles=%d "
+                + "avg-wait-ms=%.2f recycled=%d failed=%d cancelled=%d missing=%d", idle.size(),
+                queueDepth.get(), maxQueueDepth.get(), n,
+                n == 0 ? 0.0 : queueNanos.get() / 1e6 / n, recycled.get(), failed.get(),
+                cancelled.get(), missing.get());
+    }
+
+    /**
+     * Retires a worker and starts a new one in its place.
+     * @param worker the worker to retire
+     * @return the new worker, or null if it could not be started, in which case it is started in
+     * the background and added to the pool once it is running
+     */
+    private Worker replace(Worker worker) {
+        worker.retire();
+        try {
+            return startWorker();
+        } catch (IOException e) {
+            Log.error("Could not start a replacement compile worker; retrying in the background");
+            e.printStackTrace();
+            missing.incrementAndGet();
+            respawn(RESPAWN_MIN_MILLIS);
+            return null;
+        }
+    }
+
+    /**
+     * Tries to start a missing worker after a delay, and keeps trying, backing off, until it
+     * starts.
+     * @param delayMillis how long to wait before trying, in milliseconds
+     */
+    private void respawn(final long delayMillis) {
+        RESPAWNER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    idle.add(startWorker());
+                    missing.decrementAndGet();
+                    Log.log("Started a compile worker in place of a missing one\n");
+                } catch (IOException e) {
+                    Log.error("Could not start a missing compile worker: %s\n", e.getMessage());
+                    respawn(Math.min(2 * delayMillis, RESPAWN_MAX_MILLIS));
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a worker running this JVM's classpath, and warms it up.
+     * @return the new worker
+     * @throws IOException if the worker could not be started
+     */
+    private Worker startWorker() throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-Xmx" + heapMB + "m", "-cp",
+                System.getProperty("java.class.path"), CompileWorker.class.getName());
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Worker worker = new Worker(builder.start());
+        worker.compile(WARM_UP);
+        return worker;
+    }
+
+    /**
+     * A running compile worker process.
+     */
+    private static class Worker {
+        private final Process process;
+        private final DataOutputStream toWorker;
+        private final DataInputStream fromWorker;
+        /** Number of compilations this worker has done, not counting its warm up. */
+        private int compiles = -1;
+
+        Worker(Process process) {
+            this.process = process;
+            toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        /**
+         * @param sources a map from fully qualified classname to source code
+         * @return a map from binary classname to class file bytes, or null if compilation failed
+         * @throws IOException if the worker could not be talked to
+         */
+        Map<String, byte[]> compile(Map<String, CharSequence> sources) throws IOException {
+            CompileWorker.writeSources(toWorker, sources);
+            Map<String, byte[]> classes = CompileWorker.readClasses(fromWorker);
+            compiles++;
+            return classes;
+        }
+
+        /**
+         * Asks the worker to exit by closing its input, and makes sure that it does.
+         */
+        void retire() {
+            try {
+                toWorker.close();
+            } catch (IOException e) {
+                Log.error("Could not close compile worker input");
+            }
+            process.destroy();
+        }
+    }
+}
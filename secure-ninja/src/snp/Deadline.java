@@ -0,0 +1,128 @@
+package snp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The time by which a request must be answered.
+ * A deadline travels with each request, from the Developer to the Linker and on to the SWHs, as the
+ * number of milliseconds left; every agent turns that back into a deadline on its own clock as soon
+ * as it reads it, so the agents' clocks never need to agree. Sockets are given read timeouts that
+ * expire with the deadline, so that no agent waits on a hung peer for longer than the requester is
+ * willing to.
+ * @author Edwin Tay(20529864) && Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class Deadline {
+
+    /**
+     * The deadline, on the System.nanoTime clock.
+     */
+    private final long expiresAt;
+
+    /**
+     * @param expiresAt the deadline, on the System.nanoTime clock
+     */
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param millis the time allowed, in milliseconds
+     * @return a deadline that far from now
+     */
+    public static Deadline in(long millis) {
+        return new Deadline(System.nanoTime() + millis * 1000000L);
+    }
+
+    /**
+     * Reads a deadline written by write.
+     * @param in the stream to read from
+     * @param maxMillis the most time we are willing to allow, however much the requester offers
+     * @return the deadline
+     * @throws IOException if the deadline could not be read
+     */
+    public static Deadline read(DataInputStream in, long maxMillis) throws IOException {
+        return in(Math.min(in.readLong(), maxMillis));
+    }
+
+    /**
+     * Writes the time left before this deadline, for the agent handling the request.
+     * @param out the stream to write to
+     * @throws IOException if the deadline could not be written
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(remainingMillis());
+    }
+
+    /**
+     * @return the number of milliseconds left, or a non-positive number if the deadline has passed
+     */
+    public long remainingMillis() {
+        return (expiresAt - System.nanoTime()) / 1000000L;
+    }
+
+    /**
+     * @return true if the deadline has passed
+     */
+    public boolean isExpired() {
+        return remainingMillis() <= 0;
+    }
+
+    /**
+     * @param millis the time to set aside, in milliseconds
+     * @return a deadline millis earlier than this one, leaving time to pass an answer back once a
+     * request we make on someone else's behalf returns
+     */
+    public Deadline earlierBy(long millis) {
+        return new Deadline(expiresAt - millis * 1000000L);
+    }
+
+    /**
+     * Makes reads on a socket time out when this deadline passes. Since a read timeout applies to
+     * each read separately, this should be called again before each stage of a conversation.
+     * @param socket the socket to apply the deadline to
+     * @throws SocketTimeoutException if the deadline has already passed
+     * @throws IOException if the timeout could not be set
+     */
+    public void applyTo(Socket socket) throws IOException {
+        long remaining = remainingMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Deadline has passed");
+        }
+        socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Connects to a host, giving up if the connection is not made before this deadline, and
+     * applies the deadline to the new socket.
+     * @param factory the factory to make the socket with
+     * @param host the host to connect to
+     * @param port the port to connect to
+     * @return the connected socket
+     * @throws IOException if the connection could not be made in time
+     */
+    public SSLSocket connect(SSLSocketFactory factory, String host, int port) throws IOException {
+        long remaining = remainingMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Deadline has passed");
+        }
+        SSLSocket socket = (SSLSocket) factory.createSocket();
+        try {
+            socket.connect(new InetSocketAddress(host, port),
+                    (int) Math.min(remaining, Integer.MAX_VALUE));
+            applyTo(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+}
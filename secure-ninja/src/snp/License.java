@@ -1,6 +1,9 @@
 package snp;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Our implementation of license.
@@ -11,7 +14,7 @@ public class License {
     /**
      * Storing the licenseKey in unencrypted form.
      */
-    private String unencryptedLicense;
+    private LicenseToken unencryptedLicense;
     /**
      * Storing the licenseKey in encrypted form.
      */
@@ -28,6 +31,15 @@ public class License {
      * The port we contacted the softwareHouse on.
      */
     private int port;
+    /**
+     * Other SWHs, as host:port, that the issuing SWH says can verify this license too.
+     */
+    private List<String> replicas;
+    /**
+     * The issuing SWH's signature over the library name and license, in hex; empty if the SWH
+     * did not sign it.
+     */
+    private String seal;
 
     /**
      * License's constructor.
@@ -37,12 +49,31 @@ public class License {
      * @param port the port number used SWH's server
      * @param enrypted the encrypted license key
      */
-    public License(String license, InetAddress swhIP, String name, int port, String enrypted) {
+    public License(LicenseToken license, InetAddress swhIP, String name, int port,
+            String enrypted) {
+        this(license, swhIP, name, port, enrypted, Collections.<String>emptyList(), "");
+    }
+
+    /**
+     * License's constructor, for a license that replicas of the issuing SWH can verify too.
+     * @param license the licenseKey
+     * @param swhIP the IP of the issuing SWH
+     * @param name libraryName associated with the license
+     * @param port the port number used SWH's server
+     * @param enrypted the encrypted license key
+     * @param replicas the replicas of the issuing SWH, each as host:port
+     * @param seal the issuing SWH's signature over the library name and license, in hex; empty
+     * if the SWH did not sign it
+     */
+    public License(LicenseToken license, InetAddress swhIP, String name, int port,
+            String enrypted, List<String> replicas, String seal) {
         this.unencryptedLicense = license;
         this.softwareHouseIP = swhIP;
         this.libraryName = name;
         this.port = port;
         this.encryptedLicense = enrypted;
+        this.replicas = Collections.unmodifiableList(new ArrayList<String>(replicas));
+        this.seal = seal;
     }
 
     /**
@@ -53,9 +84,16 @@ public class License {
     }
 
     /**
-     * @return the license key
+     * @return the license key, in hex
      */
     public String getLicenseString() {
+        return unencryptedLicense.toString();
+    }
+
+    /**
+     * @return the license key
+     */
+    public LicenseToken getToken() {
         return unencryptedLicense;
     }
 
@@ -73,10 +111,25 @@ public class License {
         return libraryName;
     }
 
+    /**
+     * @return the replicas of the issuing SWH, each as host:port; empty if it has none
+     */
+    public List<String> getReplicas() {
+        return replicas;
+    }
+
     /**
      * @return the encrypted license key
      */
     public String getEncryptedLicenseString() {
         return encryptedLicense;
     }
+
+    /**
+     * @return the issuing SWH's signature over the library name and license, in hex, with which
+     * a Linker can verify the license without asking the SWH; empty if the SWH did not sign it
+     */
+    public String getSeal() {
+        return seal;
+    }
 }
@@ -0,0 +1,236 @@
+package snp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An unencrypted license: the 128 bits of the digest a SWH issued it as, held as two longs.
+ * Licenses travel between agents and are baked into libraries as 32 hex digits, but are kept,
+ * hashed and compared as tokens, which take a fraction of the memory of the hex string and are
+ * compared in two instructions rather than 32 characters.
+ * Tokens are immutable, so they can be used as map keys and shared between threads.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public final class LicenseToken implements Comparable<LicenseToken> {
+
+    /**
+     * The number of bytes in a token.
+     */
+    public static final int BYTES = 16;
+
+    /**
+     * The number of hex digits in a token.
+     */
+    public static final int HEX_DIGITS = 2 * BYTES;
+
+    /**
+     * The hex digits, in the (upper) case NetworkUtilities.bytesToHex writes them in.
+     */
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The first and last 64 bits of the token, most significant first.
+     */
+    private final long high, low;
+
+    /**
+     * @param high the first 64 bits of the token
+     * @param low the last 64 bits of the token
+     */
+    public LicenseToken(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @param bytes the 16 bytes of a token, most significant first, e.g. an MD5 digest
+     * @return the token
+     * @throws IllegalArgumentException if bytes is not 16 bytes long
+     */
+    public static LicenseToken fromBytes(byte[] bytes) {
+        if (bytes.length != BYTES) {
+            throw new IllegalArgumentException("A license is " + BYTES + " bytes, not "
+                    + bytes.length);
+        }
+        long high = 0, low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = high << 8 | (bytes[i] & 0xFF);
+            low = low << 8 | (bytes[i + 8] & 0xFF);
+        }
+        return new LicenseToken(high, low);
+    }
+
+    /**
+     * Parses a token from its hex digits, in either case, without copying them.
+     * @param hex the 32 hex digits of a token
+     * @return the token
+     * @throws IllegalArgumentException if hex is not 32 hex digits
+     */
+    public static LicenseToken fromHex(CharSequence hex) {
+        if (hex.length() != HEX_DIGITS) {
+            throw new IllegalArgumentException("A license is " + HEX_DIGITS + " hex digits: "
+                    + hex);
+        }
+        return new LicenseToken(parseHex(hex, 0), parseHex(hex, HEX_DIGITS / 2));
+    }
+
+    /**
+     * Reads a token written by writeUTF.
+     * @param in the stream to read from
+     * @return the token
+     * @throws IOException if the token could not be read, or is not a license
+     */
+    public static LicenseToken readUTF(DataInput in) throws IOException {
+        String hex = in.readUTF();
+        try {
+            return fromHex(hex);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a token written by write.
+     * @param in the stream to read from
+     * @return the token
+     * @throws IOException if the token could not be read
+     */
+    public static LicenseToken read(DataInput in) throws IOException {
+        long high = in.readLong();
+        return new LicenseToken(high, in.readLong());
+    }
+
+    /**
+     * Writes the token as its 16 bytes.
+     * @param out the stream to write to
+     * @throws IOException if the token could not be written
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(high);
+        out.writeLong(low);
+    }
+
+    /**
+     * Writes the token as its hex digits, as every agent has always exchanged licenses.
+     * @param out the stream to write to
+     * @throws IOException if the token could not be written
+     */
+    public void writeUTF(DataOutput out) throws IOException {
+        out.writeUTF(toString());
+    }
+
+    /**
+     * @return the first 64 bits of the token
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * @return the last 64 bits of the token
+     */
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * @return the 16 bytes of the token, most significant first
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BYTES];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (high >>> (56 - 8 * i));
+            bytes[i + 8] = (byte) (low >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the token's 32 hex digits into a buffer.
+     * @param dst the buffer
+     * @param offset where in dst to write the first digit
+     */
+    public void toHex(char[] dst, int offset) {
+        for (int i = 0; i < HEX_DIGITS / 2; i++) {
+            int shift = 60 - 4 * i;
+            dst[offset + i] = DIGITS[(int) (high >>> shift) & 0xF];
+            dst[offset + HEX_DIGITS / 2 + i] = DIGITS[(int) (low >>> shift) & 0xF];
+        }
+    }
+
+    /**
+     * @return the token's 32 hex digits, as NetworkUtilities.bytesToHex would write its bytes
+     */
+    @Override
+    public String toString() {
+        char[] hex = new char[HEX_DIGITS];
+        toHex(hex, 0);
+        return new String(hex);
+    }
+
+    /**
+     * @param o an object
+     * @return true if o is a token with the same bits
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LicenseToken)) {
+            return false;
+        }
+        LicenseToken other = (LicenseToken) o;
+        return high == other.high && low == other.low;
+    }
+
+    /**
+     * @return a hash of the token's bits
+     */
+    @Override
+    public int hashCode() {
+        // the bits of a digest are already evenly spread, so folding them together will do
+        long folded = high ^ low;
+        return (int) (folded ^ (folded >>> 32));
+    }
+
+    /**
+     * Orders tokens as their hex digits would be ordered.
+     * @param other another token
+     * @return negative, zero or positive as this token is less than, equal to or greater than
+     * other
+     */
+    @Override
+    public int compareTo(LicenseToken other) {
+        int cmp = compareUnsigned(high, other.high);
+        return cmp != 0 ? cmp : compareUnsigned(low, other.low);
+    }
+
+    /**
+     * @param a a long, taken as unsigned
+     * @param b a long, taken as unsigned
+     * @return negative, zero or positive as a is less than, equal to or greater than b
+     */
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /**
+     * @param hex hex digits
+     * @param start where in hex the 16 digits to parse start
+     * @return the 64 bits the digits stand for
+     * @throws IllegalArgumentException if one of the digits is not a hex digit
+     */
+    private static long parseHex(CharSequence hex, int start) {
+        long value = 0;
+        for (int i = start; i < start + HEX_DIGITS / 2; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Not a hex digit in license: " + hex);
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+}
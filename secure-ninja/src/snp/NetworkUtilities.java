@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.OutputStream;
+import java.util.Map;
 import javax.net.ssl.SSLSocket;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
@@ -173,6 +174,143 @@ public class NetworkUtilities {
         return false;
     }
 
+    /**
+     * Writing an in-memory class file to the connection's outputStream, in the same format as
+     * writeFile.
+     * @param connection the connected socket
+     * @param bytes the contents of the class file
+     * @param name the binary classname of the class file (e.g. fb.fizz.Fizz or fb.fizz.Fizz$1)
+     * @return true if writing is successful. False otherwise.
+     */
+    public static boolean writeClass(SSLSocket connection, byte[] bytes, String name) {
+        return writeEntry(connection, bytes, classPath(name));
+    }
+
+    /**
+     * Writing in-memory file contents to the connection's outputStream, in the same format as
+     * writeFile.
+     * @param connection the connected socket
+     * @param bytes the contents of the file
+     * @param path the path of the file within a JAR
+     * @return true if writing is successful. False otherwise.
+     */
+    public static boolean writeEntry(SSLSocket connection, byte[] bytes, String path) {
+        DataOutputStream outStream = getDataOutputStream(connection);
+
+        if (outStream != null) {
+            try {
+                Log.log("Writing entry to network");
+                outStream.writeLong(bytes.length);
+                Log.log("Length: " + bytes.length);
+                outStream.writeUTF(path);
+                Log.log("File path: " + path);
+                outStream.write(bytes);
+            } catch (IOException e) {
+                Log.error("Could not write entry to network");
+                e.printStackTrace();
+                return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param name a binary classname (e.g. fb.fizz.Fizz or fb.fizz.Fizz$1)
+     * @return the path of the class file within a JAR (e.g. fb/fizz/Fizz.class)
+     */
+    public static String classPath(String name) {
+        return name.replace('.', '/') + ".class";
+    }
+
+    /**
+     * Writing a bundle of files to the connection: the number of files, followed by each file in
+     * the format of writeEntry.
+     * @param connection the connected socket
+     * @param entries a map from path within a JAR to the contents of the file
+     * @return true if writing is successful. False otherwise.
+     */
+    public static boolean writeBundle(SSLSocket connection, Map<String, byte[]> entries) {
+        DataOutputStream outStream = getDataOutputStream(connection);
+
+        if (outStream != null) {
+            try {
+                outStream.writeInt(entries.size());
+            } catch (IOException e) {
+                Log.error("Could not write bundle size to network");
+                e.printStackTrace();
+                return false;
+            }
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                if (!writeEntry(connection, entry.getValue(), entry.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reading a bundle written by writeBundle from the connection into a JAR.
+     * @param connection the connected socket
+     * @param target the JAR to add each file of the bundle to
+     * @return true if reading is successful. False otherwise.
+     */
+    public static boolean readBundle(SSLSocket connection, JarOutputStream target) {
+        DataInputStream inStream = getDataInputStream(connection);
+
+        if (inStream != null) {
+            int nFiles = -1;
+            try {
+                nFiles = inStream.readInt();
+                Log.log("Reading bundle of %d files\n", nFiles);
+            } catch (IOException e) {
+                Log.error("Could not read bundle size from network");
+                e.printStackTrace();
+                return false;
+            }
+            for (int i = 0; i < nFiles; i++) {
+                if (!readFile(connection, target, true)) {
+                    return false;
+                }
+            }
+            return nFiles >= 0;
+        }
+        return false;
+    }
+
+    /**
+     * Reading a bundle written by writeBundle from the connection into memory, so that it can be
+     * looked at before deciding whether to use it.
+     * @param connection the connected socket
+     * @param target the map to put each file of the bundle in, by its path within a JAR
+     * @return true if reading is successful. False otherwise.
+     */
+    public static boolean readBundle(SSLSocket connection, Map<String, byte[]> target) {
+        DataInputStream inStream = getDataInputStream(connection);
+
+        if (inStream != null) {
+            try {
+                int nFiles = inStream.readInt();
+                Log.log("Reading bundle of %d files\n", nFiles);
+                for (int i = 0; i < nFiles; i++) {
+                    long fileLength = inStream.readLong();
+                    String filePath = inStream.readUTF();
+                    Log.log("File path: " + filePath);
+                    byte[] bytes = new byte[(int) fileLength];
+                    inStream.readFully(bytes);
+                    target.put(filePath, bytes);
+                }
+                return nFiles >= 0;
+            } catch (IOException e) {
+                Log.error("Could not read bundle from network");
+                e.printStackTrace();
+            }
+        }
+        return false;
+    }
+
     /**
      * Converts bytes to hexString.
      * This code is copied from StackOverflow.
@@ -6,10 +6,17 @@ import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.UnrecoverableEntryException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Enumeration;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -28,6 +35,11 @@ public class SecurityUtilities {
      */
     private static final String numberAlgo = "SHA1PRNG";
 
+    /**
+     * The algorithm agents sign challenges with, to prove they hold a key store's private key.
+     */
+    private static final String signatureAlgo = "SHA256withRSA";
+
     /**
      * Private method to generate KeyStore.
      * @param fis the file input stream
@@ -215,4 +227,107 @@ public class SecurityUtilities {
             return null;
         }
     }
+
+    /**
+     * Method to load the private key, and its certificate, from a key store, so that an agent can
+     * sign with the same identity it presents over SSL.
+     * @param keyFile the filePath of the keyFile
+     * @param password the password for the keyStore and its key
+     * @return the first private key entry of the keyStore if successful. Otherwise, null is
+     * returned.
+     */
+    public static KeyStore.PrivateKeyEntry getPrivateKeyEntry(String keyFile, String password) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(keyFile);
+        } catch (FileNotFoundException e) {
+            Log.error("could not find keystore file");
+            e.printStackTrace();
+            return null;
+        }
+
+        KeyStore keyStore = genKeyStore(fis, password);
+        if (keyStore == null) {
+            return null;
+        }
+
+        try {
+            Enumeration<String> aliases = keyStore.aliases();
+            while (aliases.hasMoreElements()) {
+                String alias = aliases.nextElement();
+                if (keyStore.isKeyEntry(alias)) {
+                    KeyStore.Entry entry = keyStore.getEntry(alias,
+                            new KeyStore.PasswordProtection(password.toCharArray()));
+                    if (entry instanceof KeyStore.PrivateKeyEntry) {
+                        return (KeyStore.PrivateKeyEntry) entry;
+                    }
+                }
+            }
+            Log.error("The keystore holds no private key");
+            return null;
+        } catch (KeyStoreException e) {
+            Log.error("KeyStore encountered a problem");
+            e.printStackTrace();
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            Log.error("The algorithm for the private key could not be loaded");
+            e.printStackTrace();
+            return null;
+        } catch (UnrecoverableEntryException e) {
+            Log.error("The password could not be used to recover the private key");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Method to sign data, e.g. a challenge, with a private key.
+     * @param key the private key, e.g. from getPrivateKeyEntry
+     * @param data the data to sign
+     * @return the signature if successful. Otherwise, null is returned.
+     */
+    public static byte[] sign(PrivateKey key, byte[] data) {
+        try {
+            Signature signer = Signature.getInstance(signatureAlgo);
+            signer.initSign(key);
+            signer.update(data);
+            return signer.sign();
+        } catch (NoSuchAlgorithmException e) {
+            Log.error("Could not find Signature instance for " + signatureAlgo);
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            Log.error("Provided private key was invalid");
+            e.printStackTrace();
+        } catch (SignatureException e) {
+            Log.error("Could not sign data");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Method to check a signature made by sign.
+     * @param key the public key of the private key the data should have been signed with
+     * @param data the data
+     * @param signature the signature
+     * @return true if the signature is valid. Otherwise (including if it is malformed), false is
+     * returned.
+     */
+    public static boolean verify(PublicKey key, byte[] data, byte[] signature) {
+        try {
+            Signature verifier = Signature.getInstance(signatureAlgo);
+            verifier.initVerify(key);
+            verifier.update(data);
+            return verifier.verify(signature);
+        } catch (NoSuchAlgorithmException e) {
+            Log.error("Could not find Signature instance for " + signatureAlgo);
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            Log.error("Provided public key was invalid");
+            e.printStackTrace();
+        } catch (SignatureException e) {
+            Log.log("Signature was malformed");
+        }
+        return false;
+    }
 }
@@ -0,0 +1,121 @@
+package snp;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Splits the space of licenses between the SWHs of a cluster by consistent hashing.
+ * Each SWH is placed at several points on a ring of 64-bit positions, and a license belongs to
+ * the SWH at the first point at or after the license's own position, which is the first 64 bits
+ * of its token (tokens are digests, so their positions are spread evenly round the ring).
+ * Every agent given the same SWHs builds the same ring, so anyone holding a license can tell
+ * which SWH it belongs to without asking. Adding or removing a SWH only moves the licenses next
+ * to its points.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class ShardRing {
+
+    /**
+     * How many points each SWH has on the ring; more points spread licenses more evenly.
+     */
+    private static final int POINTS_PER_SHARD = 256;
+
+    /**
+     * The SWHs of the cluster, as host:port, in the order they were given.
+     */
+    private final List<String> shards;
+
+    /**
+     * The index in shards of the SWH at each point of the ring, by position.
+     */
+    private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+
+    /**
+     * @param shards the SWHs of the cluster, as host:port
+     * @throws IllegalArgumentException if there are no SWHs, or one is given twice
+     */
+    public ShardRing(List<String> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one SWH");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<String>(shards));
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        for (int i = 0; i < shards.size(); i++) {
+            if (shards.indexOf(shards.get(i)) != i) {
+                throw new IllegalArgumentException("SWH given twice: " + shards.get(i));
+            }
+            for (int point = 0; point < POINTS_PER_SHARD; point++) {
+                byte[] digest = md.digest((shards.get(i) + "#" + point).getBytes(utf8));
+                // a point shared by two SWHs goes to the first given, on every agent
+                Long position = LicenseToken.fromBytes(digest).getHigh();
+                if (!ring.containsKey(position)) {
+                    ring.put(position, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param license a license
+     * @return the index of the SWH the license belongs to
+     */
+    public int ownerOf(LicenseToken license) {
+        Map.Entry<Long, Integer> point = ring.ceilingEntry(license.getHigh());
+        return point == null ? ring.firstEntry().getValue() : point.getValue();
+    }
+
+    /**
+     * @param license a license
+     * @return the SWH the license belongs to, as host:port
+     */
+    public String ownerAddress(LicenseToken license) {
+        return shards.get(ownerOf(license));
+    }
+
+    /**
+     * @param shard a SWH, as host:port
+     * @return the index of the SWH, or -1 if it is not in the cluster
+     */
+    public int indexOf(String shard) {
+        return shards.indexOf(shard);
+    }
+
+    /**
+     * @return the SWHs of the cluster, as host:port
+     */
+    public List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * Parses a comma separated list of SWHs, as given in a shards setting.
+     * @param value the SWHs, as host:port,host:port,...
+     * @return the ring of those SWHs
+     * @throws IllegalArgumentException if a SWH is not host:port, or is given twice
+     */
+    public static ShardRing parse(String value) {
+        List<String> shards = new ArrayList<String>();
+        for (String shard : value.split(",")) {
+            int colon = shard.lastIndexOf(':');
+            if (colon <= 0 || Integer.parseInt(shard.substring(colon + 1)) <= 0) {
+                throw new IllegalArgumentException(shard);
+            }
+            shards.add(shard);
+        }
+        return new ShardRing(shards);
+    }
+}
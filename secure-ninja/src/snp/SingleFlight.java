@@ -0,0 +1,221 @@
+package snp;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical pieces of work that are in flight at the same time.
+ * The first caller for a key starts the work; every caller that arrives with the same key before it
+ * finishes waits for, and shares, that result instead of repeating the work. Once the work is done
+ * the key is forgotten, so results are never cached here.
+ * Without an executor, the first caller does the work on its own thread. With one, the work is
+ * done on the executor and every caller, the first included, only waits for it until its own
+ * deadline, so that a caller with a short deadline cannot cut the work short for the others; work
+ * that every caller has given up on is cancelled.
+ * @param <V> the type of result the work produces
+ * @author Edwin Tay(20529864) && Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class SingleFlight<V> {
+
+    /**
+     * A piece of work in flight, and the callers waiting for it.
+     */
+    private class Flight extends FutureTask<V> {
+
+        /**
+         * The key the work is in flight under.
+         */
+        private final String key;
+
+        /**
+         * The number of callers waiting for the work; guarded by this.
+         */
+        private int waiters = 0;
+
+        /**
+         * @param key the key the work is in flight under
+         * @param work the work to do
+         */
+        Flight(String key, Callable<V> work) {
+            super(work);
+            this.key = key;
+        }
+
+        /**
+         * Counts a caller as waiting for the work.
+         * @return false if the work has been cancelled, and so cannot be waited for
+         */
+        synchronized boolean join() {
+            if (isCancelled()) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        /**
+         * Stops counting a caller as waiting for the work, cancelling the work if it was the last
+         * caller and gave up on it.
+         * @param gaveUp true if the caller stopped waiting before the work was done
+         */
+        synchronized void leave(boolean gaveUp) {
+            waiters--;
+            if (gaveUp && waiters == 0 && executor != null) {
+                cancel(true);
+            }
+        }
+
+        @Override
+        protected void done() {
+            inFlight.remove(key, this);
+        }
+    }
+
+    /**
+     * The work currently in flight, by key.
+     */
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * Does the work, or null if the first caller for a key does it on its own thread.
+     */
+    private final Executor executor;
+
+    /**
+     * Whether each thread's most recent call started the work itself.
+     */
+    private final ThreadLocal<Boolean> executedLast = new ThreadLocal<Boolean>();
+
+    /**
+     * Number of calls which started the work themselves.
+     */
+    private final AtomicLong executed = new AtomicLong();
+
+    /**
+     * Number of calls which shared the result of another call.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Number of calls which gave up waiting for the work.
+     */
+    private final AtomicLong abandoned = new AtomicLong();
+
+    /**
+     * Coalesces work that is done by the first caller for each key, on its own thread.
+     */
+    public SingleFlight() {
+        this(null);
+    }
+
+    /**
+     * Coalesces work that is done on an executor, which every caller waits for until its own
+     * deadline.
+     * @param executor does the work, or null for the first caller for each key to do it
+     */
+    public SingleFlight(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Does the work for key, or waits for the identical work that is already in flight.
+     * @param key identifies the work; two calls with equal keys must do identical work
+     * @param work the work to do
+     * @return the result of the work, or null if the work threw an exception or the calling thread
+     * was interrupted whilst waiting
+     */
+    public V run(String key, Callable<V> work) {
+        return run(key, work, null);
+    }
+
+    /**
+     * Does the work for key, or waits for the identical work that is already in flight, but only
+     * until a deadline. The deadline only limits waiting: without an executor, a caller that does
+     * the work itself is trusted to make the work respect the deadline; with one, the work takes
+     * as long as it takes, unless every caller waiting for it gives up.
+     * @param key identifies the work; two calls with equal keys must do identical work
+     * @param work the work to do
+     * @param deadline when to stop waiting for the work, or null to wait for as long as it takes
+     * @return the result of the work, or null if the work threw an exception, the calling thread
+     * was interrupted whilst waiting or the deadline passed
+     */
+    public V run(String key, Callable<V> work, Deadline deadline) {
+        Flight flight;
+        boolean started;
+        while (true) {
+            Flight fresh = new Flight(key, work);
+            Flight existing = inFlight.putIfAbsent(key, fresh);
+            flight = existing == null ? fresh : existing;
+            if (flight.join()) {
+                started = existing == null;
+                break;
+            }
+            // every caller gave up on that work, so start it again
+            inFlight.remove(key, flight);
+        }
+        executedLast.set(started);
+        if (started) {
+            executed.incrementAndGet();
+            if (executor == null) {
+                flight.run();
+            } else {
+                executor.execute(flight);
+            }
+        } else {
+            coalesced.incrementAndGet();
+        }
+
+        boolean gaveUp = true;
+        try {
+            V result = deadline == null ? flight.get()
+                    : flight.get(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+            gaveUp = false;
+            return result;
+        } catch (TimeoutException e) {
+            Log.error("Gave up waiting for " + key);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.error("Interrupted whilst waiting for " + key);
+            return null;
+        } catch (CancellationException e) {
+            Log.error("Work on " + key + " was cancelled");
+            return null;
+        } catch (ExecutionException e) {
+            gaveUp = false;
+            Log.error("Failed whilst working on " + key);
+            e.getCause().printStackTrace();
+            return null;
+        } finally {
+            if (gaveUp) {
+                abandoned.incrementAndGet();
+            }
+            flight.leave(gaveUp);
+        }
+    }
+
+    /**
+     * @return true if the calling thread's most recent call to run started the work itself, false
+     * if it shared work that another call was already doing, or has never called run
+     */
+    public boolean executedLast() {
+        return Boolean.TRUE.equals(executedLast.get());
+    }
+
+    /**
+     * @return a human readable summary of how much work was shared
+     */
+    public String getStatistics() {
+        return String.format("executed=%d coalesced=%d abandoned=%d in-flight=%d", executed.get(),
+                coalesced.get(), abandoned.get(), inFlight.size());
+    }
+}
@@ -11,20 +11,22 @@ import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.InputMismatchException;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.UUID;
 
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.SSLSocket;
 
 import snp.CompileUtility;
+import snp.Deadline;
 import snp.License;
+import snp.LicenseToken;
 import snp.Log;
 import snp.NetworkUtilities;
 import snp.SecurityUtilities;
@@ -47,17 +49,27 @@ public class Developer {
     private SSLSocketFactory sslfact;
 
     /**
-     * A map of Library Names to a Queue of licenses. e.g. goo.buzz.Buzz might map to licenses [1,
-     * 2, 3, 4] Note that we use a convention for which licenses to use (last license is always used
+     * The licenses we hold, by library name. e.g. goo.buzz.Buzz might map to licenses [1, 2, 3, 4]
+     * Note that we use a convention for which licenses to use (oldest license is always used
      * first) in order to ease implementation.
      */
-    private Map<String, Queue<License>> licenseMap;
+    private LicenseStore licenses;
 
     /**
      * The top level of the source directory.
      */
     private String srcPath;
 
+    /**
+     * How long each command may take before we give up on it, in milliseconds.
+     */
+    private long deadlineMillis = 30000;
+
+    /**
+     * How many times a link job is attempted if the connection to the Linker keeps failing.
+     */
+    private static final int LINK_ATTEMPTS = 2;
+
     /**
      * 
      * @param srcPath
@@ -69,7 +81,7 @@ public class Developer {
      *             if this host cannot be resolved
      */
     public Developer(String srcPath, String trustFile, String password) throws UnknownHostException {
-        licenseMap = new HashMap<String, Queue<License>>();
+        licenses = new LicenseStore(null);
         sslfact = (SSLSocketFactory) SecurityUtilities.getSSLSocketFactory(trustFile, password);
 
         this.srcPath = srcPath;
@@ -85,11 +97,19 @@ public class Developer {
     }
 
     /**
-     * Processes commands from some input stream wrapped in a Scanner. Three commands are available;
+     * Processes commands from some input stream wrapped in a Scanner. Seven commands are available;
      * 1) REQUEST [host] [port] [libraryName] [nLicenses], which will request nLicenses for
-     * libraryName from the SWH at [host]:[port], 2) LINK [host] [port] [JARName], which will create
-     * a JAR file called JARName by asking the Linker at [host]:[port] to construct it for us; and
-     * 3) QUIT, which will exit the program.
+     * libraryName from the SWH at [host]:[port], asking again for the rest if the SWH grants
+     * only part of a large order, 2) BULKREQUEST [host] [port] [nLibraries], which
+     * will then read nLibraries [libraryName] [nLicenses] pairs and request all of them from the
+     * SWH at [host]:[port] over a single connection, 3) LINK [host] [port] [JARName], which will
+     * create a JAR file called JARName by asking the Linker at [host]:[port] to construct it for
+     * us; 4) STATS [host] [port], which prints the statistics of the SWH at [host]:[port];
+     * 5) SEATS [host] [port] [libraryName], which prints the number of licenses issued,
+     * outstanding, consumed and expired for libraryName (or every library, if it is *) by the SWH
+     * at [host]:[port]; 6) CHECK [host] [port] [libraryName], which asks the SWH at [host]:[port],
+     * which may be a replica, whether the license we would use next for libraryName is still
+     * outstanding; and 7) QUIT, which will exit the program.
      * 
      * @param sc
      *            The scanner wrapping the stream were input is coming from.
@@ -97,8 +117,12 @@ public class Developer {
     private void processCommands(Scanner sc) {
         do {
             System.out.println("Commands:\n" + "\tRequest <Hostname> <Port> <LibraryName>"
-                    + " <NumberLicenses>" + "\n\tOR\n" + "\tLink <Hostname> <Port> <JARFileName>"
-                    + "\n\tOR\n" + "\tQuit");
+                    + " <NumberLicenses>" + "\n\tOR\n"
+                    + "\tBulkRequest <Hostname> <Port> <NumberLibraries>" + "\n\tOR\n"
+                    + "\tLink <Hostname> <Port> <JARFileName>" + "\n\tOR\n"
+                    + "\tStats <Hostname> <Port>" + "\n\tOR\n"
+                    + "\tSeats <Hostname> <Port> <LibraryName or *>" + "\n\tOR\n"
+                    + "\tCheck <Hostname> <Port> <LibraryName>" + "\n\tOR\n" + "\tQuit");
             try {
                 String command = sc.next();
                 if (command.equalsIgnoreCase("Request")) {
@@ -108,17 +132,90 @@ public class Developer {
                     String libName = sc.next();
                     int numLicenses = sc.nextInt();
 
-                    try {
-                        SSLSocket connection = (SSLSocket) sslfact.createSocket(remoteHost,
-                                remotePort);
-                        requestLicense(numLicenses, libName, connection);
-                        connection.close();
-                    } catch (UnknownHostException e) {
-                        Log.error("Host name could not be resolved");
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        Log.error("I/O error occurred");
-                        e.printStackTrace();
+                    // the SWH caps how many licenses it grants at once, so a large order may
+                    // take several requests
+                    int received = 0;
+                    while (received < numLicenses) {
+                        int granted = 0;
+                        try {
+                            Deadline deadline = Deadline.in(deadlineMillis);
+                            SSLSocket connection = deadline.connect(sslfact, remoteHost,
+                                    remotePort);
+                            granted = requestLicense(numLicenses - received, libName,
+                                    connection, deadline);
+                            connection.close();
+                        } catch (UnknownHostException e) {
+                            Log.error("Host name could not be resolved");
+                            e.printStackTrace();
+                        } catch (IOException e) {
+                            Log.error("I/O error occurred");
+                            e.printStackTrace();
+                        }
+                        if (granted <= 0) {
+                            break;
+                        }
+                        received += granted;
+                    }
+                } else if (command.equalsIgnoreCase("BulkRequest")) {
+
+                    String remoteHost = sc.next();
+                    int remotePort = sc.nextInt();
+                    int nLibs = sc.nextInt();
+
+                    System.out.printf("Please input %d <LibraryName> <NumberLicenses> pairs\n",
+                            nLibs);
+                    List<String> libNames = new ArrayList<String>();
+                    List<Integer> counts = new ArrayList<Integer>();
+                    for (int i = 0; i < nLibs; i++) {
+                        libNames.add(sc.next());
+                        counts.add(sc.nextInt());
+                    }
+
+                    // the SWH caps how many licenses it grants per connection, so a large order
+                    // may take several requests, each for what is still missing
+                    int[] received = new int[nLibs];
+                    while (true) {
+                        List<String> askNames = new ArrayList<String>();
+                        List<Integer> askCounts = new ArrayList<Integer>();
+                        List<Integer> asked = new ArrayList<Integer>();
+                        for (int i = 0; i < nLibs; i++) {
+                            if (received[i] < counts.get(i)) {
+                                askNames.add(libNames.get(i));
+                                askCounts.add(counts.get(i) - received[i]);
+                                asked.add(i);
+                            }
+                        }
+                        if (asked.isEmpty()) {
+                            break;
+                        }
+                        int[] granted = null;
+                        try {
+                            Deadline deadline = Deadline.in(deadlineMillis);
+                            SSLSocket connection = deadline.connect(sslfact, remoteHost,
+                                    remotePort);
+                            granted = requestLicenses(askNames, askCounts, connection, deadline);
+                            connection.close();
+                        } catch (UnknownHostException e) {
+                            Log.error("Host name could not be resolved");
+                            e.printStackTrace();
+                        } catch (IOException e) {
+                            Log.error("I/O error occurred");
+                            e.printStackTrace();
+                        }
+                        int total = 0;
+                        for (int j = 0; granted != null && j < granted.length; j++) {
+                            received[asked.get(j)] += granted[j];
+                            total += granted[j];
+                        }
+                        if (total == 0) {
+                            break;
+                        }
+                    }
+                    for (int i = 0; i < nLibs; i++) {
+                        if (received[i] < counts.get(i)) {
+                            System.out.printf("Received %d of the %d licenses asked for %s\n",
+                                    received[i], counts.get(i), libNames.get(i));
+                        }
                     }
                 } else if (command.equalsIgnoreCase("Link")) {
 
@@ -172,17 +269,88 @@ public class Developer {
                         }
                     }
 
-                    try {
-                        SSLSocket connection = (SSLSocket) sslfact.createSocket(remoteHost,
-                                remotePort);
-                        if (linkFiles(mainName, srcFiles, requestedLicenses, jarFileName,
-                                connection)) {
-                            System.out.println("Successfully packaged your JAR");
-                        } else {
-                            System.out
-                                    .println("Couldn't link up your JAR: please check the error log for"
-                                            + " more details");
+                    // a retry is sent with the same job ID, so that the Linker answers it with what
+                    // it did the first time rather than verifying (and using up) our licenses again
+                    String jobID = UUID.randomUUID().toString();
+                    int linked = -1;
+                    for (int attempt = 0; attempt < LINK_ATTEMPTS && linked == -1; attempt++) {
+                        if (attempt > 0) {
+                            Log.log("Lost the connection to the Linker, retrying job %s\n",
+                                    jobID);
+                        }
+                        try {
+                            Deadline deadline = Deadline.in(deadlineMillis);
+                            SSLSocket connection = deadline.connect(sslfact, remoteHost,
+                                    remotePort);
+                            linked = linkFiles(mainName, srcFiles, requestedLicenses,
+                                    jarFileName, jobID, connection, deadline);
+                            connection.close();
+                        } catch (UnknownHostException e) {
+                            Log.error("Host name could not be resolved");
+                            e.printStackTrace();
+                            linked = 0;
+                        } catch (IOException e) {
+                            Log.error("I/O error occurred");
+                            e.printStackTrace();
                         }
+                    }
+                    if (linked == 1) {
+                        System.out.println("Successfully packaged your JAR");
+                    } else {
+                        System.out
+                                .println("Couldn't link up your JAR: please check the error log for"
+                                        + " more details");
+                    }
+                } else if (command.equalsIgnoreCase("Stats")) {
+
+                    String remoteHost = sc.next();
+                    int remotePort = sc.nextInt();
+
+                    try {
+                        Deadline deadline = Deadline.in(deadlineMillis);
+                        SSLSocket connection = deadline.connect(sslfact, remoteHost, remotePort);
+                        requestStatistics(connection, deadline);
+                        connection.close();
+                    } catch (UnknownHostException e) {
+                        Log.error("Host name could not be resolved");
+                        e.printStackTrace();
+                    } catch (IOException e) {
+                        Log.error("I/O error occurred");
+                        e.printStackTrace();
+                    }
+                } else if (command.equalsIgnoreCase("Seats")) {
+
+                    String remoteHost = sc.next();
+                    int remotePort = sc.nextInt();
+                    String libName = sc.next();
+
+                    try {
+                        Deadline deadline = Deadline.in(deadlineMillis);
+                        SSLSocket connection = deadline.connect(sslfact, remoteHost, remotePort);
+                        requestSeats(libName, connection, deadline);
+                        connection.close();
+                    } catch (UnknownHostException e) {
+                        Log.error("Host name could not be resolved");
+                        e.printStackTrace();
+                    } catch (IOException e) {
+                        Log.error("I/O error occurred");
+                        e.printStackTrace();
+                    }
+                } else if (command.equalsIgnoreCase("Check")) {
+
+                    String remoteHost = sc.next();
+                    int remotePort = sc.nextInt();
+                    String libName = sc.next();
+
+                    License lic = getLicense(libName);
+                    if (lic == null) {
+                        System.out.println("Sorry, you have no license for " + libName);
+                        continue;
+                    }
+                    try {
+                        Deadline deadline = Deadline.in(deadlineMillis);
+                        SSLSocket connection = deadline.connect(sslfact, remoteHost, remotePort);
+                        checkLicense(lic, connection, deadline);
                         connection.close();
                     } catch (UnknownHostException e) {
                         Log.error("Host name could not be resolved");
@@ -210,41 +378,85 @@ public class Developer {
      * @param numLicense
      * @param libraryName
      * @param connection
+     * @param deadline when we need an answer by
+     * @return the number of licenses received, or a non-positive number if the SWH declined
      */
-    private void requestLicense(int numLicense, String libraryName, SSLSocket connection) {
+    private int requestLicense(int numLicense, String libraryName, SSLSocket connection,
+            Deadline deadline) {
         DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
         DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
 
+        int received = -1;
         if (inStream != null && outStream != null) {
             try {
                 outStream.writeUTF("REQ");
+                deadline.write(outStream);
                 Log.log("Getting %d licenses for %s from %s\n", numLicense, libraryName, connection
                         .getInetAddress().getCanonicalHostName() + ":" + connection.getPort());
                 outStream.writeUTF(libraryName);
                 outStream.writeInt(numLicense);
 
-                // reading in the number of licenses we received from the SWH
-                int nLicReturned = inStream.readInt();
-                Log.log("%s returning %d licenses\n", connection.getInetAddress()
-                        .getCanonicalHostName() + ":" + connection.getPort(), nLicReturned);
-                for (int i = 0; i < nLicReturned; i++) {
-                    String unencrypted = inStream.readUTF();
+                received = readLicenses(libraryName, inStream, outStream, connection);
 
-                    // reads encrypted license string each time
-                    // this way, only the SWH needs wrapping/unwrapping of licenses and makes it
-                    // harder to infer anything about the SWH keypair, beyond trying to use a
-                    // replay attack of the SWH's keys; or so we think, but we're not crypotgraphers
-                    String encrypted = inStream.readUTF();
-                    addLicense(libraryName, new License(unencrypted, connection.getInetAddress(),
-                            libraryName, connection.getPort(), encrypted));
+                NetworkUtilities.closeSocketDataInputStream(inStream, connection);
+                NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+
+                Log.logEnd();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Requests licenses for several libraries from a SWH which is the remote host of connection,
+     * using a single BREQ round-trip rather than one connection per library.
+     * 
+     * @param libraryNames the libraries to request licenses for
+     * @param numLicenses the number of licenses wanted for each entry of libraryNames
+     * @param connection
+     * @param deadline when we need an answer by
+     * @return the number of licenses received for each entry of libraryNames
+     */
+    private int[] requestLicenses(List<String> libraryNames, List<Integer> numLicenses,
+            SSLSocket connection, Deadline deadline) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+
+        int[] received = new int[libraryNames.size()];
+        if (inStream != null && outStream != null) {
+            try {
+                outStream.writeUTF("BREQ");
+                deadline.write(outStream);
+                Log.log("Getting licenses for %d libraries from %s\n", libraryNames.size(),
+                        connection.getInetAddress().getCanonicalHostName() + ":"
+                                + connection.getPort());
+                outStream.writeInt(libraryNames.size());
+                for (int i = 0; i < libraryNames.size(); i++) {
+                    outStream.writeUTF(libraryNames.get(i));
+                    outStream.writeInt(numLicenses.get(i));
                 }
 
-                if (nLicReturned <= 0) {
-                    Log.log("%s declined to send licenses\n", connection.getInetAddress()
-                            .getCanonicalHostName());
-                } else {
-                    Log.log("Received %d licenses from %s\n", nLicReturned, connection
+                // the SWH streams its answers back in the order we asked for them
+                int nEntries = inStream.readInt();
+                if (nEntries == -3) {
+                    Log.log("%s is too busy to send licenses, try again later\n", connection
                             .getInetAddress().getCanonicalHostName());
+                } else if (nEntries == -5) {
+                    Log.log("%s is throttling our requests, try again more slowly\n",
+                            connection.getInetAddress().getCanonicalHostName());
+                } else if (nEntries == -6) {
+                    Log.log("%s could not answer before our deadline, try again later\n",
+                            connection.getInetAddress().getCanonicalHostName());
+                } else if (nEntries <= 0) {
+                    Log.log("%s declined the bulk license request\n", connection.getInetAddress()
+                            .getCanonicalHostName());
+                }
+                for (int i = 0; i < nEntries && i < received.length; i++) {
+                    String libraryName = inStream.readUTF();
+                    received[i] = Math.max(0,
+                            readLicenses(libraryName, inStream, outStream, connection));
                 }
                 NetworkUtilities.closeSocketDataInputStream(inStream, connection);
                 NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
@@ -254,19 +466,178 @@ public class Developer {
                 e.printStackTrace();
             }
         }
+        return received;
     }
 
     /**
-     * Adds a license with a library name into our client licenses.
+     * Asks the SWH which is the remote host of connection for its statistics, and prints them.
      * 
-     * @param library
-     * @param l
+     * @param connection
+     * @param deadline when we need an answer by
      */
-    private void addLicense(String library, License l) {
-        if (!licenseMap.containsKey(library)) {
-            licenseMap.put(library, new LinkedList<License>());
+    private void requestStatistics(SSLSocket connection, Deadline deadline) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+
+        if (inStream != null && outStream != null) {
+            try {
+                outStream.writeUTF("STAT");
+                deadline.write(outStream);
+                System.out.print(inStream.readUTF());
+            } catch (IOException e) {
+                Log.error("Could not read statistics");
+                e.printStackTrace();
+            }
+            NetworkUtilities.closeSocketDataInputStream(inStream, connection);
+            NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+
+            Log.logEnd();
         }
-        licenseMap.get(library).add(l);
+    }
+
+    /**
+     * Requests the number of licenses issued, outstanding, consumed and expired for a library, or
+     * for every library, from a SWH which is the remote host of connection, and prints them.
+     * 
+     * @param libraryName the library, or "*" for every library
+     * @param connection
+     * @param deadline when we need an answer by
+     */
+    private void requestSeats(String libraryName, SSLSocket connection, Deadline deadline) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+
+        if (inStream != null && outStream != null) {
+            try {
+                outStream.writeUTF("SEATS");
+                deadline.write(outStream);
+                outStream.writeUTF(libraryName);
+                System.out.print(inStream.readUTF());
+            } catch (IOException e) {
+                Log.error("Could not read seat counts");
+                e.printStackTrace();
+            }
+            NetworkUtilities.closeSocketDataInputStream(inStream, connection);
+            NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+
+            Log.logEnd();
+        }
+    }
+
+    /**
+     * Asks a SWH which is the remote host of connection whether a license is still outstanding,
+     * without using it up, and prints the answer.
+     * 
+     * @param lic the license
+     * @param connection
+     * @param deadline when we need an answer by
+     */
+    private void checkLicense(License lic, SSLSocket connection, Deadline deadline) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+
+        if (inStream != null && outStream != null) {
+            try {
+                outStream.writeUTF("CHK");
+                deadline.write(outStream);
+                outStream.writeInt(1);
+                outStream.writeUTF(lic.getEncryptedLicenseString());
+                int nLicenses = inStream.readInt();
+                if (nLicenses != 1) {
+                    System.out.printf("The SWH could not check the license (status %d)\n",
+                            nLicenses);
+                } else if (inStream.readInt() == 0) {
+                    System.out.printf("License %s is outstanding for %s\n",
+                            lic.getLicenseString(), inStream.readUTF());
+                } else {
+                    System.out.printf("License %s has been consumed, has expired or is unknown\n",
+                            lic.getLicenseString());
+                }
+            } catch (IOException e) {
+                Log.error("Could not check license");
+                e.printStackTrace();
+            }
+            NetworkUtilities.closeSocketDataInputStream(inStream, connection);
+            NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+
+            Log.logEnd();
+        }
+    }
+
+    /**
+     * Reads the licenses a SWH returned for a single library and adds them to our client licenses.
+     * The SWH streams the licenses in chunks, and waits for us to ask for each chunk after the
+     * first; a chunk is only asked for once the one before it has been stored, so at most one
+     * chunk is held in memory at a time.
+     * 
+     * @param libraryName the library the licenses are for
+     * @param inStream the stream the SWH is writing licenses to
+     * @param outStream the stream to ask the SWH for each further chunk on
+     * @param connection the connected socket, for recording where the licenses came from
+     * @return the number of licenses read, or a non-positive number if the SWH declined
+     * @throws IOException if the licenses could not be read or stored
+     */
+    private int readLicenses(String libraryName, DataInputStream inStream,
+            DataOutputStream outStream, SSLSocket connection) throws IOException {
+        // reading in the number of licenses the SWH has granted us
+        int nLicReturned = inStream.readInt();
+        Log.log("%s returning %d licenses for %s\n", connection.getInetAddress()
+                .getCanonicalHostName() + ":" + connection.getPort(), nLicReturned, libraryName);
+        if (nLicReturned > 0) {
+            // the SWH precedes its licenses with the replicas that can verify them too
+            int nReplicas = inStream.readInt();
+            List<String> replicas = new ArrayList<String>();
+            for (int i = 0; i < nReplicas; i++) {
+                replicas.add(inStream.readUTF() + ":" + inStream.readInt());
+            }
+            int received = 0;
+            while (received < nLicReturned) {
+                int chunk = inStream.readInt();
+                List<License> licenses = new ArrayList<License>(chunk);
+                for (int i = 0; i < chunk; i++) {
+                    LicenseToken unencrypted = LicenseToken.readUTF(inStream);
+
+                    // reads encrypted license string each time
+                    // this way, only the SWH needs wrapping/unwrapping of licenses and makes it
+                    // harder to infer anything about the SWH keypair, beyond trying to use a
+                    // replay attack of the SWH's keys; or so we think, but we're not
+                    // crypotgraphers
+                    String encrypted = inStream.readUTF();
+                    // a SWH serving shared classes signs each license, so that the Linker can
+                    // verify it without asking the SWH
+                    String seal = inStream.readUTF();
+                    licenses.add(new License(unencrypted, connection.getInetAddress(),
+                            libraryName, connection.getPort(), encrypted, replicas, seal));
+                }
+                this.licenses.add(libraryName, licenses);
+                received += chunk;
+                if (received < nLicReturned) {
+                    outStream.writeInt(1);
+                    outStream.flush();
+                }
+            }
+        }
+
+        if (nLicReturned == -3) {
+            Log.log("%s is too busy to send licenses, try again later\n", connection
+                    .getInetAddress().getCanonicalHostName());
+        } else if (nLicReturned == -5) {
+            Log.log("%s is throttling our requests, try again more slowly\n", connection
+                    .getInetAddress().getCanonicalHostName());
+        } else if (nLicReturned == -8) {
+            Log.log("%s says we have as many %s licenses outstanding as our quota allows\n",
+                    connection.getInetAddress().getCanonicalHostName(), libraryName);
+        } else if (nLicReturned == -6) {
+            Log.log("%s could not answer before our deadline, try again later\n", connection
+                    .getInetAddress().getCanonicalHostName());
+        } else if (nLicReturned <= 0) {
+            Log.log("%s declined to send licenses\n", connection.getInetAddress()
+                    .getCanonicalHostName());
+        } else {
+            Log.log("Received %d licenses from %s\n", nLicReturned, connection
+                    .getInetAddress().getCanonicalHostName());
+        }
+        return nLicReturned;
     }
 
     /**
@@ -281,15 +652,19 @@ public class Developer {
      * @param requestedLicenses
      *            a map from qualified Java class names (e.g. "goo.buzz.Buzz") to Java source files
      * @param jarName
+     * @param jobID identifies this link job to the Linker, and stays the same if the job is retried
      * @param connection
-     * @return true if the linking was successful, and false otherwise.
+     * @param deadline when we need the JAR by; the Linker passes what is left of it on to the SWHs
+     * @return 1 if the linking was successful, -1 if the connection to the Linker failed part-way
+     * (in which case the job can be retried with the same jobID), and 0 otherwise.
      */
-    private boolean linkFiles(String mainClass, Map<String, File> srcFiles,
-            List<License> requestedLicenses, final String jarName, SSLSocket connection) {
+    private int linkFiles(String mainClass, Map<String, File> srcFiles,
+            List<License> requestedLicenses, final String jarName, String jobID,
+            SSLSocket connection, Deadline deadline) {
 
         DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
         DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
-        boolean hasFile = false;
+        boolean hasFile = false, interrupted = false;
 
         if (inStream != null && outStream != null) {
             Log.log("Sending licenses");
@@ -309,12 +684,15 @@ public class Developer {
             String password = null;
 
             try {
-                // send the main entry point across
+                // send our deadline and job ID, then the main entry point across
+                deadline.write(outStream);
+                outStream.writeUTF(jobID);
                 outStream.writeUTF(mainClass);
             } catch (IOException e) {
                 Log.error("Could not send across main file point");
                 e.printStackTrace();
                 count = -1;
+                interrupted = true;
             }
             
             try {
@@ -325,16 +703,44 @@ public class Developer {
                 Log.error("Encountered I/O error whilst writing number of licenses to network");
                 e.printStackTrace();
                 count = -1;
+                interrupted = true;
             }
 
             if (count != -1) {
-                for (License lic : requestedLicenses) {
-                    try {
+                try {
+                    // every license is sent before any answer is read, so that the Linker can
+                    // verify the licenses for each SWH in one batch
+                    for (License lic : requestedLicenses) {
                         Log.log("Writing license to network");
                         outStream.writeUTF(lic.getSoftwareHouseIP().getCanonicalHostName());
                         outStream.writeInt(lic.getPort());
                         outStream.writeUTF(lic.getEncryptedLicenseString());
+                        // the Linker may verify the license with any of the SWH's replicas
+                        outStream.writeInt(lic.getReplicas().size());
+                        for (String replica : lic.getReplicas()) {
+                            int colon = replica.lastIndexOf(':');
+                            outStream.writeUTF(replica.substring(0, colon));
+                            outStream.writeInt(Integer.parseInt(replica.substring(colon + 1)));
+                        }
+                        // a signed license is sent with what the Linker needs to check the
+                        // signature itself
+                        outStream.writeUTF(lic.getSeal());
+                        if (!lic.getSeal().isEmpty()) {
+                            outStream.writeUTF(lic.getLibraryName());
+                            outStream.writeUTF(lic.getLicenseString());
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error("I/O error sending license");
+                    e.printStackTrace();
+                    count = -1;
+                    interrupted = true;
+                }
+            }
 
+            if (count != -1) {
+                for (License lic : requestedLicenses) {
+                    try {
                         int success = inStream.readInt();
 
                         if (success == 0) {
@@ -347,31 +753,51 @@ public class Developer {
                             decrementLicense(lic.getLibraryName(), lic);
                             Log.log("Could not verify all the licenses --- inconsistency between "
                                     + "our license list and SWH license list");
-                            break;
                         } else if (success == -2) {
-                            Log.log("Error on the SWH's end --- exiting since cannot provide our"
-                                    + " linked file");
-                            break;
+                            Log.log("Error on the SWH's end --- cannot provide our linked file");
+                        } else if (success == -3) {
+                            Log.log("The SWH is too busy to verify " + lic.getLibraryName()
+                                    + " --- the license was not used, try again later");
+                        } else if (success == -5) {
+                            Log.log("The SWH is throttling the Linker, so " + lic.getLibraryName()
+                                    + " was not verified --- the license was not used, try again "
+                                    + "later");
+                        } else if (success == -4) {
+                            Log.log("The SWH is overloaded and could not compile "
+                                    + lic.getLibraryName()
+                                    + " --- the license was not used, try again later");
+                        } else if (success == -6) {
+                            Log.log(lic.getLibraryName() + " could not be verified before our "
+                                    + "deadline --- the license was not used, try again later");
+                        } else if (success == -7) {
+                            Log.log("The SWH for " + lic.getLibraryName() + " is currently "
+                                    + "unavailable --- the license was not used, try again later");
                         } else {
-                            Log.log("Linker sent back unrecognised return code --- exiting");
-                            break;
+                            Log.log("Linker sent back unrecognised return code");
                         }
                     } catch (IOException e) {
-                        Log.error("I/O error sending license");
+                        Log.error("I/O error reading license verification");
                         e.printStackTrace();
+                        interrupted = true;
                         break;
                     }
                 }
             }
 
             if (count == requestedLicenses.size()) {
-                boolean success = false;
+                boolean success = false, needFiles = true;
 
                 try {
                     success = inStream.readBoolean();
+                    if (success) {
+                        // a retried job the Linker already packaged needs no class files
+                        needFiles = inStream.readBoolean();
+                    }
                 } catch (IOException e) {
                     Log.error("Could not read success return code from LinkBroker");
                     e.printStackTrace();
+                    success = false;
+                    interrupted = true;
                 }
 
                 if (success) {
@@ -382,13 +808,18 @@ public class Developer {
                     password = NetworkUtilities.bytesToHex(md.digest());
 
                     Log.log("The final JAR file password will be: " + password);
-                    Log.log("Sending class files to LinkBroker");
 
-                    count = 0;
+                    count = needFiles ? 0 : srcFiles.size();
                     Map<String, File> classFiles = new HashMap<String, File>();
 
                     // in memory compilation of the Java source files we want to send over
-                    Set<String> srcFileNames = srcFiles.keySet();
+                    Set<String> srcFileNames = needFiles ? srcFiles.keySet()
+                            : Collections.<String>emptySet();
+                    if (needFiles) {
+                        Log.log("Sending class files to LinkBroker");
+                    } else {
+                        Log.log("LinkBroker already has our class files from job " + jobID);
+                    }
                     for (String name : srcFileNames) {
                         File f = srcFiles.get(name);
 
@@ -410,7 +841,7 @@ public class Developer {
 
                     if (count != srcFiles.size()) {
                         Log.error("Encountered a compilation error in Developer source code");
-                    } else {
+                    } else if (needFiles) {
                         try {
                             count = 0;
                             outStream.writeInt(classFiles.size());
@@ -433,6 +864,7 @@ public class Developer {
                         } catch (IOException e) {
                             Log.error("Sending class files failed");
                             e.printStackTrace();
+                            interrupted = true;
                         }
                     }
 
@@ -446,10 +878,12 @@ public class Developer {
                                 hasFile = true;
                             } else {
                                 Log.log("Error occurred receiving " + jarName + ".jar");
+                                interrupted = true;
                             }
                         } catch (IOException e) {
                             Log.error("Receiving JAR file" + " failed");
                             e.printStackTrace();
+                            interrupted = true;
                         }
                     }
                 } else {
@@ -465,11 +899,11 @@ public class Developer {
 
             Log.logEnd();
         }
-        return hasFile;
+        return hasFile ? 1 : (interrupted ? -1 : 0);
     }
 
     /**
-     * @param libNames a list of library names that should be in the licenseMap
+     * @param libNames a list of library names that we should hold licenses for
      * @return the licenses to corresponding to the list of library names or null if one of the
      * libraries was not found
      */
@@ -496,10 +930,7 @@ public class Developer {
      * @return the oldest license corresponding to this library, or false otherwise
      */
     private License getLicense(String library) {
-        if (licenseMap.containsKey(library) && !licenseMap.get(library).isEmpty()) {
-            return licenseMap.get(library).peek();
-        }
-        return null;
+        return licenses.peek(library);
     }
 
     /**
@@ -517,18 +948,20 @@ public class Developer {
      * @param lic
      */
     private void decrementLicense(String library, License lic) {
-        if (library != null && lic != null && licenseMap.containsKey(library)
-                && !licenseMap.get(library).isEmpty()) {
-            licenseMap.get(library).remove(lic);
+        if (library != null && lic != null) {
+            licenses.remove(library, lic);
         }
     }
 
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.err.println("Usage: needs 3 arguments.");
+        if (args.length < 3) {
+            System.err.println("Usage: needs 3 arguments, then any optional settings.");
             System.err.println("\tArgument 1 = truststore filepath");
             System.err.println("\tArgument 2 = truststore password");
             System.err.println("\tArgument 3 = classpath");
+            System.err.println("\tOptional settings, each as name=value:");
+            System.err.println("\t\tdeadline=<ms each command may take, default 30000>");
+            System.err.println("\t\tstore=<directory to keep licenses in, default memory>");
             System.exit(1);
         }
 
@@ -544,6 +977,28 @@ public class Developer {
             Log.error("Host name could not be resolved");
             e.printStackTrace();
         }
+        for (int i = 3; dev != null && i < args.length; i++) {
+            String[] setting = args[i].split("=", 2);
+            boolean recognised = false;
+            if (setting.length == 2 && setting[0].equals("deadline")) {
+                long millis = -1;
+                try {
+                    millis = Long.parseLong(setting[1]);
+                } catch (NumberFormatException e) {
+                    millis = -1;
+                }
+                recognised = millis > 0;
+                dev.deadlineMillis = millis;
+            } else if (setting.length == 2 && setting[0].equals("store")
+                    && !setting[1].isEmpty()) {
+                dev.licenses = new LicenseStore(new File(setting[1]));
+                recognised = true;
+            }
+            if (!recognised) {
+                System.err.println("Unrecognised setting: " + args[i]);
+                System.exit(1);
+            }
+        }
         if (dev != null && sc != null) {
             dev.processCommands(sc);
         }
@@ -0,0 +1,252 @@
+package snp.dev;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import snp.License;
+import snp.LicenseToken;
+import snp.Log;
+
+/**
+ * The licenses a Developer holds, by library; the oldest license for a library is used first.
+ * By default the licenses are kept in memory. Given a directory, they are kept on disk instead,
+ * so that a very large order costs no more memory than a small one, and licenses survive the
+ * Developer restarting: each library has a file of licenses, one per line, that licenses are only
+ * ever appended to, and a head file holding how far into it the licenses have been used. Only
+ * the license at the head of each library is held in memory.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class LicenseStore {
+
+    /**
+     * The encoding of the license files.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The directory licenses are kept in, or null if they are kept in memory.
+     */
+    private final File dir;
+
+    /**
+     * The licenses for each library, when they are kept in memory.
+     */
+    private final Map<String, Queue<License>> licenseMap = new HashMap<String, Queue<License>>();
+
+    /**
+     * The license at the head of each library's file that has been read, when licenses are kept
+     * on disk.
+     */
+    private final Map<String, License> heads = new HashMap<String, License>();
+
+    /**
+     * The length in bytes of the line heads holds for each library.
+     */
+    private final Map<String, Integer> headLengths = new HashMap<String, Integer>();
+
+    /**
+     * @param dir the directory to keep licenses in, created if need be; null to keep them in
+     * memory
+     */
+    public LicenseStore(File dir) {
+        this.dir = dir;
+        if (dir != null) {
+            dir.mkdirs();
+        }
+    }
+
+    /**
+     * Adds licenses for a library; when they are kept on disk, they are forced to disk before
+     * this returns.
+     * @param library the library the licenses are for
+     * @param licenses the licenses, oldest first
+     * @throws IOException if the licenses could not be stored
+     */
+    public synchronized void add(String library, List<License> licenses) throws IOException {
+        if (dir == null) {
+            if (!licenseMap.containsKey(library)) {
+                licenseMap.put(library, new LinkedList<License>());
+            }
+            licenseMap.get(library).addAll(licenses);
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (License l : licenses) {
+            lines.append(format(l));
+        }
+        FileOutputStream out = new FileOutputStream(licenseFile(library), true);
+        try {
+            out.write(lines.toString().getBytes(UTF8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param library a library
+     * @return the oldest license held for the library, or null if there are none
+     */
+    public synchronized License peek(String library) {
+        if (dir == null) {
+            Queue<License> licenses = licenseMap.get(library);
+            return licenses == null ? null : licenses.peek();
+        }
+        License head = heads.get(library);
+        if (head != null) {
+            return head;
+        }
+        File file = licenseFile(library);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                in.seek(readHead(library));
+                long start = in.getFilePointer();
+                // licenses are hex and host names, so each byte is a character
+                String line = in.readLine();
+                if (line == null) {
+                    return null;
+                }
+                head = parse(library, line);
+                heads.put(library, head);
+                headLengths.put(library, (int) (in.getFilePointer() - start));
+                return head;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.error("Could not read licenses for %s\n", library);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Removes a used license, if it is the oldest held for its library.
+     * @param library the library the license is for
+     * @param lic the license
+     */
+    public synchronized void remove(String library, License lic) {
+        if (dir == null) {
+            Queue<License> licenses = licenseMap.get(library);
+            if (licenses != null) {
+                licenses.remove(lic);
+            }
+            return;
+        }
+        if (lic == null || lic != peek(library)) {
+            return;
+        }
+        heads.remove(library);
+        File file = licenseFile(library);
+        try {
+            long head = readHead(library) + headLengths.remove(library);
+            if (head >= file.length()) {
+                // every license has been used, so start the library afresh
+                file.delete();
+                headFile(library).delete();
+            } else {
+                RandomAccessFile out = new RandomAccessFile(headFile(library), "rwd");
+                try {
+                    out.setLength(0);
+                    out.writeLong(head);
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Could not record use of a license for %s\n", library);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param library a library
+     * @return how far into the library's file its licenses have been used, in bytes
+     * @throws IOException if the head file could not be read
+     */
+    private long readHead(String library) throws IOException {
+        File file = headFile(library);
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.length() < 8 ? 0 : in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param library a library
+     * @return the file the library's licenses are appended to
+     */
+    private File licenseFile(String library) {
+        return new File(dir, library + ".licenses");
+    }
+
+    /**
+     * @param library a library
+     * @return the file holding how far into the library's licenses have been used
+     */
+    private File headFile(String library) {
+        return new File(dir, library + ".head");
+    }
+
+    /**
+     * @param l a license
+     * @return the license as a line of a license file: the license, encrypted license, seal, SWH
+     * address and port, and replicas, with "-" for an empty seal or no replicas
+     */
+    private static String format(License l) {
+        StringBuilder replicas = new StringBuilder();
+        for (String replica : l.getReplicas()) {
+            replicas.append(replicas.length() == 0 ? "" : ",").append(replica);
+        }
+        String seal = l.getSeal();
+        return String.format("%s %s %s %s %d %s\n", l.getLicenseString(),
+                l.getEncryptedLicenseString(), seal == null || seal.isEmpty() ? "-" : seal,
+                l.getSoftwareHouseIP().getHostAddress(), l.getPort(),
+                replicas.length() == 0 ? "-" : replicas);
+    }
+
+    /**
+     * @param library the library the license is for
+     * @param line a line of a license file
+     * @return the license on the line
+     * @throws IOException if the line is not a license
+     */
+    private static License parse(String library, String line) throws IOException {
+        String[] fields = line.split(" ");
+        if (fields.length != 6) {
+            throw new IOException("Malformed license: " + line);
+        }
+        List<String> replicas = fields[5].equals("-") ? new ArrayList<String>()
+                : new ArrayList<String>(Arrays.asList(fields[5].split(",")));
+        LicenseToken token;
+        try {
+            token = LicenseToken.fromHex(fields[0]);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed license: " + line);
+        }
+        return new License(token, InetAddress.getByName(fields[3]), library,
+                Integer.parseInt(fields[4]), fields[1], replicas,
+                fields[2].equals("-") ? "" : fields[2]);
+    }
+}
@@ -0,0 +1,305 @@
+package snp.linker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import snp.Deadline;
+import snp.Log;
+import snp.NetworkUtilities;
+
+/**
+ * One attempt at verifying a batch of licenses with one SWH endpoint.
+ * The attempt sends the licenses in a BVER, and reads the status of each and the libraries they
+ * unlock into memory, but does not ACK them: the SWH only consumes licenses once they are ACKed, so
+ * the same batch can be sent to several replicas at once and only the attempt that is used is
+ * ever ACKed. The others are abandoned by closing their connections.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+class BatchAttempt implements Callable<BatchAttempt> {
+
+    /**
+     * The SWH endpoint, as host:port.
+     */
+    private final String endpoint;
+
+    /**
+     * Provides the SSLSocket for contacting the SWH.
+     */
+    private final SSLSocketFactory sslFact;
+
+    /**
+     * The encrypted licenses to verify.
+     */
+    private final String[] licenses;
+
+    /**
+     * Identifies the developer the licenses are being used for.
+     */
+    private final String developerID;
+
+    /**
+     * When the SWH must have answered by.
+     */
+    private final Deadline deadline;
+
+    /**
+     * The status code of each license, as in Linker.verifyLicenses.
+     */
+    private final int[] statuses;
+
+    /**
+     * The library each license unlocks, by path within a JAR; null for licenses that were not
+     * verified.
+     */
+    private final List<Map<String, byte[]>> bundles;
+
+    /**
+     * Whether the SWH accepted each license, but its library was not received in full.
+     */
+    private final boolean[] interrupted;
+
+    /**
+     * Whether the SWH answered with anything but unavailable services.
+     */
+    private boolean healthy = false;
+
+    /**
+     * Whether the SWH answered, but with nothing but unavailable services.
+     */
+    private boolean refusedAll = false;
+
+    /**
+     * When the attempt started and finished, on the System.nanoTime clock.
+     */
+    private long startedAt, finishedAt;
+
+    /**
+     * The connection to the SWH, kept open so that the licenses can be ACKed later.
+     */
+    private SSLSocket swhCon;
+
+    /**
+     * Whether the attempt has been given up on.
+     */
+    private boolean abandoned = false;
+
+    /**
+     * @param endpoint the SWH endpoint, as host:port
+     * @param sslFact provides the SSLSocket for contacting the SWH
+     * @param licenses the encrypted licenses to verify
+     * @param developerID identifies the developer the licenses are being used for
+     * @param deadline when the SWH must have answered by
+     */
+    BatchAttempt(String endpoint, SSLSocketFactory sslFact, String[] licenses,
+            String developerID, Deadline deadline) {
+        this.endpoint = endpoint;
+        this.sslFact = sslFact;
+        this.licenses = licenses;
+        this.developerID = developerID;
+        this.deadline = deadline;
+        this.statuses = new int[licenses.length];
+        this.bundles = new ArrayList<Map<String, byte[]>>(
+                Collections.<Map<String, byte[]>>nCopies(licenses.length, null));
+        this.interrupted = new boolean[licenses.length];
+        // until the SWH says otherwise, its libraries are unavailable
+        Arrays.fill(statuses, -2);
+        startedAt = System.nanoTime();
+    }
+
+    /**
+     * Sends the BVER and reads the answer.
+     * @return this attempt
+     */
+    @Override
+    public BatchAttempt call() {
+        int colon = endpoint.lastIndexOf(':');
+        try {
+            Log.log("Establishing socket to " + endpoint);
+            SSLSocket socket = deadline.connect(sslFact, endpoint.substring(0, colon),
+                    Integer.parseInt(endpoint.substring(colon + 1)));
+            synchronized (this) {
+                swhCon = socket;
+                if (abandoned) {
+                    socket.close();
+                    return this;
+                }
+            }
+            DataOutputStream swhOut = NetworkUtilities.getDataOutputStream(swhCon);
+            DataInputStream swhIn = NetworkUtilities.getDataInputStream(swhCon);
+
+            // tell SWH that request is for verifying a batch of licenses
+            swhOut.writeUTF("BVER");
+            deadline.write(swhOut);
+            swhOut.writeUTF(developerID);
+            swhOut.writeInt(licenses.length);
+            for (String license : licenses) {
+                swhOut.writeUTF(license);
+            }
+
+            for (int i = 0; i < licenses.length; i++) {
+                statuses[i] = swhIn.readInt();
+                // a SWH that can only say its services are down is not healthy
+                healthy |= statuses[i] != -2;
+                // until every library is received, the transfer counts as interrupted
+                interrupted[i] = statuses[i] == 0;
+            }
+            refusedAll = !healthy;
+
+            boolean received = true;
+            for (int i = 0; i < licenses.length; i++) {
+                if (statuses[i] == 0) {
+                    Map<String, byte[]> bundle = new LinkedHashMap<String, byte[]>();
+                    if (received && NetworkUtilities.readBundle(swhCon, bundle)) {
+                        bundles.set(i, bundle);
+                    } else {
+                        // the rest of the stream cannot be trusted, so nothing from this SWH
+                        // will be used
+                        received = false;
+                    }
+                }
+            }
+            if (received) {
+                Arrays.fill(interrupted, false);
+            } else {
+                for (int i = 0; i < licenses.length; i++) {
+                    if (statuses[i] == 0) {
+                        statuses[i] = -2;
+                        bundles.set(i, null);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (isAbandoned()) {
+                Log.log("Abandoned verification with %s\n", endpoint);
+            } else {
+                Log.error("Encountered I/O issue getting libraries from " + endpoint);
+                e.printStackTrace();
+            }
+            boolean expired = deadline.isExpired();
+            for (int i = 0; i < licenses.length; i++) {
+                statuses[i] = expired ? -6 : -2;
+                bundles.set(i, null);
+            }
+            healthy = false;
+        }
+        finishedAt = System.nanoTime();
+        return this;
+    }
+
+    /**
+     * ACKs every verified license, so that the SWH consumes them, and closes the connection.
+     * @throws IOException if the ACKs could not be sent
+     */
+    void ack() throws IOException {
+        DataOutputStream swhOut = new DataOutputStream(swhCon.getOutputStream());
+        for (int status : statuses) {
+            if (status == 0) {
+                swhOut.writeInt(0);
+            }
+        }
+        swhOut.flush();
+        swhCon.close();
+    }
+
+    /**
+     * Gives up on the attempt without ACKing anything, so that the SWH consumes nothing. An attempt
+     * still waiting on the SWH fails straight away.
+     */
+    synchronized void abandon() {
+        abandoned = true;
+        if (swhCon != null) {
+            try {
+                swhCon.close();
+            } catch (IOException e) {
+                Log.error("Could not close connection to " + endpoint);
+            }
+        }
+    }
+
+    /**
+     * @return whether the attempt has been given up on
+     */
+    synchronized boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * @return the SWH endpoint, as host:port
+     */
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the status code of each license
+     */
+    int[] getStatuses() {
+        return statuses;
+    }
+
+    /**
+     * @param i the index of a license
+     * @return the library the license unlocks, by path within a JAR, or null if it was not
+     * verified
+     */
+    Map<String, byte[]> getBundle(int i) {
+        return bundles.get(i);
+    }
+
+    /**
+     * @param i the index of a license
+     * @return true if the SWH accepted the license but its library was not received in full; the
+     * SWH keeps the license reserved, with the library it compiled for it, so it can be sent
+     * again
+     */
+    boolean wasInterrupted(int i) {
+        return interrupted[i];
+    }
+
+    /**
+     * @return the number of licenses that were verified
+     */
+    int verified() {
+        int n = 0;
+        for (int status : statuses) {
+            if (status == 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return whether the SWH answered with anything but unavailable services
+     */
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return whether the SWH answered, but refused every license as unavailable, as a replica
+     * does until it takes over from its primary
+     */
+    boolean refusedAll() {
+        return refusedAll;
+    }
+
+    /**
+     * @return how long the attempt took, in nanoseconds
+     */
+    long getLatencyNanos() {
+        return finishedAt - startedAt;
+    }
+}
@@ -0,0 +1,308 @@
+package snp.linker;
+
+import snp.Log;
+
+/**
+ * Tracks the health of one SWH, so that the Linker can stop sending it work while it is failing.
+ * The breaker starts closed, letting every request through, and remembers whether each of the
+ * last few requests succeeded. Once enough of them have failed it opens, and requests are refused
+ * straight away instead of waiting for connections that will not succeed. After a cool-down the
+ * breaker lets a single trial request through: if it succeeds the breaker closes again, and if it
+ * fails the breaker stays open for another cool-down.
+ * Health probes are kept apart from requests, since a SWH may answer a probe while failing every
+ * request. They never use up the trial request or count towards the failure rate; instead a run
+ * of failed probes opens the breaker, a failed probe keeps an open breaker open, and a breaker
+ * opened by probes is closed again by a probe that succeeds.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states a breaker can be in.
+     */
+    public enum State {
+        /** Requests are let through. */
+        CLOSED,
+        /** Requests are refused until the cool-down ends. */
+        OPEN,
+        /** A single trial request is let through to see whether the SWH has recovered. */
+        HALF_OPEN
+    }
+
+    /**
+     * The number of recent requests whose outcomes are remembered.
+     */
+    private static final int WINDOW = 10;
+
+    /**
+     * The number of outcomes needed before the failure rate is trusted.
+     */
+    private static final int MIN_CALLS = 4;
+
+    /**
+     * The failure rate at which the breaker opens.
+     */
+    private static final double FAILURE_RATE = 0.5;
+
+    /**
+     * How long the breaker stays open before letting a trial request through, in milliseconds.
+     */
+    private static final long OPEN_MILLIS = 5000;
+
+    /**
+     * The number of health probes in a row that must fail before a closed breaker opens.
+     */
+    private static final int PROBE_FAILURES_TO_OPEN = 3;
+
+    /**
+     * How much weight the latest latency is given in the moving average.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    /**
+     * The SWH this breaker guards, as host:port, for logging.
+     */
+    private final String name;
+
+    /**
+     * The outcomes of recent requests, as a ring; true for a failure.
+     */
+    private final boolean[] outcomes = new boolean[WINDOW];
+
+    /**
+     * The number of outcomes in the ring, the number of those that are failures, and the index the
+     * next outcome goes in.
+     */
+    private int calls = 0, failures = 0, next = 0;
+
+    /**
+     * The current state.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * When the breaker last opened, in milliseconds.
+     */
+    private long openedAt;
+
+    /**
+     * Whether the trial request of a half open breaker has been let through.
+     */
+    private boolean trialInFlight = false;
+
+    /**
+     * Whether the breaker was last opened by failed health probes rather than failed requests.
+     */
+    private boolean openedByProbes = false;
+
+    /**
+     * The number of health probes that have failed in a row.
+     */
+    private int probeFailures = 0;
+
+    /**
+     * When a request was last let through or refused, in milliseconds.
+     */
+    private long lastRequestAt = System.currentTimeMillis();
+
+    /**
+     * The moving average latency of requests that got work done, in milliseconds; -1 until the
+     * first.
+     */
+    private double latencyMillis = -1;
+
+    /**
+     * The moving average round trip time of answered health probes, in milliseconds; -1 until
+     * the first. Kept apart from latencyMillis, since a probe is answered far quicker than real
+     * work.
+     */
+    private double probeRttMillis = -1;
+
+    /**
+     * Number of requests refused whilst the breaker was open.
+     */
+    private long refused = 0;
+
+    /**
+     * @param name the SWH this breaker guards, as host:port
+     */
+    public CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Asks whether a request may be sent to the SWH. A request that is let through must have its
+     * outcome reported with recordSuccess or recordFailure.
+     * @return true if the request may be sent, false if it should fail straight away
+     */
+    public synchronized boolean allowRequest() {
+        lastRequestAt = System.currentTimeMillis();
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= OPEN_MILLIS) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+        refused++;
+        return false;
+    }
+
+    /**
+     * Reports that a request reached the SWH and got work done.
+     * @param latencyNanos how long the request took, in nanoseconds
+     */
+    public synchronized void recordSuccess(long latencyNanos) {
+        latencyMillis = average(latencyMillis, latencyNanos);
+        recordSuccess();
+    }
+
+    /**
+     * Reports that a request reached the SWH and was answered, but without getting any work done
+     * (e.g. every license was refused), so that how long it took says little about the SWH.
+     */
+    public synchronized void recordSuccess() {
+        if (state == State.HALF_OPEN) {
+            Log.log("SWH %s has recovered, closing its circuit\n", name);
+            state = State.CLOSED;
+            calls = failures = next = 0;
+        } else {
+            record(false);
+        }
+    }
+
+    /**
+     * Reports that a request could not reach the SWH, or that the SWH could not answer it.
+     */
+    public synchronized void recordFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (calls >= MIN_CALLS && failures >= FAILURE_RATE * calls) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Reports that a request which was let through was given up on before the SWH answered, for
+     * reasons that say nothing about the SWH's health (e.g. another SWH answered it first).
+     */
+    public synchronized void recordAbandoned() {
+        if (state == State.HALF_OPEN) {
+            // let another request try instead
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * Asks whether the SWH should be sent a health probe, without affecting the breaker.
+     * @return false whilst the breaker is open and cooling down, true otherwise
+     */
+    public synchronized boolean shouldProbe() {
+        return state != State.OPEN || System.currentTimeMillis() - openedAt >= OPEN_MILLIS;
+    }
+
+    /**
+     * Reports the outcome of a health probe.
+     * @param answered whether the SWH answered the probe in time
+     * @param rttNanos how long the probe took, in nanoseconds
+     */
+    public synchronized void recordProbe(boolean answered, long rttNanos) {
+        if (answered) {
+            probeRttMillis = average(probeRttMillis, rttNanos);
+            probeFailures = 0;
+            if (state != State.CLOSED && openedByProbes) {
+                Log.log("SWH %s is answering probes again, closing its circuit\n", name);
+                state = State.CLOSED;
+                calls = failures = next = 0;
+            }
+        } else if (state != State.CLOSED) {
+            // no use letting a trial request through to a SWH that cannot even be probed
+            open();
+            openedByProbes = true;
+        } else if (++probeFailures >= PROBE_FAILURES_TO_OPEN) {
+            open();
+            openedByProbes = true;
+        }
+    }
+
+    /**
+     * @param idleMillis how long the breaker may go without requests, in milliseconds
+     * @return true if no request has been let through or refused for idleMillis
+     */
+    public synchronized boolean isIdle(long idleMillis) {
+        return System.currentTimeMillis() - lastRequestAt >= idleMillis;
+    }
+
+    /**
+     * @return the moving average latency of requests that got work done, in milliseconds, or -1
+     * if none have yet; health probes do not count
+     */
+    public synchronized double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return a human readable summary of the SWH's health
+     */
+    public synchronized String getStatistics() {
+        return String.format("%s: state=%s recent-failures=%d/%d avg-latency-ms=%.1f refused=%d "
+                + "probe-rtt-ms=%.1f failed-probes=%d", name, state, failures, calls,
+                latencyMillis, refused, probeRttMillis, probeFailures);
+    }
+
+    /**
+     * @param average a moving average, in milliseconds, or -1 if it has no samples yet
+     * @param sampleNanos the latest sample, in nanoseconds
+     * @return the moving average with the sample added, in milliseconds
+     */
+    private static double average(double average, long sampleNanos) {
+        double millis = sampleNanos / 1e6;
+        return average < 0 ? millis : LATENCY_WEIGHT * millis + (1 - LATENCY_WEIGHT) * average;
+    }
+
+    /**
+     * Adds an outcome to the ring, forgetting the oldest if the ring is full.
+     * @param failed whether the request failed
+     */
+    private void record(boolean failed) {
+        if (calls == WINDOW) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % WINDOW;
+    }
+
+    /**
+     * Opens the breaker.
+     */
+    private void open() {
+        Log.log("SWH %s is failing, opening its circuit for %dms\n", name, OPEN_MILLIS);
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        openedByProbes = false;
+        probeFailures = 0;
+        calls = failures = next = 0;
+    }
+}
@@ -0,0 +1,436 @@
+package snp.linker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import snp.Deadline;
+import snp.Log;
+import snp.NetworkUtilities;
+import snp.SecurityUtilities;
+
+/**
+ * Spreads link jobs over a pool of Linker worker processes, which may run on several hosts.
+ * Developers connect to the Dispatcher exactly as they would to a Linker. The Dispatcher reads
+ * the job's deadline and ID, hands the job to the worker with the fewest jobs in flight (see
+ * WorkerRegistry), then relays the rest of the conversation between the Developer and the worker
+ * untouched, so neither needs to know the Dispatcher is there. If the worker cannot be reached,
+ * the job is handed to the next worker, since nothing of it has been sent yet.
+ * Workers register on a separate control port, proving that they belong to our company by
+ * signing a challenge with the private key of our key store, and renew their registration
+ * every few seconds. A worker about to shut down drains: it is sent no new jobs, and asks how
+ * many of its jobs are still in flight until none are, then for as long as it keeps the results
+ * of its jobs, so that Developers retrying them are still sent to it.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class Dispatcher {
+
+    /**
+     * How long a worker's registration lasts unless it is renewed, in milliseconds; workers
+     * renew theirs every third of this.
+     */
+    public static final long LEASE_MILLIS = 6000;
+
+    /**
+     * Sent to a worker in place of a Developer's deadline to open a relayed job. Developers send
+     * the milliseconds they will wait, which are never this far below zero.
+     */
+    public static final long RELAY_MARKER = Long.MIN_VALUE;
+
+    /**
+     * How long a Developer or worker has to send its command and deadline once connected, in
+     * milliseconds.
+     */
+    private static final int COMMAND_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The longest deadline we honour, in milliseconds; Developers asking for more get this much.
+     */
+    private static final long MAX_DEADLINE_MILLIS = 120000;
+
+    /**
+     * The number of random bytes a worker signs to prove who it is.
+     */
+    private static final int CHALLENGE_BYTES = 32;
+
+    /**
+     * The size of the buffer each direction of a relayed job is copied through, in bytes.
+     */
+    private static final int RELAY_BUFFER_BYTES = 8192;
+
+    /**
+     * The server connection Developers connect to.
+     */
+    private SSLServerSocket serverConnection;
+
+    /**
+     * The server connection workers register on.
+     */
+    private SSLServerSocket controlConnection;
+
+    /**
+     * Provides SSLSockets for relaying jobs to workers; initialised with a trust store holding
+     * the workers' certificate.
+     */
+    private SSLSocketFactory sslFact;
+
+    /**
+     * The private key and certificate of our key store, against which workers' signatures are
+     * checked; null if they could not be loaded, in which case no worker can register.
+     */
+    private KeyStore.PrivateKeyEntry identity;
+
+    /**
+     * The workers jobs are handed to.
+     */
+    private final WorkerRegistry workers = new WorkerRegistry(LEASE_MILLIS);
+
+    /**
+     * Runs relayed jobs and control requests.
+     */
+    private final ExecutorService relays = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "dispatch-relay");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * @param portNumber the port Developers connect to
+     * @param controlPort the port workers register on
+     * @param keyFile the relative path to the keystore, which should be the workers' own
+     * @param keyStorePW the password to access the keystore specified by keyfile
+     * @param trustFile the relative path to a truststore holding the workers' certificate
+     * @param trustStorePW the password to access the truststore specified by trustfile
+     * @throws UnknownHostException if this host cannot be determined
+     * @throws IOException if an I/O error occurs
+     */
+    public Dispatcher(int portNumber, int controlPort, String keyFile, String keyStorePW,
+            String trustFile, String trustStorePW) throws UnknownHostException, IOException {
+        sslFact = SecurityUtilities.getSSLSocketFactory(trustFile, trustStorePW);
+        identity = SecurityUtilities.getPrivateKeyEntry(keyFile, keyStorePW);
+        SSLServerSocketFactory sslServFact =
+                SecurityUtilities.getSSLServerSocketFactory(keyFile, keyStorePW);
+        serverConnection = (SSLServerSocket) sslServFact.createServerSocket(portNumber, 0,
+                InetAddress.getLocalHost());
+        controlConnection = (SSLServerSocket) sslServFact.createServerSocket(controlPort, 0,
+                InetAddress.getLocalHost());
+        Log.log("Created a new Dispatcher at %s:%d, taking registrations on port %d\n",
+                InetAddress.getLocalHost().getCanonicalHostName(), portNumber, controlPort);
+    }
+
+    /**
+     * Accepts registrations on a thread of its own, and Developers' jobs on this one.
+     */
+    private void processRequests() {
+        Thread control = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(controlConnection, true);
+            }
+        }, "dispatch-control");
+        control.setDaemon(true);
+        control.start();
+        acceptLoop(serverConnection, false);
+    }
+
+    /**
+     * Accepts connections for ever, handling each on a relay thread.
+     * @param server the server connection to accept on
+     * @param isControl true if the connections are from workers, false if from Developers
+     */
+    private void acceptLoop(SSLServerSocket server, final boolean isControl) {
+        while (true) {
+            SSLSocket s = null;
+            try {
+                s = (SSLSocket) server.accept();
+            } catch (IOException e) {
+                Log.error("I/O error whilst accepting socket");
+                e.printStackTrace();
+            }
+            if (s != null) {
+                final SSLSocket accepted = s;
+                relays.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isControl) {
+                            handleControl(accepted);
+                        } else {
+                            dispatchJob(accepted);
+                        }
+                        closeQuietly(accepted);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Hands a Developer's link job to a worker and relays the conversation between them. We
+     * first prove to the worker that the job is relayed by us (see proveRelay), then pass the
+     * Developer's deadline on as it stands, so the worker keeps to it, and both connections time
+     * out when it passes. The deadline is followed by the Developer's host name, which the worker
+     * would otherwise take to be ours.
+     * @param connection the Developer's connection
+     */
+    private void dispatchJob(SSLSocket connection) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        Deadline deadline = null;
+        String jobID = null;
+        if (inStream != null) {
+            try {
+                connection.setSoTimeout(COMMAND_TIMEOUT_MILLIS);
+                deadline = Deadline.read(inStream, MAX_DEADLINE_MILLIS);
+                jobID = inStream.readUTF();
+                deadline.applyTo(connection);
+            } catch (IOException e) {
+                Log.error("Could not read deadline and job ID");
+                e.printStackTrace();
+            }
+        }
+        if (jobID == null) {
+            return;
+        }
+
+        Set<String> tried = new HashSet<String>();
+        while (true) {
+            WorkerRegistry.Worker worker = workers.acquire(jobID, tried);
+            if (worker == null) {
+                // the Developer sees the connection drop, and retries the job or gives up
+                Log.log("No Linker worker can take job %s\n", jobID);
+                return;
+            }
+            String address = worker.getAddress();
+            int colon = address.lastIndexOf(':');
+            SSLSocket workerCon = null;
+            try {
+                workerCon = deadline.connect(sslFact, address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1)));
+                proveRelay(workerCon);
+            } catch (IOException e) {
+                Log.log("Could not reach worker %s for job %s: %s\n", address, jobID,
+                        e.getMessage());
+                if (workerCon != null) {
+                    closeQuietly(workerCon);
+                }
+                workers.fail(worker);
+                tried.add(address);
+                continue;
+            }
+            try {
+                Log.log("Dispatching job %s to %s\n", jobID, address);
+                DataOutputStream workerOut = new DataOutputStream(workerCon.getOutputStream());
+                deadline.write(workerOut);
+                workerOut.writeUTF(connection.getInetAddress().getCanonicalHostName());
+                workerOut.writeUTF(jobID);
+                relay(connection, inStream, workerCon);
+            } catch (IOException e) {
+                Log.error("Lost job %s on %s: %s\n", jobID, address, e.getMessage());
+            } finally {
+                closeQuietly(workerCon);
+                workers.release(worker);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Proves to a worker that the job it is being sent is relayed by us, so that it believes the
+     * Developer we say the job came from. We send RELAY_MARKER in place of a deadline, and the
+     * worker sends a challenge, as a length and random bytes, which we sign with the private key
+     * of our key store, the workers' own; the worker answers 0 if the signature matches its
+     * certificate, and -1 otherwise.
+     * @param workerCon the worker's connection
+     * @throws IOException if the handshake failed, or the worker did not accept our signature
+     */
+    private void proveRelay(SSLSocket workerCon) throws IOException {
+        DataInputStream workerIn = new DataInputStream(workerCon.getInputStream());
+        DataOutputStream workerOut = new DataOutputStream(workerCon.getOutputStream());
+        workerOut.writeLong(RELAY_MARKER);
+        int length = workerIn.readInt();
+        if (length < 0 || length > 4096) {
+            throw new IOException("Implausible length " + length);
+        }
+        byte[] challenge = new byte[length];
+        workerIn.readFully(challenge);
+        byte[] signature = identity == null ? null
+                : SecurityUtilities.sign(identity.getPrivateKey(), challenge);
+        if (signature == null) {
+            throw new IOException("could not sign the worker's challenge");
+        }
+        workerOut.writeInt(signature.length);
+        workerOut.write(signature);
+        if (workerIn.readInt() != 0) {
+            throw new IOException("worker did not accept our signature");
+        }
+    }
+
+    /**
+     * Copies everything the Developer sends to the worker, and everything the worker sends back
+     * to the Developer, until the worker is finished with the job.
+     * @param connection the Developer's connection
+     * @param devIn the stream from the Developer, which its deadline and job ID have been read
+     * from
+     * @param workerCon the worker's connection
+     * @throws IOException if either connection fails
+     */
+    private void relay(final SSLSocket connection, final InputStream devIn,
+            final SSLSocket workerCon) throws IOException {
+        final OutputStream workerOut = workerCon.getOutputStream();
+        relays.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    copy(devIn, workerOut);
+                } catch (IOException e) {
+                    // the worker is done once it closes its side, which ends this copy too
+                }
+            }
+        });
+        copy(workerCon.getInputStream(), connection.getOutputStream());
+    }
+
+    /**
+     * Copies a stream until it ends.
+     * @param in the stream to copy from
+     * @param out the stream to copy to, flushed after each read so nothing waits in between
+     * @throws IOException if either stream fails
+     */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[RELAY_BUFFER_BYTES];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+            out.flush();
+        }
+    }
+
+    /**
+     * Answers a control request. The request is a command and a deadline: STAT is answered with
+     * a human readable summary of the workers; REG and DRAIN are followed by a challenge, as a
+     * length and random bytes, which the worker must sign with the private key of our key store
+     * and send back, as a length and signature. We answer -1 if the signature does not match our
+     * own certificate, and otherwise 0, after which the worker sends its address as host:port.
+     * REG registers the worker, or renews its registration, and is answered 0, or -1 if the worker
+     * is draining. DRAIN stops sending the worker new jobs, renews its registration so that
+     * retried jobs are still sent to it, and is answered with the number of its jobs still in
+     * flight, or -1 if it is not registered.
+     * @param connection the worker's connection
+     */
+    private void handleControl(SSLSocket connection) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+        if (inStream == null || outStream == null) {
+            return;
+        }
+        try {
+            connection.setSoTimeout(COMMAND_TIMEOUT_MILLIS);
+            String command = inStream.readUTF();
+            Deadline.read(inStream, MAX_DEADLINE_MILLIS).applyTo(connection);
+            if (command.equalsIgnoreCase("STAT")) {
+                outStream.writeUTF(workers.getStatistics());
+                return;
+            }
+            if (!command.equalsIgnoreCase("REG") && !command.equalsIgnoreCase("DRAIN")) {
+                return;
+            }
+
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            new SecureRandom().nextBytes(challenge);
+            outStream.writeInt(challenge.length);
+            outStream.write(challenge);
+            int length = inStream.readInt();
+            byte[] signature = new byte[length < 0 || length > 4096 ? 0 : length];
+            inStream.readFully(signature);
+            if (identity == null || !SecurityUtilities.verify(
+                    identity.getCertificate().getPublicKey(), challenge, signature)) {
+                Log.log("Worker at %s could not prove it is one of us, refusing %s\n",
+                        connection.getInetAddress().getHostAddress(), command);
+                outStream.writeInt(-1);
+                return;
+            }
+            outStream.writeInt(0);
+
+            String address = inStream.readUTF();
+            if (command.equalsIgnoreCase("REG")) {
+                boolean renewed = workers.register(address);
+                outStream.writeInt(renewed ? 0 : -1);
+            } else {
+                int inFlight = workers.drain(address);
+                Log.log("Draining worker %s, %d jobs still in flight\n", address, inFlight);
+                outStream.writeInt(inFlight);
+            }
+        } catch (IOException e) {
+            Log.error("I/O error whilst answering control request");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes a connection, ignoring any error.
+     * @param connection the connection to close
+     */
+    private static void closeQuietly(SSLSocket connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.error("I/O error whilst closing socket");
+        }
+    }
+
+    /**
+     * The main program for running the Dispatcher.
+     * 6 arguments are expected and they should be given in this order:
+     * [portNumber] [control portNumber] [keyStore filepath] [keystore password]
+     * [truststore filepath] [truststore password]
+     * The key store should be the Linkers' own, since Developers connect to the Dispatcher as they
+     * would to a Linker, and the trust store should hold the Linkers' certificate.
+     * @param args the arguments that are expected
+     */
+    public static void main(String[] args) {
+        if (args.length != 6) {
+            System.err.println("Usage: needs 6 arguments.");
+            System.err.println("\tArgument 1 = port number");
+            System.err.println("\tArgument 2 = control port number, where Linkers register");
+            System.err.println("\tArgument 3 = keystore filepath");
+            System.err.println("\tArgument 4 = keystore password");
+            System.err.println("\tArgument 5 = truststore filepath");
+            System.err.println("\tArgument 6 = truststore password");
+            System.exit(1);
+        }
+
+        Dispatcher dispatcher = null;
+        try {
+            dispatcher = new Dispatcher(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                    args[2], args[3], args[4], args[5]);
+        } catch (UnknownHostException e) {
+            Log.error("Could not resolve hostname");
+            e.printStackTrace();
+        } catch (IOException e) {
+            Log.error("I/O error whilst establishing new Dispatcher");
+            e.printStackTrace();
+        }
+        if (dispatcher != null) {
+            dispatcher.processRequests();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package snp.linker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import snp.Deadline;
+import snp.Log;
+import snp.SecurityUtilities;
+
+/**
+ * A Linker's registration with the Dispatcher that hands it link jobs.
+ * The registration is renewed every third of the Dispatcher's lease, so a Linker that dies is
+ * forgotten within a lease, and one that misses a renewal or two is not. Each request proves
+ * that the Linker belongs to our company by signing the Dispatcher's challenge with the private
+ * key of our key store.
+ * Jobs the Dispatcher relays to us open with a handshake instead of the Developer's deadline, in
+ * which the Dispatcher proves it is one of us by signing our challenge with the same private key;
+ * only then do we believe the Developer it says the job came from.
+ * Before shutting down, a Linker drains: it stops renewing its registration and asks the
+ * Dispatcher to send it no new jobs, then waits until every job it was sent has finished. Only we
+ * keep the results of those jobs, so we then carry on answering the Developers that retry them,
+ * which the Dispatcher still sends back to us, until every result has expired.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class DispatcherLease {
+
+    /**
+     * How often the registration is renewed, in milliseconds.
+     */
+    private static final long RENEW_MILLIS = Dispatcher.LEASE_MILLIS / 3;
+
+    /**
+     * How long a request to the Dispatcher may take, in milliseconds.
+     */
+    private static final long REQUEST_MILLIS = 2000;
+
+    /**
+     * How long to wait between asking how many jobs are still in flight whilst draining, in
+     * milliseconds.
+     */
+    private static final long DRAIN_POLL_MILLIS = 500;
+
+    /**
+     * The number of random bytes the Dispatcher signs to prove a job is relayed by it.
+     */
+    private static final int CHALLENGE_BYTES = 32;
+
+    /**
+     * The Dispatcher's host.
+     */
+    private final String host;
+
+    /**
+     * The Dispatcher's control port.
+     */
+    private final int port;
+
+    /**
+     * Makes connections to the Dispatcher, trusting its certificate.
+     */
+    private final SSLSocketFactory factory;
+
+    /**
+     * The private key and certificate of our key store: we sign the Dispatcher's challenges with
+     * the key, and check its signatures against the certificate.
+     */
+    private final KeyStore.PrivateKeyEntry identity;
+
+    /**
+     * This Linker, as host:port, which the Dispatcher relays jobs to.
+     */
+    private final String address;
+
+    /**
+     * Renews the registration.
+     */
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "dispatcher-lease");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * @param dispatcher the Dispatcher's control port, as host:port
+     * @param factory makes connections to the Dispatcher, trusting its certificate
+     * @param identity the private key and certificate of our key store
+     * @param address this Linker, as host:port
+     * @throws IllegalArgumentException if the Dispatcher is not host:port
+     */
+    public DispatcherLease(String dispatcher, SSLSocketFactory factory,
+            KeyStore.PrivateKeyEntry identity, String address) {
+        int colon = dispatcher.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException(dispatcher);
+        }
+        this.host = dispatcher.substring(0, colon);
+        this.port = Integer.parseInt(dispatcher.substring(colon + 1));
+        this.factory = factory;
+        this.identity = identity;
+        this.address = address;
+    }
+
+    /**
+     * Registers with the Dispatcher, and keeps renewing the registration on a thread of its own.
+     */
+    public void start() {
+        renewer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (request("REG") != 0) {
+                        Log.log("Dispatcher %s:%d will not take %s on\n", host, port, address);
+                    }
+                } catch (IOException e) {
+                    Log.error("Could not renew registration with Dispatcher %s:%d: %s\n", host,
+                            port, e.getMessage());
+                }
+            }
+        }, 0, RENEW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops renewing the registration, asks the Dispatcher to send us no new jobs, and waits
+     * until none of the jobs it sent us are in flight, then until none of their results are
+     * kept. Each DRAIN keeps the Dispatcher from forgetting us meanwhile, so that it sends us
+     * the Developers retrying those jobs.
+     * @param results the results of our jobs
+     */
+    public void drain(LinkResults results) {
+        renewer.shutdownNow();
+        boolean lingering = false;
+        while (true) {
+            long pollMillis = DRAIN_POLL_MILLIS;
+            try {
+                int inFlight = request("DRAIN");
+                if (inFlight < 0) {
+                    // the Dispatcher has already forgotten us, so no retry will reach us
+                    return;
+                }
+                if (inFlight > 0) {
+                    Log.log("Draining, %d jobs still in flight\n", inFlight);
+                } else if (!results.hasResults()) {
+                    return;
+                } else {
+                    if (!lingering) {
+                        Log.log("Drained, answering retries until our results expire\n");
+                        lingering = true;
+                    }
+                    pollMillis = RENEW_MILLIS;
+                }
+            } catch (IOException e) {
+                Log.error("Could not drain from Dispatcher %s:%d: %s\n", host, port,
+                        e.getMessage());
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks that a job was relayed by our Dispatcher, once the Developer's connection has sent
+     * Dispatcher.RELAY_MARKER in place of its deadline. We send a challenge, as a length and
+     * random bytes, which the Dispatcher must sign with the private key of our key store and
+     * send back, as a length and signature; we answer 0 if the signature matches our own
+     * certificate, and -1 otherwise.
+     * @param inStream the stream from the connection
+     * @param outStream the stream to the connection
+     * @return true if the Dispatcher proved who it is
+     * @throws IOException if the handshake could not be completed
+     */
+    public boolean acceptRelay(DataInputStream inStream, DataOutputStream outStream)
+            throws IOException {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        new SecureRandom().nextBytes(challenge);
+        outStream.writeInt(challenge.length);
+        outStream.write(challenge);
+        int length = inStream.readInt();
+        byte[] signature = new byte[length < 0 || length > 4096 ? 0 : length];
+        inStream.readFully(signature);
+        boolean proven = SecurityUtilities.verify(identity.getCertificate().getPublicKey(),
+                challenge, signature);
+        outStream.writeInt(proven ? 0 : -1);
+        return proven;
+    }
+
+    /**
+     * Sends a control request to the Dispatcher, proving who we are.
+     * @param command REG or DRAIN
+     * @return the Dispatcher's answer (see Dispatcher)
+     * @throws IOException if the request could not be made, or our signature was refused
+     */
+    private int request(String command) throws IOException {
+        Deadline deadline = Deadline.in(REQUEST_MILLIS);
+        SSLSocket connection = deadline.connect(factory, host, port);
+        try {
+            DataInputStream inStream = new DataInputStream(connection.getInputStream());
+            DataOutputStream outStream = new DataOutputStream(connection.getOutputStream());
+            outStream.writeUTF(command);
+            deadline.write(outStream);
+
+            int length = inStream.readInt();
+            if (length < 0 || length > 4096) {
+                throw new IOException("Implausible length " + length);
+            }
+            byte[] challenge = new byte[length];
+            inStream.readFully(challenge);
+            byte[] signature = SecurityUtilities.sign(identity.getPrivateKey(), challenge);
+            if (signature == null) {
+                throw new IOException("could not sign the Dispatcher's challenge");
+            }
+            outStream.writeInt(signature.length);
+            outStream.write(signature);
+            if (inStream.readInt() != 0) {
+                throw new IOException("Dispatcher did not accept our signature");
+            }
+            outStream.writeUTF(address);
+            return inStream.readInt();
+        } finally {
+            connection.close();
+        }
+    }
+}
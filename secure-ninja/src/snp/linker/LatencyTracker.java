@@ -0,0 +1,62 @@
+package snp.linker;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the latencies of recent requests, so that percentiles of them can be estimated.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class LatencyTracker {
+
+    /**
+     * The most recent latencies, in nanoseconds, as a ring.
+     */
+    private final long[] samples;
+
+    /**
+     * The number of latencies in the ring, and the index the next latency goes in.
+     */
+    private int count = 0, next = 0;
+
+    /**
+     * @param size the number of recent latencies to remember
+     */
+    public LatencyTracker(int size) {
+        samples = new long[size];
+    }
+
+    /**
+     * Records the latency of a request, forgetting the oldest latency if the ring is full.
+     * @param nanos the latency, in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * @return the number of latencies remembered
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @param fraction the percentile wanted, as a fraction (e.g. 0.95)
+     * @return the latency below which that fraction of the remembered latencies fall, in
+     * milliseconds, or -1 if none have been recorded
+     */
+    public synchronized long percentileMillis(double fraction) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = Math.min(count - 1, (int) Math.ceil(fraction * count) - 1);
+        return sorted[Math.max(0, index)] / 1000000L;
+    }
+}
@@ -0,0 +1,266 @@
+package snp.linker;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import snp.Log;
+
+/**
+ * The results of recent link jobs, by the job ID the Developer gave them.
+ * Licenses are consumed as soon as their SWH has sent us the library, so if the Developer's
+ * connection drops before it has its JAR, the job cannot simply be run again. Instead, the
+ * verified libraries are kept here as soon as the SWHs have answered, and the finished JAR once it
+ * is packaged; a Developer retrying the job with the same ID and licenses is sent those rather
+ * than having its licenses verified again.
+ * Results expire after a while, and the least recently used results are evicted once they take up
+ * too much memory.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class LinkResults {
+
+    /**
+     * The result of one link job.
+     */
+    public static class Result {
+
+        /**
+         * Identifies the developer the job was for.
+         */
+        private final String developerID;
+
+        /**
+         * The encrypted licenses the job was run with.
+         */
+        private final String[] licenses;
+
+        /**
+         * The status code of each license.
+         */
+        private final int[] statuses;
+
+        /**
+         * The libraries the licenses unlocked, by path within a JAR.
+         */
+        private final Map<String, byte[]> libraries;
+
+        /**
+         * The finished JAR; null until packaged.
+         */
+        private byte[] jar;
+
+        /**
+         * When the result expires, on the System.nanoTime clock.
+         */
+        private final long expiresAt;
+
+        /**
+         * @param developerID identifies the developer the job was for
+         * @param licenses the encrypted licenses the job was run with
+         * @param statuses the status code of each license
+         * @param libraries the libraries the licenses unlocked, by path within a JAR
+         * @param expiresAt when the result expires, on the System.nanoTime clock
+         */
+        private Result(String developerID, String[] licenses, int[] statuses,
+                Map<String, byte[]> libraries, long expiresAt) {
+            this.developerID = developerID;
+            this.licenses = licenses;
+            this.statuses = statuses;
+            this.libraries = libraries;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return the status code of each license
+         */
+        public int[] getStatuses() {
+            return statuses;
+        }
+
+        /**
+         * @return the libraries the licenses unlocked, by path within a JAR
+         */
+        public Map<String, byte[]> getLibraries() {
+            return libraries;
+        }
+
+        /**
+         * @return the finished JAR, or null if it has not been packaged
+         */
+        public synchronized byte[] getJar() {
+            return jar;
+        }
+
+        /**
+         * @return the memory the result takes up, roughly, in bytes
+         */
+        private synchronized long size() {
+            long size = jar == null ? 0 : jar.length;
+            for (byte[] library : libraries.values()) {
+                size += library.length;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * How long a result is kept, in nanoseconds.
+     */
+    private final long ttlNanos;
+
+    /**
+     * The most memory results may take up, in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * The results, least recently used first.
+     */
+    private final LinkedHashMap<String, Result> results =
+            new LinkedHashMap<String, Result>(16, 0.75f, true);
+
+    /**
+     * The memory the results take up, in bytes.
+     */
+    private long bytes = 0;
+
+    /**
+     * Number of jobs answered from a result, and number of results evicted before they expired.
+     */
+    private long hits = 0, evictions = 0;
+
+    /**
+     * @param ttlMillis how long a result is kept, in milliseconds
+     * @param maxBytes the most memory results may take up, in bytes
+     */
+    public LinkResults(long ttlMillis, long maxBytes) {
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param jobID the job ID the Developer gave
+     * @param developerID identifies the developer asking
+     * @param licenses the encrypted licenses the job is being run with
+     * @return the result of the job, or null if there is none, or the developer or licenses do not
+     * match those the job was first run with
+     */
+    public synchronized Result get(String jobID, String developerID, String[] licenses) {
+        Result result = results.get(jobID);
+        if (result == null) {
+            return null;
+        }
+        if (result.expiresAt - System.nanoTime() <= 0) {
+            remove(jobID);
+            return null;
+        }
+        if (!result.developerID.equals(developerID) || !Arrays.equals(result.licenses, licenses)) {
+            return null;
+        }
+        hits++;
+        return result;
+    }
+
+    /**
+     * Keeps the verified libraries of a job. A job that consumed none of its licenses is not kept,
+     * since running it again costs the Developer nothing and may well go better. Nor is a job whose
+     * ID already has a result, since every kept result consumed licenses, and replacing it would
+     * lose libraries that cannot be verified again.
+     * @param jobID the job ID the Developer gave
+     * @param developerID identifies the developer the job is for
+     * @param licenses the encrypted licenses the job was run with
+     * @param statuses the status code of each license
+     * @param libraries the libraries the licenses unlocked, by path within a JAR
+     * @return the result
+     */
+    public synchronized Result put(String jobID, String developerID, String[] licenses,
+            int[] statuses, Map<String, byte[]> libraries) {
+        long now = System.nanoTime();
+        Result result = new Result(developerID, licenses, statuses, libraries, now + ttlNanos);
+        boolean consumed = false;
+        for (int status : statuses) {
+            consumed |= status == 0;
+        }
+        if (!consumed) {
+            return result;
+        }
+        Result kept = results.get(jobID);
+        if (kept != null) {
+            if (kept.expiresAt - now > 0) {
+                Log.log("Job %s already has a result, not replacing it\n", jobID);
+                return result;
+            }
+            remove(jobID);
+        }
+        results.put(jobID, result);
+        bytes += result.size();
+        evict();
+        return result;
+    }
+
+    /**
+     * Keeps the finished JAR of a job.
+     * @param result the job's result
+     * @param jar the finished JAR
+     */
+    public synchronized void setJar(Result result, byte[] jar) {
+        if (!results.containsValue(result)) {
+            // evicted whilst the JAR was being packaged
+            return;
+        }
+        bytes -= result.size();
+        synchronized (result) {
+            result.jar = jar;
+        }
+        bytes += result.size();
+        evict();
+    }
+
+    /**
+     * @return true if any result is still kept
+     */
+    public synchronized boolean hasResults() {
+        evict();
+        return !results.isEmpty();
+    }
+
+    /**
+     * @return a human readable summary of the results kept
+     */
+    public synchronized String getStatistics() {
+        return String.format("results=%d bytes=%d hits=%d evictions=%d", results.size(), bytes,
+                hits, evictions);
+    }
+
+    /**
+     * Forgets a result.
+     * @param jobID the job ID of the result
+     */
+    private void remove(String jobID) {
+        Result old = results.remove(jobID);
+        if (old != null) {
+            bytes -= old.size();
+        }
+    }
+
+    /**
+     * Forgets expired results, then the least recently used results until the rest fit in memory.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        Iterator<Result> it = results.values().iterator();
+        while (it.hasNext()) {
+            Result result = it.next();
+            if (result.expiresAt - now <= 0) {
+                bytes -= result.size();
+                it.remove();
+            } else if (bytes > maxBytes) {
+                bytes -= result.size();
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+}
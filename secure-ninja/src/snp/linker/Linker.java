@@ -1,15 +1,38 @@
 package snp.linker;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 
@@ -18,9 +41,14 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLServerSocket;
 
+import snp.Deadline;
+import snp.LicenseToken;
 import snp.Log;
 import snp.NetworkUtilities;
 import snp.SecurityUtilities;
+import snp.ShardRing;
+import snp.SingleFlight;
+import snp.linker.OfflineVerifier.SealedLicense;
 
 /**
  * Our LinkBroker software agent.
@@ -48,6 +76,168 @@ public class Linker {
      */
     private SSLSocketFactory sslFact;
 
+    /**
+     * How long to wait before retrying licenses that a SWH was too overloaded to compile, in
+     * milliseconds.
+     */
+    private static final int OVERLOAD_RETRY_MILLIS = 500;
+
+    /**
+     * How long a Developer has to send its deadline once connected, in milliseconds.
+     */
+    private static final int COMMAND_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The longest deadline we honour, in milliseconds; Developers asking for more get this much.
+     */
+    private static final long MAX_DEADLINE_MILLIS = 120000;
+
+    /**
+     * How much of a Developer's deadline we keep back from the SWHs, in milliseconds, so that
+     * there is time left to build the JAR and send it once the SWHs have answered.
+     */
+    private static final long LINK_MARGIN_MILLIS = 2000;
+
+    /**
+     * How often every SWH we have dealt with is sent a health probe, in milliseconds.
+     */
+    private static final long PROBE_INTERVAL_MILLIS = 2000;
+
+    /**
+     * How long a SWH's circuit breaker is kept, and the SWH probed, after the last request for it,
+     * in milliseconds.
+     */
+    private static final long BREAKER_IDLE_MILLIS = 600000;
+
+    /**
+     * How long a SWH has to answer a health probe, in milliseconds.
+     */
+    private static final long PROBE_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * How long the result of a link job is kept for the Developer to retry it, in milliseconds.
+     */
+    private static final long RESULT_TTL_MILLIS = 600000;
+
+    /**
+     * The most memory the results of link jobs may take up, in bytes.
+     */
+    private static final long RESULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The results of recent link jobs, so that a Developer can retry a job without its licenses
+     * being used again.
+     */
+    private final LinkResults results = new LinkResults(RESULT_TTL_MILLIS, RESULT_CACHE_BYTES);
+
+    /**
+     * The link jobs whose licenses are being verified, so that a Developer retrying a job whose
+     * first run has not kept its result yet waits for that result rather than missing it.
+     */
+    private final SingleFlight<LinkResults.Result> jobsInFlight =
+            new SingleFlight<LinkResults.Result>();
+
+    /**
+     * The most link jobs run at once; connections beyond these are dropped.
+     */
+    private static final int MAX_JOBS = 64;
+
+    /**
+     * Runs the link jobs of accepted connections, each on its own thread, so that a slow
+     * Developer or SWH does not hold up the jobs behind it, and a retry that arrives whilst its
+     * first run is still verifying can wait for that run (see jobsInFlight).
+     */
+    private final ExecutorService jobs = new ThreadPoolExecutor(0, MAX_JOBS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "link-job");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * The most SWH endpoints a batch of licenses is sent to at once.
+     */
+    private static final int MAX_ATTEMPTS = 2;
+
+    /**
+     * The number of BVER latencies needed before their 95th percentile is trusted as a hedge delay.
+     */
+    private static final int MIN_HEDGE_SAMPLES = 10;
+
+    /**
+     * How long to wait before hedging a BVER until enough latencies have been seen, in
+     * milliseconds.
+     */
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 1000;
+
+    /**
+     * The shortest time to wait before hedging a BVER, in milliseconds, so that a run of fast
+     * answers does not have every batch sent twice.
+     */
+    private static final long MIN_HEDGE_DELAY_MILLIS = 20;
+
+    /**
+     * The most licenses sent to a SWH in a single BVER, which is the most a SWH will take; a
+     * larger batch is sent in several BVERs.
+     */
+    private static final int MAX_BATCH_LICENSES = 1024;
+
+    /**
+     * How long a replica that answered a BVER without verifying anything, as replicas do until
+     * they take over from their primary, is left out of hedging, in milliseconds.
+     */
+    private static final long READ_ONLY_MILLIS = 30000;
+
+    /**
+     * The latencies of recent BVERs that verified licenses, from which the hedge delay is worked
+     * out.
+     */
+    private final LatencyTracker latencies = new LatencyTracker(128);
+
+    /**
+     * Runs the BVERs sent to SWHs, so that a slow one can be hedged with another.
+     */
+    private final ExecutorService verifiers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "swh-verifier");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Verifies licenses sealed by their SWHs without contacting the SWHs on every link.
+     */
+    private OfflineVerifier offline;
+
+    /**
+     * The SWHs of a cluster that splits its licenses between them, by which licenses we can see
+     * can also be sent to the SWH they belong to; null if there is no such cluster.
+     */
+    private ShardRing shardRing;
+
+    /**
+     * The health of each SWH we have dealt with, by host:port.
+     */
+    private final ConcurrentMap<String, CircuitBreaker> breakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /**
+     * When each replica that last answered a BVER as a read-only replica may next be hedged
+     * with, in nanoseconds (System.nanoTime()), by host:port.
+     */
+    private final ConcurrentMap<String, Long> readOnlyUntil = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Our registration with the Dispatcher that hands us link jobs; null if Developers connect to
+     * us directly.
+     */
+    private DispatcherLease lease;
+
     /**
      * Linker's constructor.
      * @param portNumber the port the linker server's ServerSocket listens on
@@ -62,6 +252,7 @@ public class Linker {
     public Linker(int portNumber, String keyFile, String keyStorePW, String trustFile, String trustStorePW)
             throws UnknownHostException, IOException {
         sslFact = (SSLSocketFactory) SecurityUtilities.getSSLSocketFactory(trustFile, trustStorePW);
+        offline = new OfflineVerifier(sslFact);
         sslServFact = (SSLServerSocketFactory) SecurityUtilities.getSSLServerSocketFactory(
                 keyFile, keyStorePW);
         serverConnection = (SSLServerSocket) sslServFact.createServerSocket(portNumber, 0,
@@ -70,10 +261,54 @@ public class Linker {
                 .getCanonicalHostName(), portNumber);
     }
     
+    /**
+     * Registers with a Dispatcher, which then hands us link jobs for as long as we keep renewing
+     * the registration.
+     * @param dispatcher the Dispatcher's control port, as host:port
+     * @param trustFile the relative path to a truststore holding the Dispatcher's certificate
+     * @param trustStorePW the password to access the truststore specified by trustFile
+     * @param keyFile the relative path to our keystore, whose private key proves who we are
+     * @param keyStorePW the password to access the keystore specified by keyFile
+     * @return false if our keystore could not be loaded
+     */
+    private boolean joinDispatcher(String dispatcher, String trustFile, String trustStorePW,
+            String keyFile, String keyStorePW) {
+        KeyStore.PrivateKeyEntry identity = SecurityUtilities.getPrivateKeyEntry(keyFile,
+                keyStorePW);
+        if (identity == null) {
+            return false;
+        }
+        String address = serverConnection.getInetAddress().getHostAddress() + ":"
+                + serverConnection.getLocalPort();
+        lease = new DispatcherLease(dispatcher,
+                SecurityUtilities.getSSLSocketFactory(trustFile, trustStorePW), identity, address);
+        lease.start();
+        Log.log("Taking link jobs from Dispatcher %s as %s\n", dispatcher, address);
+        return true;
+    }
+
     /**
      * Private method to process the request from developer.
+     * Each accepted connection is packaged on a thread of its own (see jobs); if MAX_JOBS are
+     * already running, the connection is dropped and the Developer may retry it.
      */
     private void processRequests() {
+        ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "swh-prober");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeAll();
+            }
+        }, PROBE_INTERVAL_MILLIS, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
         while (true) {
             SSLSocket s = null;
             try {
@@ -86,22 +321,33 @@ public class Linker {
             }
 
             if (s != null) {
-                packageJarFile(s);
+                final SSLSocket accepted = s;
                 try {
-                    s.close();
-                } catch (IOException e) {
-                    Log.error("I/O error whilst closing" + " socket");
-                    e.printStackTrace();
+                    jobs.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            packageJarFile(accepted);
+                            closeSocket(accepted);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.log("Too many link jobs in progress, dropping connection\n");
+                    closeSocket(s);
                 }
             }
-            
-            // note that it is possible for the temporary JAR to be left behind --- we ought to
-            // clean up the temporary file that is left behind
-            File tempJar = new File("temp.jar");
-            if (tempJar.exists()) {
-                Log.log("Performing cleanup");
-                tempJar.delete();
-            }
+        }
+    }
+
+    /**
+     * Closes a connection from a developer.
+     * @param s the connection
+     */
+    private static void closeSocket(SSLSocket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            Log.error("I/O error whilst closing" + " socket");
+            e.printStackTrace();
         }
     }
 
@@ -112,36 +358,60 @@ public class Linker {
      * 
      * If the JAR cannot successfully be packaged, the Linker will attempt to provide as much
      * information as possible to the Developer to explain what went wrong.
+     * The request starts with the Developer's deadline. Every read from the Developer or a SWH
+     * times out when that deadline passes, so a hung peer cannot hold up the Linker for longer
+     * than the Developer would have waited anyway.
+     * A job relayed by our Dispatcher starts with Dispatcher.RELAY_MARKER instead, and the
+     * Dispatcher then proves who it is (see DispatcherLease.acceptRelay) before sending the
+     * Developer's deadline and host name.
+     * The deadline is followed by a job ID of the Developer's choosing. A Developer whose
+     * connection dropped part-way through may send the job again with the same ID and licenses,
+     * and is answered from the job's kept result: the libraries verified the first time, and the
+     * finished JAR if it got that far, in which case the Developer is told not to send its class
+     * files again.
      * @param connection socket connecting to developer
      */
     private void packageJarFile(SSLSocket connection) {
         DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
         DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
 
+        Deadline deadline = null;
+        String developerID = connection.getInetAddress().getCanonicalHostName();
         if (inStream != null && outStream != null) {
-            // JAR Creation: specify manifest
-            JarOutputStream jarOut = null;
-            Manifest manifest = null;
             try {
-                manifest = new Manifest();
-                manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
-                manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, ".");
-
-                String mainFile = inStream.readUTF();
-                manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainFile);
-
-                Log.log("main-point: " + mainFile);
+                connection.setSoTimeout(COMMAND_TIMEOUT_MILLIS);
+                long millis = inStream.readLong();
+                if (millis != Dispatcher.RELAY_MARKER) {
+                    deadline = Deadline.in(Math.min(millis, MAX_DEADLINE_MILLIS));
+                } else if (lease != null && lease.acceptRelay(inStream, outStream)) {
+                    // jobs relayed by our Dispatcher say which Developer they came from
+                    deadline = Deadline.read(inStream, MAX_DEADLINE_MILLIS);
+                    developerID = inStream.readUTF();
+                } else {
+                    Log.log("%s could not prove it is our Dispatcher, refusing its job\n",
+                            developerID);
+                }
+                if (deadline != null) {
+                    deadline.applyTo(connection);
+                }
+            } catch (IOException e) {
+                Log.error("Could not read deadline");
+                e.printStackTrace();
+            }
+        }
 
-                jarOut = new JarOutputStream(new FileOutputStream("temp.jar"), manifest);
-            } catch (FileNotFoundException e1) {
-                Log.error("Could not create temp.jar");
-                e1.printStackTrace();
-            } catch (IOException e1) {
-                Log.error("I/O error whilst constructing JarOutputStream");
-                e1.printStackTrace();
+        if (deadline != null) {
+            String jobID = null, mainFile = null;
+            try {
+                jobID = inStream.readUTF();
+                mainFile = inStream.readUTF();
+                Log.log("job: %s, main-point: %s\n", jobID, mainFile);
+            } catch (IOException e) {
+                Log.error("Could not read job ID and main-point");
+                e.printStackTrace();
             }
 
-            if (jarOut != null && manifest != null) {
+            if (mainFile != null) {
                 int nLicenses = 0;
                 try {
                     Log.log("Reading number of licenses");
@@ -155,10 +425,12 @@ public class Linker {
                 int count = 0;
 
                 if (nLicenses > 0) {
-                    // read and verify each license
+                    // read every license before verifying any of them, so that all the licenses
+                    // for one SWH can be verified in a single round-trip
+                    List<List<String>> endpoints = new ArrayList<List<String>>();
+                    String[] licenses = new String[nLicenses];
+                    SealedLicense[] sealed = new SealedLicense[nLicenses];
                     for (int i = 0; i < nLicenses; i++) {
-                        String swhIP = null, license = null;
-                        int swhPort = -1;
                         // here, we ask the developer to tell us the SWH to contact
                         // this seems sensible, since a SWH might provide multiple libraries
                         // or a library MAY be provided by multiple software houses
@@ -168,122 +440,86 @@ public class Linker {
                         // we also note that the port number would usually be a range of numbers
                         // that the SWH and Linker agree to use beforehand.
                         try {
-                            swhIP = inStream.readUTF();
-                            swhPort = inStream.readInt();
-                            license = inStream.readUTF();
+                            // the issuing SWH comes first, followed by its replicas
+                            List<String> candidates = new ArrayList<String>();
+                            candidates.add(inStream.readUTF() + ":" + inStream.readInt());
+                            licenses[i] = inStream.readUTF();
+                            int nReplicas = inStream.readInt();
+                            for (int j = 0; j < nReplicas; j++) {
+                                candidates.add(inStream.readUTF() + ":" + inStream.readInt());
+                            }
+                            endpoints.add(candidates);
+                            // a license its SWH has sealed comes with its library and
+                            // unencrypted form, so that we can check the seal ourselves
+                            String seal = inStream.readUTF();
+                            if (!seal.isEmpty()) {
+                                sealed[i] = new SealedLicense(inStream.readUTF(),
+                                        inStream.readUTF(), seal);
+                            }
                         } catch (IOException e) {
                             Log.error("Could not read license information");
                             e.printStackTrace();
+                            count = -1;
                             break;
                         }
+                    }
 
-                        if (swhIP != null && license != null && swhPort != -1) {
-                            SSLSocket swhCon;
-                            try {
-                                Log.log("Establishing socket to " + swhIP + ":"
-                                        + swhPort);
-                                swhCon = (SSLSocket) sslFact.createSocket(swhIP, swhPort);
-                                DataOutputStream swhOut = NetworkUtilities
-                                        .getDataOutputStream(swhCon);
-                                DataInputStream swhIn = NetworkUtilities.getDataInputStream(swhCon);
-
-                                // tell SWH that request is for license verify
-                                swhOut.writeUTF("VER");
-
-                                swhOut.writeUTF(license);
-                                swhOut.writeUTF(connection.getInetAddress().getCanonicalHostName());
-                                
-                                // writes success code to the Dev and SWH to inform them of the
-                                // result and ACK the response resp.
-                                int success = swhIn.readInt();
-                                outStream.writeInt(success);
-                                swhOut.writeInt(success);
-
-                                if (success == 0 && NetworkUtilities.readFile(swhCon, jarOut, true)) {
-                                    Log.log("Successfully read file");
-                                    Log.log("Notifying SWH and Dev");
+                    LinkResults.Result result = null;
+                    if (count != -1) {
+                        result = runJob(jobID, developerID, endpoints, licenses, sealed,
+                                deadline.earlierBy(LINK_MARGIN_MILLIS));
+                        int[] statuses = result == null ? new int[nLicenses] : result.getStatuses();
+                        if (result == null) {
+                            Log.error("Job %s did not finish in time\n", jobID);
+                            Arrays.fill(statuses, -6);
+                        }
+                        try {
+                            // writes success code to the Dev for each license, in the order the
+                            // Dev sent them
+                            for (int status : statuses) {
+                                outStream.writeInt(status);
+                                if (status == 0) {
                                     count++;
-                                } else {
-                                    swhCon.close();
-                                    jarOut.close();
-                                    break;
                                 }
-
-                                swhCon.close();
-                            } catch (UnknownHostException e) {
-                                Log.error("Could not resolve SWH IP");
-                                e.printStackTrace();
-                            } catch (IOException e) {
-                                Log.error("Encountered I/O issue getting library");
-                                e.printStackTrace();
-                            }
-                        } else {
-                            try {
-                                // could not read license information
-                                Log.log("License information could not be read --- exiting");
-                                outStream.writeBoolean(false);
-                                count = -1;
-                                break;
-                            } catch (IOException e) {
-                                Log.error("Could not tell developer that we could not read " +
-                                		"licenses");
-                                e.printStackTrace();
-                                count = -1;
-                                break;
                             }
+                        } catch (IOException e) {
+                            Log.error("Could not notify developer of license verification");
+                            e.printStackTrace();
+                            count = -1;
                         }
+                    } else {
+                        // could not read license information
+                        Log.log("License information could not be read --- exiting");
                     }
 
                     if (count == nLicenses) {
-                        Log.log("Successfully read all files into JAR");
+                        Log.log("Successfully verified all licenses");
+                        byte[] jar = result.getJar();
                         try {
                             outStream.writeBoolean(true);
+                            // tell the developer whether we still need its class files
+                            outStream.writeBoolean(jar == null);
                         } catch (IOException e) {
                             Log.error("Could not notify developer of success");
                             e.printStackTrace();
                         }
 
-                        Log.log("Reading class files from Developer");
-                        int nFiles = -1;
-                        try {
-                            nFiles = inStream.readInt();
-                            count = 0;
-
-                            for (int i = 0; i < nFiles; i++) {
-                                // reading a file and intending to treat it as a JAREntry
-                                if (NetworkUtilities.readFile(connection, jarOut, true)) {
-                                    count++;
-                                } else {
-                                    Log.log("Could not read files to JAR");
-                                    break;
-                                }
+                        if (jar == null) {
+                            jar = packageJar(connection, inStream, mainFile,
+                                    result.getLibraries(), deadline);
+                            if (jar != null) {
+                                results.setJar(result, jar);
                             }
-                        } catch (IOException e) {
-                            Log.error("IO Exception whilst reading class files");
-                            e.printStackTrace();
-                        }
-
-                        try {
-                            jarOut.close();
-                        } catch (IOException e) {
-                            Log.error("Could not properly close JarOutputStream");
-                            e.printStackTrace();
+                        } else {
+                            Log.log("Job %s was packaged before, resending its JAR\n", jobID);
                         }
 
-                        if (nFiles > 0 && count == nFiles) {
-                            File jarFile = new File("temp.jar");
-                            if (NetworkUtilities.writeFile(connection, jarFile, "temp.jar")) {
+                        if (jar != null) {
+                            if (NetworkUtilities.writeEntry(connection, jar, "link.jar")) {
                                 Log.log("Sent JAR file successfully");
                             } else {
                                 Log.log("Could not send JAR file");
                             }
-
-                            Log.log("Cleanup: deleting JAR file");
-                            if (jarFile.delete()) {
-                                Log.log("Successfully deleted temp.jar");
-                            } else {
-                                Log.error("Could not delete temp.jar");
-                            }
                         }
                     } else {
                         try {
@@ -301,29 +537,563 @@ public class Linker {
             NetworkUtilities.closeSocketDataInputStream(inStream, connection);
             NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
 
+            Log.log("Link results: %s\n", results.getStatistics());
+            Log.log("Offline verification: %s\n", offline.getStatistics());
             Log.logEnd();
         }
     }
 
+    /**
+     * Verifies the licenses of a link job, or answers it from the job's kept result. A job that is
+     * already being verified is waited for rather than verified again, so a retry that arrives
+     * before the first run has kept its result does not miss it.
+     * @param jobID the job ID the Developer gave
+     * @param developerID identifies the developer the job is for
+     * @param endpoints the SWHs to contact for each license, the issuing SWH first
+     * @param licenses the encrypted licenses
+     * @param sealed the sealed form of each license, or null for those the SWH did not seal
+     * @param deadline when the licenses must be verified by
+     * @return the result of the job, or null if it did not finish by the deadline
+     */
+    private LinkResults.Result runJob(final String jobID, final String developerID,
+            final List<List<String>> endpoints, final String[] licenses,
+            final SealedLicense[] sealed, final Deadline deadline) {
+        StringBuilder key = new StringBuilder(developerID).append(' ').append(jobID);
+        for (String license : licenses) {
+            key.append(' ').append(license);
+        }
+        return jobsInFlight.run(key.toString(), new Callable<LinkResults.Result>() {
+            @Override
+            public LinkResults.Result call() {
+                LinkResults.Result kept = results.get(jobID, developerID, licenses);
+                if (kept != null) {
+                    Log.log("Job %s has been run before, reusing its result\n", jobID);
+                    return kept;
+                }
+                Map<String, byte[]> libraries = new LinkedHashMap<String, byte[]>();
+                int[] statuses = verifyLicenses(endpoints, licenses, sealed, developerID,
+                        libraries, deadline);
+                return results.put(jobID, developerID, licenses, statuses, libraries);
+            }
+        }, deadline);
+    }
+
+    /**
+     * Packages a JAR from the libraries verified for it and the class files the Developer sends.
+     * @param connection socket connecting to developer
+     * @param inStream the stream the developer is writing its class files to
+     * @param mainFile the main class of the JAR
+     * @param libraries the verified libraries, by path within a JAR
+     * @param deadline when the developer must have sent its class files by
+     * @return the JAR, or null if it could not be packaged
+     */
+    private byte[] packageJar(SSLSocket connection, DataInputStream inStream, String mainFile,
+            Map<String, byte[]> libraries, Deadline deadline) {
+        // JAR Creation: specify manifest
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, ".");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainFile);
+
+        ByteArrayOutputStream jar = new ByteArrayOutputStream();
+        int nFiles = -1, count = 0;
+        try {
+            JarOutputStream jarOut = new JarOutputStream(jar, manifest);
+            for (Map.Entry<String, byte[]> entry : libraries.entrySet()) {
+                jarOut.putNextEntry(new JarEntry(entry.getKey()));
+                jarOut.write(entry.getValue());
+            }
+
+            Log.log("Reading class files from Developer");
+            deadline.applyTo(connection);
+            nFiles = inStream.readInt();
+            for (int i = 0; i < nFiles; i++) {
+                // reading a file and intending to treat it as a JAREntry
+                if (NetworkUtilities.readFile(connection, jarOut, true)) {
+                    count++;
+                } else {
+                    Log.log("Could not read files to JAR");
+                    break;
+                }
+            }
+            jarOut.close();
+        } catch (IOException e) {
+            Log.error("IO Exception whilst packaging JAR");
+            e.printStackTrace();
+            return null;
+        }
+        return nFiles > 0 && count == nFiles ? jar.toByteArray() : null;
+    }
+
+    /**
+     * Verifies licenses with the SWHs that issued them, or their replicas, collecting the
+     * libraries they unlock. Licenses that share a SWH and replicas are verified together in a
+     * single BVER round-trip.
+     * Licenses sealed by their SWH are verified here instead, without a round-trip (see
+     * OfflineVerifier), unless the SWH's key or the library's class files cannot be fetched, in
+     * which case they are verified with the SWH like the rest.
+     * A SWH that is overloaded with compilations is given one more try, after a short pause, for
+     * the licenses it turned away. Licenses whose libraries were cut off in transfer are sent once
+     * more, straight away, to the SWH that accepted them; it keeps them reserved for us along with
+     * the libraries it compiled for them, so it does not consume them twice, and only compiles
+     * them again if it has had to evict those libraries meanwhile.
+     * @param endpoints the SWH endpoints, as host:port, that can verify each license; the issuing
+     * SWH first, followed by its replicas
+     * @param licenses the encrypted licenses
+     * @param sealed each license's unencrypted form and seal, or null if its SWH did not seal it
+     * @param developerID identifies the developer the licenses are being used for
+     * @param libraries where the verified libraries are put, by path within a JAR
+     * @param deadline when the SWHs must have answered by
+     * @return the status code for each license: 0 if the library was collected, -1 if the
+     * SWH rejected the license, -2 if the SWH could not provide the library, -3 if the SWH was
+     * too busy to look at the license, -4 if the SWH was still too overloaded to compile it, -5
+     * if the SWH is throttling us for sending too many verifications, -6 if the SWH did not
+     * answer before the deadline and -7 if the SWH has been failing and was not contacted
+     */
+    private int[] verifyLicenses(List<List<String>> endpoints, String[] licenses,
+            SealedLicense[] sealed, String developerID, Map<String, byte[]> libraries,
+            Deadline deadline) {
+        int[] statuses = new int[licenses.length];
+        Map<List<String>, List<Integer>> batches =
+                new LinkedHashMap<List<String>, List<Integer>>();
+        for (int i = 0; i < licenses.length; i++) {
+            if (sealed[i] != null) {
+                statuses[i] = offline.verify(endpoints.get(i), sealed[i], developerID,
+                        libraries, deadline);
+                if (statuses[i] != -2) {
+                    continue;
+                }
+                if (shardRing != null) {
+                    routeToShard(endpoints.get(i), sealed[i]);
+                }
+                Log.log("Could not verify license offline, asking %s\n", endpoints.get(i));
+            }
+            List<String> key = endpoints.get(i);
+            if (!batches.containsKey(key)) {
+                batches.put(key, new ArrayList<Integer>());
+            }
+            batches.get(key).add(i);
+        }
+
+        Map<List<String>, List<Integer>> resend = new LinkedHashMap<List<String>, List<Integer>>();
+        for (Map.Entry<List<String>, List<Integer>> batch : batches.entrySet()) {
+            verifyBatch(batch.getValue(), batch.getKey(), licenses, developerID, libraries,
+                    statuses, deadline, resend);
+        }
+        for (Map.Entry<List<String>, List<Integer>> batch : resend.entrySet()) {
+            Log.log("Resending %d interrupted licenses to %s\n", batch.getValue().size(),
+                    batch.getKey().get(0));
+            verifyBatch(batch.getValue(), batch.getKey(), licenses, developerID, libraries,
+                    statuses, deadline, null);
+        }
+
+        Map<List<String>, List<Integer>> overloaded =
+                new LinkedHashMap<List<String>, List<Integer>>();
+        for (Map.Entry<List<String>, List<Integer>> batch : batches.entrySet()) {
+            List<Integer> retry = new ArrayList<Integer>();
+            for (int i : batch.getValue()) {
+                if (statuses[i] == -4) {
+                    retry.add(i);
+                }
+            }
+            if (!retry.isEmpty()) {
+                overloaded.put(batch.getKey(), retry);
+            }
+        }
+
+        if (!overloaded.isEmpty() && deadline.remainingMillis() > OVERLOAD_RETRY_MILLIS) {
+            Log.log("Some SWHs are overloaded; retrying them in %dms\n", OVERLOAD_RETRY_MILLIS);
+            try {
+                Thread.sleep(OVERLOAD_RETRY_MILLIS);
+                for (Map.Entry<List<String>, List<Integer>> batch : overloaded.entrySet()) {
+                    verifyBatch(batch.getValue(), batch.getKey(), licenses, developerID, libraries,
+                            statuses, deadline, null);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Makes sure a license of a SWH cluster can reach the SWH of the cluster it belongs to, which
+     * the license itself tells us. The SWH that issued the license still comes first, as it is the
+     * one that holds the license: if the cluster has changed since the license was issued, the
+     * license belongs to a different SWH of the ring than its issuer, which has never heard of it.
+     * The SWH it belongs to is only tried after the issuer, in case the Developer named the wrong
+     * SWH of the cluster.
+     * @param endpoints the SWH endpoints the Developer gave for the license, issuing SWH first;
+     * the SWH the license belongs to is added after the issuing SWH if it is not among them
+     * @param sealed the license, whose unencrypted form we can see
+     */
+    private void routeToShard(List<String> endpoints, SealedLicense sealed) {
+        if (shardRing.indexOf(endpoints.get(0)) < 0) {
+            // not a license of the cluster
+            return;
+        }
+        String owner;
+        try {
+            owner = shardRing.ownerAddress(LicenseToken.fromHex(sealed.getLicense()));
+        } catch (IllegalArgumentException e) {
+            // the seal will not check out either
+            return;
+        }
+        if (!endpoints.contains(owner)) {
+            Log.log("License belongs to %s, trying it after %s\n", owner, endpoints.get(0));
+            endpoints.add(1, owner);
+        }
+    }
+
+    /**
+     * Verifies licenses that can all be verified by the same SWH endpoints in a single BVER
+     * round-trip, collecting the libraries they unlock.
+     * The endpoint with the lowest observed latency is tried first. If it has not answered once
+     * the usual (95th percentile) BVER latency has passed, or answers without verifying every
+     * license, the batch is sent to the next best endpoint as well, and the better answer is used.
+     * Only the answer that is used is ACKed, so the other SWH consumes nothing.
+     * A batch of more than MAX_BATCH_LICENSES is verified in pieces of that size, since a SWH
+     * rejects every license of a larger BVER.
+     * A replica answers -2 to every license until it takes over from its primary, so one that
+     * has just done so is only tried when the SWHs before it cannot be contacted at all, not to
+     * hedge a slow or unsatisfying answer.
+     * @param batch the indices of the licenses to verify
+     * @param endpoints the SWH endpoints that can verify the licenses, issuing SWH first
+     * @param licenses the encrypted licenses
+     * @param developerID identifies the developer the licenses are being used for
+     * @param libraries where the verified libraries are put, by path within a JAR
+     * @param statuses where the status code of each license in the batch is stored
+     * @param deadline when the SWH must have answered by
+     * @param resend where licenses whose libraries were cut off in transfer are added, under the
+     * SWH that accepted them, to be sent again; or null if they are not to be sent again
+     */
+    private void verifyBatch(List<Integer> batch, List<String> endpoints, String[] licenses,
+            String developerID, Map<String, byte[]> libraries, int[] statuses, Deadline deadline,
+            Map<List<String>, List<Integer>> resend) {
+        if (batch.size() > MAX_BATCH_LICENSES) {
+            for (int from = 0; from < batch.size(); from += MAX_BATCH_LICENSES) {
+                verifyBatch(new ArrayList<Integer>(batch.subList(from,
+                        Math.min(batch.size(), from + MAX_BATCH_LICENSES))), endpoints, licenses,
+                        developerID, libraries, statuses, deadline, resend);
+            }
+            return;
+        }
+        String[] batchLicenses = new String[batch.size()];
+        for (int j = 0; j < batch.size(); j++) {
+            batchLicenses[j] = licenses[batch.get(j)];
+        }
+        List<String> ranked = rankEndpoints(endpoints);
+        CompletionService<BatchAttempt> completion =
+                new ExecutorCompletionService<BatchAttempt>(verifiers);
+        List<BatchAttempt> running = new ArrayList<BatchAttempt>();
+        List<BatchAttempt> answered = new ArrayList<BatchAttempt>();
+
+        int next = startAttempt(ranked, 0, batchLicenses, developerID, deadline, completion,
+                running, false);
+        if (running.isEmpty()) {
+            Log.log("SWHs %s are unhealthy, not contacting them\n", endpoints);
+            for (int i : batch) {
+                statuses[i] = -7;
+            }
+            return;
+        }
+
+        BatchAttempt winner = null;
+        try {
+            while (winner == null && !running.isEmpty()) {
+                boolean canHedge = next < ranked.size() && running.size() + answered.size()
+                        < MAX_ATTEMPTS;
+                long wait = deadline.remainingMillis();
+                if (canHedge) {
+                    wait = Math.min(wait, hedgeDelayMillis());
+                }
+                Future<BatchAttempt> done = wait > 0
+                        ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    if (!canHedge || deadline.isExpired()) {
+                        break;
+                    }
+                    Log.log("%s is slow, hedging with the next SWH\n",
+                            running.get(0).getEndpoint());
+                    next = startAttempt(ranked, next, batchLicenses, developerID, deadline,
+                            completion, running, true);
+                    continue;
+                }
+
+                BatchAttempt attempt = done.get();
+                running.remove(attempt);
+                answered.add(attempt);
+                CircuitBreaker breaker = breakerFor(attempt.getEndpoint());
+                if (attempt.isHealthy() && attempt.verified() > 0) {
+                    breaker.recordSuccess(attempt.getLatencyNanos());
+                    latencies.record(attempt.getLatencyNanos());
+                } else if (attempt.isHealthy()) {
+                    // a quick refusal says nothing of how long verifying takes, and would make
+                    // the SWH look fast and shrink the hedge delay
+                    breaker.recordSuccess();
+                } else {
+                    breaker.recordFailure();
+                }
+                if (attempt.refusedAll() && !attempt.getEndpoint().equals(endpoints.get(0))) {
+                    // most likely a replica that has not taken over from its primary
+                    readOnlyUntil.put(attempt.getEndpoint(),
+                            System.nanoTime() + READ_ONLY_MILLIS * 1000000L);
+                }
+                Log.log("SWH health: %s\n", breaker.getStatistics());
+
+                if (attempt.verified() == batch.size()) {
+                    winner = attempt;
+                } else if (running.isEmpty() && canHedge) {
+                    // no use waiting for the hedge delay; the answer we have is not good enough
+                    next = startAttempt(ranked, next, batchLicenses, developerID, deadline,
+                            completion, running, true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.error("Verification attempt failed unexpectedly");
+            e.printStackTrace();
+        }
+
+        for (BatchAttempt attempt : running) {
+            attempt.abandon();
+            breakerFor(attempt.getEndpoint()).recordAbandoned();
+        }
+        if (winner == null) {
+            // the answer verifying the most licenses is the best, preferring the issuing SWH
+            for (BatchAttempt attempt : answered) {
+                if (winner == null || attempt.verified() > winner.verified()
+                        || (attempt.verified() == winner.verified() && endpoints.indexOf(
+                                attempt.getEndpoint()) < endpoints.indexOf(winner.getEndpoint()))) {
+                    winner = attempt;
+                }
+            }
+        }
+        for (BatchAttempt attempt : answered) {
+            if (attempt != winner) {
+                attempt.abandon();
+            }
+        }
+
+        if (winner == null) {
+            // every SWH we asked was still working on the batch when the deadline passed
+            for (int i : batch) {
+                statuses[i] = -6;
+            }
+            return;
+        }
+
+        int[] answer = winner.getStatuses();
+        List<Integer> interrupted = new ArrayList<Integer>();
+        for (int j = 0; j < batch.size(); j++) {
+            if (winner.wasInterrupted(j)) {
+                interrupted.add(batch.get(j));
+            }
+        }
+        try {
+            // ACK the SWH, so that it only consumes the licenses we actually used
+            winner.ack();
+            for (int j = 0; j < batch.size(); j++) {
+                statuses[batch.get(j)] = answer[j];
+                if (answer[j] == 0) {
+                    libraries.putAll(winner.getBundle(j));
+                    Log.log("Successfully read library for license " + (batch.get(j) + 1));
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Could not ACK libraries from " + winner.getEndpoint());
+            e.printStackTrace();
+            winner.abandon();
+            boolean expired = deadline.isExpired();
+            for (int j = 0; j < batch.size(); j++) {
+                // anything not ACKed will not have been consumed by the SWH
+                statuses[batch.get(j)] = answer[j] == 0 ? (expired ? -6 : -2) : answer[j];
+            }
+        }
+        if (resend != null && !interrupted.isEmpty() && !deadline.isExpired()) {
+            List<String> key = Collections.singletonList(winner.getEndpoint());
+            if (!resend.containsKey(key)) {
+                resend.put(key, new ArrayList<Integer>());
+            }
+            resend.get(key).addAll(interrupted);
+        }
+    }
+
+    /**
+     * Orders the endpoints of a batch by how quickly they have been verifying licenses, fastest
+     * first. Endpoints that have not verified any yet keep their order, after those that have, so
+     * the issuing SWH is tried first until we know better; health probes are answered far quicker
+     * than real work, so they play no part.
+     * @param endpoints the SWH endpoints, issuing SWH first
+     * @return the endpoints, fastest first
+     */
+    private List<String> rankEndpoints(List<String> endpoints) {
+        List<String> ranked = new ArrayList<String>(endpoints);
+        final Map<String, Double> latency = new HashMap<String, Double>();
+        for (String endpoint : endpoints) {
+            // making the breaker means the endpoint is probed, and so measured, from now on
+            double millis = breakerFor(endpoint).getLatencyMillis();
+            latency.put(endpoint, millis < 0 ? Double.MAX_VALUE : millis);
+        }
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(latency.get(a), latency.get(b));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Starts verifying a batch with the first endpoint, from a given rank on, whose circuit
+     * breaker lets the request through. When hedging, replicas that recently answered as
+     * read-only replicas are passed over as well.
+     * @param ranked the endpoints, fastest first
+     * @param from the rank to start looking from
+     * @param licenses the encrypted licenses of the batch
+     * @param developerID identifies the developer the licenses are being used for
+     * @param deadline when the SWH must have answered by
+     * @param completion where the attempt is run
+     * @param running where the attempt is added once started
+     * @param hedging true if an attempt has already been started for the batch
+     * @return the rank to start looking from next time
+     */
+    private int startAttempt(List<String> ranked, int from, String[] licenses, String developerID,
+            Deadline deadline, CompletionService<BatchAttempt> completion,
+            List<BatchAttempt> running, boolean hedging) {
+        for (int r = from; r < ranked.size(); r++) {
+            String endpoint = ranked.get(r);
+            Long until = readOnlyUntil.get(endpoint);
+            if (hedging && until != null && System.nanoTime() - until < 0) {
+                Log.log("SWH %s is a read-only replica, not hedging with it\n", endpoint);
+                continue;
+            }
+            if (breakerFor(endpoint).allowRequest()) {
+                BatchAttempt attempt = new BatchAttempt(endpoint, sslFact, licenses, developerID,
+                        deadline);
+                completion.submit(attempt);
+                running.add(attempt);
+                return r + 1;
+            }
+            Log.log("SWH %s is unhealthy, not contacting it\n", endpoint);
+        }
+        return ranked.size();
+    }
+
+    /**
+     * @return how long to wait for a SWH to answer a BVER before hedging with another, in
+     * milliseconds: the 95th percentile of recent BVER latencies
+     */
+    private long hedgeDelayMillis() {
+        if (latencies.size() < MIN_HEDGE_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY_MILLIS;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, latencies.percentileMillis(0.95));
+    }
+
+    /**
+     * @param name a SWH, as host:port
+     * @return the circuit breaker for the SWH, made if we have not dealt with the SWH before
+     */
+    private CircuitBreaker breakerFor(String name) {
+        CircuitBreaker breaker = breakers.get(name);
+        if (breaker == null) {
+            CircuitBreaker fresh = new CircuitBreaker(name);
+            breaker = breakers.putIfAbsent(name, fresh);
+            if (breaker == null) {
+                breaker = fresh;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Sends a health probe to every SWH we have dealt with recently, unless its circuit breaker is
+     * cooling down, and reports the outcome to the breaker. This way an unreachable SWH is found
+     * out by probes rather than by a Developer's link, and one that comes back is let in again
+     * without a Developer having to risk the trial request. SWHs no request has been made for in
+     * BREAKER_IDLE_MILLIS are forgotten, so that we do not probe every SWH ever named for ever.
+     */
+    private void probeAll() {
+        for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            CircuitBreaker breaker = entry.getValue();
+            String name = entry.getKey();
+            if (breaker.isIdle(BREAKER_IDLE_MILLIS)) {
+                breakers.remove(name, breaker);
+                continue;
+            }
+            if (!breaker.shouldProbe()) {
+                continue;
+            }
+            int colon = name.lastIndexOf(':');
+            long start = System.nanoTime();
+            boolean answered = probe(name.substring(0, colon),
+                    Integer.parseInt(name.substring(colon + 1)));
+            breaker.recordProbe(answered, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sends a PING to a SWH.
+     * @param swhIP the host of the SWH
+     * @param swhPort the port of the SWH
+     * @return true if the SWH answered in time, false otherwise
+     */
+    private boolean probe(String swhIP, int swhPort) {
+        Deadline deadline = Deadline.in(PROBE_TIMEOUT_MILLIS);
+        SSLSocket swhCon = null;
+        try {
+            swhCon = deadline.connect(sslFact, swhIP, swhPort);
+            DataOutputStream swhOut = new DataOutputStream(swhCon.getOutputStream());
+            DataInputStream swhIn = new DataInputStream(swhCon.getInputStream());
+            swhOut.writeUTF("PING");
+            deadline.write(swhOut);
+            return swhIn.readInt() == 0;
+        } catch (IOException e) {
+            // probes are expected to fail whilst a SWH is down, so this is not worth a stack trace
+            Log.log("Health probe to %s:%d failed: %s\n", swhIP, swhPort, e.getMessage());
+            return false;
+        } finally {
+            if (swhCon != null) {
+                try {
+                    swhCon.close();
+                } catch (IOException e) {
+                    Log.error("Could not close health probe connection");
+                }
+            }
+        }
+    }
+
     /**
      * The main program for running Linker.
      * 5 arguments are expected and they should be given in this order:
      * [portNumber] [keyStore filepath] [keystore password] 
      * [truststore filepath] [truststore password]
+     * They may be followed by the optional settings shards=[host:port,...], every SWH of a cluster
+     * that splits its licenses between them, in the same order as the SWHs were given them;
+     * dispatcher=[host:port], the control port of a Dispatcher to take link jobs from, after which
+     * typing "drain" finishes the jobs in flight and stops; and dispatchertrust=[file], the trust
+     * store holding the Dispatcher's certificate (by default our own), opened with our trust store
+     * password.
      * @param args the arguments that are expected
      */
     public static void main(String[] args) {
-        if (args.length != 5) {
-            System.err.println("Usage: needs 5 arguments.");
+        if (args.length < 5) {
+            System.err.println("Usage: needs 5 arguments, then any optional settings.");
             System.err.println("\tArgument 1 = port number");
             System.err.println("\tArgument 2 = keystore filepath");
             System.err.println("\tArgument 3 = keystore password");
             System.err.println("\tArgument 4 = truststore filepath");
             System.err.println("\tArgument 5 = truststore password");
+            System.err.println("\tOptional settings, each as name=value:");
+            System.err.println("\t\tshards=<host:port>,... of every SWH in a cluster");
+            System.err.println("\t\tdispatcher=<host:port> of a Dispatcher's control port");
+            System.err.println("\t\tdispatchertrust=<trust store holding its certificate>");
             System.exit(1);
         }
 
-        Scanner sc = new Scanner(System.in);
+        final Scanner sc = new Scanner(System.in);
         int portNumber = Integer.parseInt(args[0]);
         String keyFile = args[1];
         String keyStorePW = args[2];
@@ -339,6 +1109,54 @@ public class Linker {
             Log.error("I/O error whilst establishing new Linker");
             e.printStackTrace();
         }
+        String dispatcher = null, dispatcherTrust = trustFile;
+        for (int i = 5; link != null && i < args.length; i++) {
+            String[] setting = args[i].split("=", 2);
+            try {
+                if (setting.length != 2) {
+                    throw new IllegalArgumentException(args[i]);
+                } else if (setting[0].equals("shards")) {
+                    link.shardRing = ShardRing.parse(setting[1]);
+                } else if (setting[0].equals("dispatcher")) {
+                    dispatcher = setting[1];
+                } else if (setting[0].equals("dispatchertrust")) {
+                    dispatcherTrust = setting[1];
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unrecognised setting: " + args[i]);
+                System.exit(1);
+            }
+        }
+        if (link != null && dispatcher != null) {
+            try {
+                if (!link.joinDispatcher(dispatcher, dispatcherTrust, trustStorePW, keyFile,
+                        keyStorePW)) {
+                    System.err.println("dispatcher=<host:port> needs our keystore's private key");
+                    System.exit(1);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unrecognised setting: dispatcher=" + dispatcher);
+                System.exit(1);
+            }
+            final DispatcherLease lease = link.lease;
+            final LinkResults results = link.results;
+            Thread drainer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (sc.hasNextLine()) {
+                        if (sc.nextLine().trim().equalsIgnoreCase("drain")) {
+                            lease.drain(results);
+                            Log.log("Drained, shutting down\n");
+                            System.exit(0);
+                        }
+                    }
+                }
+            }, "drain-listener");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
         if (link != null) {
             link.processRequests();
         }
@@ -0,0 +1,527 @@
+package snp.linker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import snp.CompileUtility;
+import snp.Deadline;
+import snp.Log;
+import snp.NetworkUtilities;
+
+/**
+ * Verifies licenses that their SWH has sealed with its signature, without a VER round-trip.
+ * A SWH serving shared classes signs each license it issues together with the library it is for,
+ * and serves every licensee the same class files, with the license in a resource next to them.
+ * So once the Linker has the SWH's public key and the library's class files, which it fetches
+ * once (with KEY and LIB) and keeps, it can check a sealed license and build the library's JAR
+ * entries itself. Replicas of the SWH serve its key and class files as well as it does, so they
+ * are fetched from a replica where the SWH has any, and only from the SWH itself if none of its
+ * replicas can send them.
+ * The SWH still has to learn that the license has been used. Consumed licenses are reported to it
+ * in batches (with CON) by a background thread, off the link's critical path, and the SWH
+ * refuses and logs any license that was already consumed. A license used twice through this
+ * Linker is refused here straight away; one used through two Linkers can only be caught by the
+ * SWH, after the fact.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class OfflineVerifier {
+
+    /**
+     * A license sealed by its SWH, as sent by the Developer.
+     */
+    public static class SealedLicense {
+
+        /**
+         * The fully qualified classname of the library the license is for.
+         */
+        private final String libraryName;
+
+        /**
+         * The unencrypted license.
+         */
+        private final String license;
+
+        /**
+         * The SWH's signature over the library name and license, in hex.
+         */
+        private final String seal;
+
+        /**
+         * @param libraryName the fully qualified classname of the library the license is for
+         * @param license the unencrypted license
+         * @param seal the SWH's signature over the library name and license, in hex
+         */
+        public SealedLicense(String libraryName, String license, String seal) {
+            this.libraryName = libraryName;
+            this.license = license;
+            this.seal = seal;
+        }
+
+        /**
+         * @return the unencrypted license
+         */
+        public String getLicense() {
+            return license;
+        }
+    }
+
+    /**
+     * The algorithm SWHs seal licenses with.
+     */
+    private static final String SIGNATURE_ALGO = "SHA256withRSA";
+
+    /**
+     * How long a library's class files are used before they are fetched again, in milliseconds,
+     * so that a new version of the library is picked up.
+     */
+    private static final long LIBRARY_TTL_MILLIS = 300000;
+
+    /**
+     * How often consumed licenses are reported to their SWHs, in milliseconds.
+     */
+    private static final long REPORT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The most licenses reported to a SWH in one CON; the SWH refuses larger batches.
+     */
+    private static final int MAX_REPORT_BATCH = 1024;
+
+    /**
+     * How long a SWH has to answer a consumption report, in milliseconds.
+     */
+    private static final long SWH_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The number of consumed licenses remembered, so that reuse through this Linker is refused.
+     */
+    private static final int MAX_REMEMBERED = 1 << 20;
+
+    /**
+     * A library's class files, and when they were fetched.
+     */
+    private static class CachedLibrary {
+
+        /**
+         * The class files, by path within a JAR.
+         */
+        private final Map<String, byte[]> entries;
+
+        /**
+         * When the class files were fetched, on the System.nanoTime clock.
+         */
+        private final long fetchedAt = System.nanoTime();
+
+        /**
+         * @param entries the class files, by path within a JAR
+         */
+        private CachedLibrary(Map<String, byte[]> entries) {
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Provides the SSLSocket for contacting SWHs.
+     */
+    private final SSLSocketFactory sslFact;
+
+    /**
+     * The public key of each SWH, by host:port.
+     */
+    private final ConcurrentMap<String, PublicKey> keys =
+            new ConcurrentHashMap<String, PublicKey>();
+
+    /**
+     * The class files of each library, by SWH host:port and library name.
+     */
+    private final ConcurrentMap<String, CachedLibrary> libraries =
+            new ConcurrentHashMap<String, CachedLibrary>();
+
+    /**
+     * Licenses consumed through this Linker, least recently used first.
+     */
+    private final Map<String, Boolean> consumed = new LinkedHashMap<String, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_REMEMBERED;
+        }
+    };
+
+    /**
+     * Consumed licenses not yet reported, each as (license, developer ID), by SWH host:port.
+     */
+    private final Map<String, List<String[]>> unreported = new HashMap<String, List<String[]>>();
+
+    /**
+     * Number of licenses verified offline, refused for a bad seal, refused for being used twice
+     * through this Linker, reported to their SWHs, and refused by their SWHs.
+     */
+    private final AtomicLong verified = new AtomicLong(), forged = new AtomicLong(),
+            reused = new AtomicLong(), reported = new AtomicLong(),
+            doubleSpent = new AtomicLong();
+
+    /**
+     * @param sslFact provides the SSLSocket for contacting SWHs
+     */
+    public OfflineVerifier(SSLSocketFactory sslFact) {
+        this.sslFact = sslFact;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "consumption-reporter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reportAll();
+            }
+        }, REPORT_INTERVAL_MILLIS, REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Verifies a sealed license, and if it is good, consumes it and collects the library it
+     * unlocks.
+     * @param endpoints the issuing SWH, followed by its replicas, each as host:port
+     * @param sealed the sealed license
+     * @param developerID identifies the developer the license is being used for
+     * @param target where the library is put, by path within a JAR
+     * @param deadline when the SWH must have answered by, if it needs to be asked for its key or
+     * the library's class files
+     * @return 0 if the library was collected, -1 if the seal is not the SWH's or the license has
+     * already been used through this Linker, or -2 if the SWH's key or the library's class files
+     * could not be fetched, in which case the license should be verified with the SWH instead
+     */
+    public int verify(List<String> endpoints, SealedLicense sealed, String developerID,
+            Map<String, byte[]> target, Deadline deadline) {
+        String endpoint = endpoints.get(0);
+        PublicKey key = keyFor(endpoints, deadline, false);
+        if (key == null) {
+            return -2;
+        }
+        if (!checkSeal(key, sealed)) {
+            // the SWH may have restarted with a new key since we fetched it
+            key = keyFor(endpoints, deadline, true);
+            if (key == null) {
+                return -2;
+            }
+            if (!checkSeal(key, sealed)) {
+                Log.log("Seal of license %s for %s is not %s's\n", sealed.license,
+                        sealed.libraryName, endpoint);
+                forged.incrementAndGet();
+                return -1;
+            }
+        }
+
+        Map<String, byte[]> entries = libraryFor(endpoints, sealed.libraryName, deadline);
+        if (entries == null) {
+            return -2;
+        }
+
+        synchronized (this) {
+            if (consumed.put(sealed.license, Boolean.TRUE) != null) {
+                Log.log("License %s has already been used through this Linker\n",
+                        sealed.license);
+                reused.incrementAndGet();
+                return -1;
+            }
+            if (!unreported.containsKey(endpoint)) {
+                unreported.put(endpoint, new ArrayList<String[]>());
+            }
+            unreported.get(endpoint).add(new String[] {sealed.license, developerID});
+        }
+        target.putAll(entries);
+        target.put(CompileUtility.licenseResourcePath(sealed.libraryName),
+                CompileUtility.licenseResource(sealed.license, sealed.seal));
+        verified.incrementAndGet();
+        return 0;
+    }
+
+    /**
+     * @return a human readable summary of offline verification
+     */
+    public synchronized String getStatistics() {
+        int pending = 0;
+        for (List<String[]> batch : unreported.values()) {
+            pending += batch.size();
+        }
+        return String.format("verified=%d forged=%d reused=%d reported=%d unreported=%d "
+                + "double-spent=%d", verified.get(), forged.get(), reused.get(), reported.get(),
+                pending, doubleSpent.get());
+    }
+
+    /**
+     * @param key the SWH's public key
+     * @param sealed a sealed license
+     * @return true if the seal is the SWH's signature over the license and its library
+     */
+    private static boolean checkSeal(PublicKey key, SealedLicense sealed) {
+        try {
+            Signature verifier = Signature.getInstance(SIGNATURE_ALGO);
+            verifier.initVerify(key);
+            verifier.update(CompileUtility.licenseSealInput(sealed.libraryName, sealed.license));
+            return verifier.verify(NetworkUtilities.hexStringToByteArray(sealed.seal));
+        } catch (GeneralSecurityException e) {
+            Log.error("Could not check seal of license " + sealed.license);
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // a seal that is not even hex
+            Log.error("Malformed seal on license " + sealed.license);
+        }
+        return false;
+    }
+
+    /**
+     * @param endpoints the issuing SWH, followed by its replicas, each as host:port
+     * @return the endpoints to fetch the SWH's key and class files from, in the order to try them:
+     * its replicas, in random order so that Linkers spread their reads between them, then the SWH
+     */
+    private static List<String> readOrder(List<String> endpoints) {
+        List<String> order = new ArrayList<String>(endpoints.subList(1, endpoints.size()));
+        Collections.shuffle(order);
+        order.add(endpoints.get(0));
+        return order;
+    }
+
+    /**
+     * @param endpoints the issuing SWH, followed by its replicas, each as host:port
+     * @param deadline when the SWH must have answered by
+     * @param refresh whether to fetch the key again even if we have it
+     * @return the SWH's public key, or null if neither it nor its replicas could send it
+     */
+    private PublicKey keyFor(List<String> endpoints, Deadline deadline, boolean refresh) {
+        PublicKey key = keys.get(endpoints.get(0));
+        if (key != null && !refresh) {
+            return key;
+        }
+        for (String source : readOrder(endpoints)) {
+            key = fetchKey(source, deadline);
+            if (key != null) {
+                keys.put(endpoints.get(0), key);
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param endpoint the SWH or replica, as host:port
+     * @param deadline when it must have answered by
+     * @return the public key it sends, or null if it could not be fetched
+     */
+    private PublicKey fetchKey(String endpoint, Deadline deadline) {
+        SSLSocket swhCon = null;
+        try {
+            Log.log("Fetching public key of %s\n", endpoint);
+            swhCon = connect(endpoint, deadline);
+            DataOutputStream swhOut = NetworkUtilities.getDataOutputStream(swhCon);
+            DataInputStream swhIn = NetworkUtilities.getDataInputStream(swhCon);
+            swhOut.writeUTF("KEY");
+            deadline.write(swhOut);
+            if (swhIn.readInt() != 0) {
+                Log.log("%s would not send its public key\n", endpoint);
+                return null;
+            }
+            byte[] encoded = new byte[swhIn.readInt()];
+            swhIn.readFully(encoded);
+            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (IOException e) {
+            Log.error("Could not fetch public key of " + endpoint);
+            e.printStackTrace();
+        } catch (GeneralSecurityException e) {
+            Log.error("Public key of " + endpoint + " is not an RSA key");
+            e.printStackTrace();
+        } finally {
+            close(swhCon);
+        }
+        return null;
+    }
+
+    /**
+     * @param endpoints the issuing SWH, followed by its replicas, each as host:port
+     * @param libraryName the fully qualified classname of the library
+     * @param deadline when the SWH must have answered by
+     * @return the library's shared class files, by path within a JAR, or null if neither the SWH
+     * nor its replicas could send them
+     */
+    private Map<String, byte[]> libraryFor(List<String> endpoints, String libraryName,
+            Deadline deadline) {
+        String cacheKey = endpoints.get(0) + "/" + libraryName;
+        CachedLibrary cached = libraries.get(cacheKey);
+        if (cached != null
+                && System.nanoTime() - cached.fetchedAt < LIBRARY_TTL_MILLIS * 1000000L) {
+            return cached.entries;
+        }
+        for (String source : readOrder(endpoints)) {
+            Map<String, byte[]> entries = fetchLibrary(source, libraryName, deadline);
+            if (entries != null) {
+                libraries.put(cacheKey, new CachedLibrary(entries));
+                return entries;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param endpoint the SWH or replica, as host:port
+     * @param libraryName the fully qualified classname of the library
+     * @param deadline when it must have answered by
+     * @return the library's shared class files, by path within a JAR, or null if they could not be
+     * fetched
+     */
+    private Map<String, byte[]> fetchLibrary(String endpoint, String libraryName,
+            Deadline deadline) {
+        SSLSocket swhCon = null;
+        try {
+            Log.log("Fetching shared class files of %s from %s\n", libraryName, endpoint);
+            swhCon = connect(endpoint, deadline);
+            DataOutputStream swhOut = NetworkUtilities.getDataOutputStream(swhCon);
+            DataInputStream swhIn = NetworkUtilities.getDataInputStream(swhCon);
+            swhOut.writeUTF("LIB");
+            deadline.write(swhOut);
+            swhOut.writeUTF(libraryName);
+            int status = swhIn.readInt();
+            Map<String, byte[]> entries = new HashMap<String, byte[]>();
+            if (status != 0 || !NetworkUtilities.readBundle(swhCon, entries)) {
+                Log.log("%s could not send the class files of %s (%d)\n", endpoint, libraryName,
+                        status);
+                return null;
+            }
+            return entries;
+        } catch (IOException e) {
+            Log.error("Could not fetch class files of " + libraryName + " from " + endpoint);
+            e.printStackTrace();
+        } finally {
+            close(swhCon);
+        }
+        return null;
+    }
+
+    /**
+     * Reports every unreported consumed license to its SWH. Reports that cannot be delivered are
+     * kept for the next round.
+     */
+    private void reportAll() {
+        Map<String, List<String[]>> batches;
+        synchronized (this) {
+            if (unreported.isEmpty()) {
+                return;
+            }
+            batches = new HashMap<String, List<String[]>>(unreported);
+            unreported.clear();
+        }
+        for (Map.Entry<String, List<String[]>> batch : batches.entrySet()) {
+            List<String[]> licenses = batch.getValue();
+            for (int from = 0; from < licenses.size(); from += MAX_REPORT_BATCH) {
+                List<String[]> chunk = licenses.subList(from,
+                        Math.min(from + MAX_REPORT_BATCH, licenses.size()));
+                if (!report(batch.getKey(), chunk)) {
+                    synchronized (this) {
+                        if (!unreported.containsKey(batch.getKey())) {
+                            unreported.put(batch.getKey(), new ArrayList<String[]>());
+                        }
+                        unreported.get(batch.getKey()).addAll(
+                                licenses.subList(from, licenses.size()));
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports consumed licenses to their SWH in one CON.
+     * @param endpoint the SWH, as host:port
+     * @param licenses the licenses, each as (license, developer ID)
+     * @return true if the SWH received the report, false if it should be sent again
+     */
+    private boolean report(String endpoint, List<String[]> licenses) {
+        Deadline deadline = Deadline.in(SWH_TIMEOUT_MILLIS);
+        SSLSocket swhCon = null;
+        try {
+            swhCon = connect(endpoint, deadline);
+            DataOutputStream swhOut = NetworkUtilities.getDataOutputStream(swhCon);
+            DataInputStream swhIn = NetworkUtilities.getDataInputStream(swhCon);
+            swhOut.writeUTF("CON");
+            deadline.write(swhOut);
+            swhOut.writeInt(licenses.size());
+            for (String[] license : licenses) {
+                swhOut.writeUTF(license[0]);
+                swhOut.writeUTF(license[1]);
+            }
+            int status = swhIn.readInt();
+            if (status != 0) {
+                Log.log("%s refused a report of %d consumed licenses (%d)\n", endpoint,
+                        licenses.size(), status);
+                return false;
+            }
+            for (String[] license : licenses) {
+                if (swhIn.readInt() != 0) {
+                    Log.log("Double spend: %s had already consumed license %s, used for %s\n",
+                            endpoint, license[0], license[1]);
+                    doubleSpent.incrementAndGet();
+                }
+                reported.incrementAndGet();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.error("Could not report consumed licenses to " + endpoint);
+            e.printStackTrace();
+        } finally {
+            close(swhCon);
+        }
+        return false;
+    }
+
+    /**
+     * @param endpoint the SWH, as host:port
+     * @param deadline when the SWH must have answered by
+     * @return a connection to the SWH
+     * @throws IOException if the SWH could not be reached
+     */
+    private SSLSocket connect(String endpoint, Deadline deadline) throws IOException {
+        int colon = endpoint.lastIndexOf(':');
+        return deadline.connect(sslFact, endpoint.substring(0, colon),
+                Integer.parseInt(endpoint.substring(colon + 1)));
+    }
+
+    /**
+     * @param swhCon a connection to a SWH, or null
+     */
+    private static void close(SSLSocket swhCon) {
+        if (swhCon != null) {
+            try {
+                swhCon.close();
+            } catch (IOException e) {
+                Log.error("Could not close connection to SWH");
+            }
+        }
+    }
+}
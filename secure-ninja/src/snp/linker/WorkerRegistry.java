@@ -0,0 +1,230 @@
+package snp.linker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Linker worker processes a Dispatcher hands link jobs to.
+ * A worker registers itself, and must renew its registration within leaseMillis or be forgotten,
+ * so a worker that dies stops being sent jobs without anyone having to say so. A worker that is
+ * draining is sent no new jobs, but is remembered for as long as it keeps asking to drain, so
+ * that the jobs it still has in flight can finish and a Developer retrying one of its jobs is
+ * sent back to it.
+ * Each job goes to the worker with the fewest jobs in flight, which adapts to workers of
+ * different speeds, and to link jobs of very different sizes, without any tuning. A retried job
+ * goes to the worker that had it before, since only that worker has kept its result.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class WorkerRegistry {
+
+    /**
+     * A registered worker.
+     */
+    public static class Worker {
+
+        /**
+         * The worker, as host:port.
+         */
+        private final String address;
+
+        /**
+         * The number of jobs relayed to the worker that have not finished yet.
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /**
+         * Number of jobs relayed to the worker, and number of times it could not be reached.
+         */
+        private final AtomicLong dispatched = new AtomicLong(), failures = new AtomicLong();
+
+        /**
+         * When the worker's registration runs out, on the System.nanoTime clock.
+         */
+        private volatile long leaseExpiresAt;
+
+        /**
+         * Whether the worker has asked to be sent no new jobs.
+         */
+        private volatile boolean draining = false;
+
+        /**
+         * @param address the worker, as host:port
+         */
+        private Worker(String address) {
+            this.address = address;
+        }
+
+        /**
+         * @return the worker, as host:port
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @param now the current time on the System.nanoTime clock
+         * @return true if the worker's registration has run out
+         */
+        private boolean isExpired(long now) {
+            return leaseExpiresAt - now <= 0;
+        }
+    }
+
+    /**
+     * How many job IDs are remembered, with the worker that had each job.
+     */
+    private static final int MAX_JOBS_REMEMBERED = 10000;
+
+    /**
+     * How long a registration lasts unless it is renewed, in nanoseconds.
+     */
+    private final long leaseNanos;
+
+    /**
+     * The registered workers, by address.
+     */
+    private final ConcurrentMap<String, Worker> workers = new ConcurrentHashMap<String, Worker>();
+
+    /**
+     * The worker that had each recent job, by job ID, oldest job first; guarded by itself.
+     */
+    private final Map<String, String> jobWorkers = new LinkedHashMap<String, String>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_JOBS_REMEMBERED;
+        }
+    };
+
+    /**
+     * Number of jobs that found no worker to go to, and number of retried jobs sent back to the
+     * worker that had them.
+     */
+    private final AtomicLong unplaced = new AtomicLong(), affine = new AtomicLong();
+
+    /**
+     * @param leaseMillis how long a registration lasts unless it is renewed, in milliseconds
+     */
+    public WorkerRegistry(long leaseMillis) {
+        this.leaseNanos = leaseMillis * 1000000L;
+    }
+
+    /**
+     * Registers a worker, or renews its registration.
+     * @param address the worker, as host:port
+     * @return false if the worker is draining, and so was not renewed; true otherwise
+     */
+    public boolean register(String address) {
+        Worker worker = workers.get(address);
+        if (worker == null) {
+            Worker fresh = new Worker(address);
+            worker = workers.putIfAbsent(address, fresh);
+            if (worker == null) {
+                worker = fresh;
+            }
+        }
+        if (worker.draining) {
+            return false;
+        }
+        worker.leaseExpiresAt = System.nanoTime() + leaseNanos;
+        return true;
+    }
+
+    /**
+     * Stops sending new jobs to a worker, and renews its registration, so that it is still sent
+     * retries of the jobs it had.
+     * @param address the worker, as host:port
+     * @return the number of jobs the worker still has in flight, or -1 if it is not registered
+     */
+    public int drain(String address) {
+        Worker worker = workers.get(address);
+        if (worker == null) {
+            return -1;
+        }
+        worker.draining = true;
+        worker.leaseExpiresAt = System.nanoTime() + leaseNanos;
+        return worker.inFlight.get();
+    }
+
+    /**
+     * Picks the worker for a job, and counts the job as in flight on it.
+     * @param jobID the job's ID
+     * @param tried workers the job has already failed to reach, which are not picked again
+     * @return the worker that had the job before if it is still registered, otherwise the worker
+     * with the fewest jobs in flight that is not draining; or null if there is none
+     */
+    public Worker acquire(String jobID, Set<String> tried) {
+        long now = System.nanoTime();
+        String previous;
+        synchronized (jobWorkers) {
+            previous = jobWorkers.get(jobID);
+        }
+        Worker best = previous == null || tried.contains(previous) ? null : workers.get(previous);
+        if (best != null && !best.isExpired(now)) {
+            affine.incrementAndGet();
+        } else {
+            best = null;
+            for (Worker worker : workers.values()) {
+                if (worker.isExpired(now)) {
+                    workers.remove(worker.address, worker);
+                } else if (!worker.draining && !tried.contains(worker.address)
+                        && (best == null || worker.inFlight.get() < best.inFlight.get())) {
+                    best = worker;
+                }
+            }
+        }
+        if (best == null) {
+            unplaced.incrementAndGet();
+            return null;
+        }
+        best.inFlight.incrementAndGet();
+        best.dispatched.incrementAndGet();
+        synchronized (jobWorkers) {
+            jobWorkers.put(jobID, best.address);
+        }
+        return best;
+    }
+
+    /**
+     * Counts a job as finished on its worker.
+     * @param worker the worker the job was acquired on
+     */
+    public void release(Worker worker) {
+        worker.inFlight.decrementAndGet();
+    }
+
+    /**
+     * Forgets a worker that could not be reached, until it registers again.
+     * @param worker the worker the job was acquired on, which is released
+     */
+    public void fail(Worker worker) {
+        release(worker);
+        worker.failures.incrementAndGet();
+        workers.remove(worker.address, worker);
+    }
+
+    /**
+     * @return a human readable summary of the workers and the jobs sent to them
+     */
+    public String getStatistics() {
+        long now = System.nanoTime();
+        StringBuilder stats = new StringBuilder();
+        stats.append(String.format("workers: registered=%d unplaced=%d affine=%d\n",
+                workers.size(), unplaced.get(), affine.get()));
+        for (Worker worker : workers.values()) {
+            stats.append(String.format("worker %s: in-flight=%d dispatched=%d failures=%d "
+                    + "lease-ms=%d%s\n", worker.address, worker.inFlight.get(),
+                    worker.dispatched.get(), worker.failures.get(),
+                    Math.max(0, (worker.leaseExpiresAt - now) / 1000000L),
+                    worker.draining ? " draining" : ""));
+        }
+        return stats.toString();
+    }
+}
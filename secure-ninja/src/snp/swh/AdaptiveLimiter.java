@@ -0,0 +1,152 @@
+package snp.swh;
+
+/**
+ * Limits how many compilations may run at once, adapting the limit to the compile latency it
+ * observes (additive increase, multiplicative decrease). Only successful compilations are
+ * sampled, as a latency per unit of work given by the caller.
+ * While compilations finish close to the fastest latency seen recently, the limit creeps up by
+ * about one for every limit's worth of compilations. When a compilation takes much longer than
+ * that, the host is taken to be overloaded (heap pressure, CPU contention) and the limit is cut.
+ * Callers over the limit wait a short while for a permit and are then turned away, so that latency
+ * for the work that is admitted stays stable.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class AdaptiveLimiter {
+
+    /**
+     * How much slower than the no-load latency a compilation may be before we back off.
+     */
+    private static final double TOLERANCE = 2.0;
+
+    /**
+     * The factor the limit is multiplied by when we back off.
+     */
+    private static final double BACKOFF = 0.8;
+
+    /**
+     * How quickly the no-load latency estimate forgets old fast samples; it rises by this factor
+     * with every sample that is not faster, so that it follows a workload that has become slower.
+     */
+    private static final double DRIFT = 1.01;
+
+    /**
+     * The smallest and largest the limit may become.
+     */
+    private final int minLimit, maxLimit;
+
+    /**
+     * How long a caller may wait for a permit, in milliseconds.
+     */
+    private final long maxWaitMillis;
+
+    /**
+     * The current limit; fractional so that additive increase can be spread over many samples.
+     */
+    private double limit;
+
+    /**
+     * The number of permits currently held.
+     */
+    private int inFlight = 0;
+
+    /**
+     * The estimated latency of a compilation on an unloaded host, in nanoseconds; 0 until the
+     * first sample.
+     */
+    private double noLoadNanos = 0;
+
+    /**
+     * Number of callers turned away.
+     */
+    private long rejected = 0;
+
+    /**
+     * @param initialLimit the limit to start with
+     * @param minLimit the smallest the limit may become
+     * @param maxLimit the largest the limit may become
+     * @param maxWaitMillis how long a caller may wait for a permit, in milliseconds
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long maxWaitMillis) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxWaitMillis = maxWaitMillis;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Takes a permit to compile, waiting a short while if the limit has been reached.
+     * Every successful call must be followed by a call to release.
+     * @return true if a permit was taken, false if the caller should be turned away
+     */
+    public boolean acquire() {
+        return acquire(maxWaitMillis);
+    }
+
+    /**
+     * Takes a permit to compile, waiting a short while (but no longer than the caller allows) if
+     * the limit has been reached.
+     * Every successful call must be followed by a call to release.
+     * @param waitMillis the longest the caller is willing to wait, in milliseconds
+     * @return true if a permit was taken, false if the caller should be turned away
+     */
+    public synchronized boolean acquire(long waitMillis) {
+        long deadline = System.currentTimeMillis() + Math.min(waitMillis, maxWaitMillis);
+        while (inFlight >= (int) limit) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                rejected++;
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected++;
+                return false;
+            }
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Returns a permit without adjusting the limit, for a compilation whose latency says nothing
+     * about the load on the host: one that failed or was abandoned, or one that joined an
+     * identical compilation part way through.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Returns a permit, adjusting the limit according to how long a successful compilation took.
+     * Callers should scale the latency to a comparable unit of work (e.g. per library), so that
+     * large and small compilations are held to the same no-load latency.
+     * @param latencyNanos how long the compilation took, in nanoseconds
+     */
+    public synchronized void release(long latencyNanos) {
+        inFlight--;
+        if (noLoadNanos == 0 || latencyNanos < noLoadNanos) {
+            noLoadNanos = latencyNanos;
+        } else {
+            noLoadNanos *= DRIFT;
+        }
+
+        if (latencyNanos > noLoadNanos * TOLERANCE) {
+            limit = Math.max(minLimit, limit * BACKOFF);
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return a human readable summary of the limiter's state
+     */
+    public synchronized String getStatistics() {
+        return String.format("compile limit: limit=%.1f in-flight=%d no-load-ms=%.1f rejected=%d",
+                limit, inFlight, noLoadNanos / 1e6, rejected);
+    }
+}
@@ -0,0 +1,161 @@
+package snp.swh;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import snp.CompileUtility;
+import snp.LicenseToken;
+import snp.Log;
+
+/**
+ * A bounded store of library class files that were compiled speculatively, as soon as the license
+ * protecting them was issued.
+ * Compilation happens on a single low priority background thread, so that issuing licenses is not
+ * slowed down; if the thread falls behind, new work is dropped rather than queued without bound,
+ * and the Linker's VER simply compiles the library itself as it always has.
+ * When the store is full the least recently used entry is evicted.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class ClassStore {
+
+    /**
+     * A map from licenses to the class files protected by that license, in access order so that
+     * the eldest entry is the least recently used one.
+     */
+    private final Map<LicenseToken, Map<String, byte[]>> classes;
+
+    /**
+     * Compiles libraries in the background.
+     */
+    private final ExecutorService compiler;
+
+    /**
+     * Number of lookups which found their classes already compiled.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of lookups which had to fall back to compiling on demand.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Number of compiled entries evicted before they were used.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Number of compilations dropped because the background queue was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Number of libraries compiled in the background.
+     */
+    private final AtomicLong compiled = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of compiled libraries to hold, and also the maximum number
+     * of compilations that may be waiting for the background thread
+     */
+    public ClassStore(final int capacity) {
+        classes = Collections.synchronizedMap(new LinkedHashMap<LicenseToken, Map<String, byte[]>>(
+                16, 0.75f /* default load factor */, true /* access order */) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<LicenseToken, Map<String, byte[]>> eldest) {
+                if (size() > capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        compiler = new ThreadPoolExecutor(1, 1 /* a single background thread */, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(capacity),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "swh-precompiler");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        dropped.incrementAndGet();
+                    }
+                });
+    }
+
+    /**
+     * Queues a library to be compiled with the given license in the background.
+     * @param license the license that will protect the library
+     * @param libraryName the fully qualified classname of the library
+     * @param file the source file of the library
+     */
+    public void precompile(final LicenseToken license, final String libraryName,
+            final File file) {
+        compiler.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, byte[]> result = CompileUtility.compileSWHClasses(
+                        Collections.singletonMap(libraryName, file),
+                        Collections.singletonMap(libraryName, license.toString()));
+                if (result != null) {
+                    compiled.incrementAndGet();
+                    classes.put(license, result);
+                } else {
+                    Log.error("Could not precompile " + libraryName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Looks up the classes compiled for a license. The entry stays in the store until the license
+     * is consumed, so that a failed transfer can be retried without compiling again.
+     * @param license the license protecting the classes
+     * @return the compiled classes, or null if they are not (yet) available
+     */
+    public Map<String, byte[]> get(LicenseToken license) {
+        Map<String, byte[]> result = classes.get(license);
+        if (result != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the classes compiled for a license, once that license is consumed.
+     * @param license the consumed license
+     */
+    public void remove(LicenseToken license) {
+        classes.remove(license);
+    }
+
+    /**
+     * @return a human readable summary of how well precompilation is working
+     */
+    public String getStatistics() {
+        return String.format("precompile: size=%d hits=%d misses=%d compiled=%d evicted=%d "
+                + "dropped=%d", classes.size(), hits.get(), misses.get(), compiled.get(),
+                evictions.get(), dropped.get());
+    }
+}
@@ -0,0 +1,165 @@
+package snp.swh;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import snp.LicenseToken;
+import snp.swh.LicenseTable.Slot;
+
+/**
+ * The libraries compiled for licenses that are reserved, so that a Linker whose transfer failed
+ * can be sent the same library again without it being compiled again.
+ * Each library is kept only for as long as the reservation it was compiled for: it is dropped
+ * when the reservation is committed, released or expires, and is never handed to a different
+ * reservation of the same license. The least recently used libraries are evicted once they take
+ * up too much memory, in which case a retry simply compiles the library again.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class KeptLibraries {
+
+    /**
+     * A library kept for a reservation.
+     */
+    private static class Kept {
+
+        /**
+         * The reservation the library was compiled for.
+         */
+        private final Slot reservation;
+
+        /**
+         * The library, by path within a JAR.
+         */
+        private final Map<String, byte[]> entries;
+
+        /**
+         * When the library is dropped, on the System.nanoTime clock.
+         */
+        private final long expiresAt;
+
+        /**
+         * The memory the library takes up, roughly, in bytes.
+         */
+        private final long size;
+
+        /**
+         * @param reservation the reservation the library was compiled for
+         * @param entries the library, by path within a JAR
+         * @param expiresAt when the library is dropped, on the System.nanoTime clock
+         */
+        private Kept(Slot reservation, Map<String, byte[]> entries, long expiresAt) {
+            this.reservation = reservation;
+            this.entries = entries;
+            this.expiresAt = expiresAt;
+            long bytes = 0;
+            for (byte[] entry : entries.values()) {
+                bytes += entry.length;
+            }
+            this.size = bytes;
+        }
+    }
+
+    /**
+     * The most memory kept libraries may take up, in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * The kept libraries, by license, least recently used first.
+     */
+    private final LinkedHashMap<LicenseToken, Kept> kept =
+            new LinkedHashMap<LicenseToken, Kept>(16, 0.75f, true);
+
+    /**
+     * The memory the kept libraries take up, in bytes.
+     */
+    private long bytes = 0;
+
+    /**
+     * Number of retries sent a kept library, and number of libraries evicted before their
+     * reservation ended.
+     */
+    private long hits = 0, evictions = 0;
+
+    /**
+     * @param maxBytes the most memory kept libraries may take up, in bytes
+     */
+    public KeptLibraries(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Keeps the library compiled for a reservation.
+     * @param key the (unwrapped) license
+     * @param reservation the reservation the library was compiled for
+     * @param entries the library, by path within a JAR
+     * @param expiresAt when the reservation ends, on the System.nanoTime clock
+     */
+    public synchronized void put(LicenseToken key, Slot reservation, Map<String, byte[]> entries,
+            long expiresAt) {
+        remove(key);
+        Kept library = new Kept(reservation, entries, expiresAt);
+        kept.put(key, library);
+        bytes += library.size;
+        evict();
+    }
+
+    /**
+     * @param key the (unwrapped) license
+     * @param reservation the reservation being resumed
+     * @return the library kept for the reservation, by path within a JAR, or null if none is
+     */
+    public synchronized Map<String, byte[]> get(LicenseToken key, Slot reservation) {
+        Kept library = kept.get(key);
+        if (library == null || library.reservation != reservation) {
+            return null;
+        }
+        if (library.expiresAt - System.nanoTime() <= 0) {
+            remove(key);
+            return null;
+        }
+        hits++;
+        return library.entries;
+    }
+
+    /**
+     * Drops the library kept for a license, once its reservation has ended.
+     * @param key the (unwrapped) license
+     */
+    public synchronized void remove(LicenseToken key) {
+        Kept library = kept.remove(key);
+        if (library != null) {
+            bytes -= library.size;
+        }
+    }
+
+    /**
+     * @return a human readable summary of the libraries kept
+     */
+    public synchronized String getStatistics() {
+        return String.format("kept=%d bytes=%d hits=%d evictions=%d", kept.size(), bytes, hits,
+                evictions);
+    }
+
+    /**
+     * Drops expired libraries, then the least recently used libraries until the rest fit in
+     * memory.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        Iterator<Kept> it = kept.values().iterator();
+        while (it.hasNext()) {
+            Kept library = it.next();
+            if (library.expiresAt - now <= 0) {
+                bytes -= library.size;
+                it.remove();
+            } else if (bytes > maxBytes) {
+                bytes -= library.size;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package snp.swh;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An execution lane: a fixed number of threads, at a given priority, with a bounded queue of work
+ * in front of them. Work that does not fit in the queue is rejected straight away rather than
+ * waiting, so that one kind of request cannot pile up and starve another kind in a different lane.
+ * Each lane records how long work waited in its queue and how long it took to run.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class Lane {
+
+    /**
+     * The name of the lane, for statistics and thread names.
+     */
+    private final String name;
+
+    /**
+     * Runs the lane's work.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Number of pieces of work accepted into the lane.
+     */
+    private final AtomicLong accepted = new AtomicLong();
+
+    /**
+     * Number of pieces of work rejected because the queue was full.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Number of pieces of work that have left the queue and started running.
+     */
+    private final AtomicLong started = new AtomicLong();
+
+    /**
+     * Number of pieces of work that have finished.
+     */
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * Total and largest time spent waiting in the queue, in nanoseconds.
+     */
+    private final AtomicLong queueNanos = new AtomicLong(), maxQueueNanos = new AtomicLong();
+
+    /**
+     * Total and largest time spent running, in nanoseconds.
+     */
+    private final AtomicLong serviceNanos = new AtomicLong(), maxServiceNanos = new AtomicLong();
+
+    /**
+     * @param name the name of the lane
+     * @param threads the number of threads running work
+     * @param queueLimit the number of pieces of work that may wait for a thread
+     * @param priority the priority of the lane's threads
+     */
+    public Lane(final String name, int threads, int queueLimit, final int priority) {
+        this.name = name;
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "swh-" + name + "-" + count.incrementAndGet());
+                        t.setPriority(priority);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Queues work on the lane.
+     * @param work the work to run
+     * @return true if the work was queued, false if the lane's queue was full
+     */
+    public boolean submit(final Runnable work) {
+        final long queued = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    record(queueNanos, maxQueueNanos, start - queued);
+                    started.incrementAndGet();
+                    try {
+                        work.run();
+                    } finally {
+                        record(serviceNanos, maxServiceNanos, System.nanoTime() - start);
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return a human readable summary of the lane's load and timings
+     */
+    public String getStatistics() {
+        long s = started.get();
+        long n = completed.get();
+        return String.format("lane %s: queued=%d active=%d accepted=%d rejected=%d "
+                + "avg-queue-ms=%.2f max-queue-ms=%.2f avg-service-ms=%.2f max-service-ms=%.2f",
+                name, executor.getQueue().size(), executor.getActiveCount(), accepted.get(),
+                rejected.get(), s == 0 ? 0.0 : queueNanos.get() / 1e6 / s,
+                maxQueueNanos.get() / 1e6, n == 0 ? 0.0 : serviceNanos.get() / 1e6 / n,
+                maxServiceNanos.get() / 1e6);
+    }
+
+    /**
+     * Adds a duration to a total, and raises a maximum if the duration exceeds it.
+     * @param total the total to add to
+     * @param max the maximum to raise
+     * @param nanos the duration
+     */
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+}
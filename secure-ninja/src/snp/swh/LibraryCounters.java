@@ -0,0 +1,211 @@
+package snp.swh;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the licenses issued, consumed and expired for each library, and the licenses each
+ * customer has outstanding for each library, as licenses change state.
+ * The counts are kept up to date on every issue, consumption and expiry, so answering how many
+ * seats of a library are outstanding, or whether a customer may have more, never means looking
+ * at the licenses themselves. The per-library counts are striped across several cells, so that
+ * threads issuing and consuming licenses for the same library at once do not all contend on one
+ * counter; a count is only added up when it is read.
+ * A customer's outstanding count doubles as their quota: licenses are counted against it before
+ * they are issued, in a single compare-and-set, so concurrent requests cannot together exceed it.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class LibraryCounters {
+
+    /**
+     * A counter split across several cells, each updated by a different set of threads.
+     */
+    private static class Striped {
+
+        /**
+         * The number of cells; a power of two.
+         */
+        private static final int STRIPES = 16;
+
+        /**
+         * How far apart cells are in the array, so that no two share a cache line.
+         */
+        private static final int SPACING = 8;
+
+        /**
+         * The cells.
+         */
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+
+        /**
+         * @param delta how much to add to the counter
+         */
+        private void add(long delta) {
+            int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+            cells.addAndGet(stripe * SPACING, delta);
+        }
+
+        /**
+         * @return the value of the counter
+         */
+        private long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * SPACING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * The counts for one library.
+     */
+    private static class Counts {
+
+        /**
+         * Licenses issued, consumed, and expired unused.
+         */
+        private final Striped issued = new Striped(), consumed = new Striped(),
+                expired = new Striped();
+
+        /**
+         * @return a human readable summary of the counts
+         */
+        private String summary() {
+            long i = issued.sum(), c = consumed.sum(), e = expired.sum();
+            return String.format("issued=%d outstanding=%d consumed=%d expired=%d", i, i - c - e,
+                    c, e);
+        }
+    }
+
+    /**
+     * The counts for each library.
+     */
+    private final ConcurrentMap<String, Counts> libraries = new ConcurrentHashMap<String, Counts>();
+
+    /**
+     * The number of licenses each customer has outstanding, by customer and library.
+     */
+    private final ConcurrentMap<String, AtomicLong> outstanding =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Counts licenses against a customer's quota for a library, if that leaves them within it.
+     * @param customer the customer
+     * @param libraryName the library
+     * @param n the number of licenses to be issued
+     * @param quota the most licenses the customer may have outstanding for the library; 0 for no
+     * limit
+     * @return the number of licenses the customer may still have, before counting these: n or
+     * more if these have been counted, fewer if they have not
+     */
+    public long acquire(String customer, String libraryName, int n, long quota) {
+        AtomicLong count = outstandingFor(customer, libraryName);
+        while (true) {
+            long current = count.get();
+            long remaining = quota > 0 ? quota - current : Long.MAX_VALUE;
+            if (remaining < n) {
+                return Math.max(remaining, 0);
+            }
+            if (count.compareAndSet(current, current + n)) {
+                return remaining;
+            }
+        }
+    }
+
+    /**
+     * Gives back licenses that were counted against a customer's quota but never issued.
+     * @param customer the customer
+     * @param libraryName the library
+     * @param n the number of licenses
+     */
+    public void release(String customer, String libraryName, int n) {
+        outstandingFor(customer, libraryName).addAndGet(-n);
+    }
+
+    /**
+     * @param libraryName the library a license has been issued for
+     */
+    public void issued(String libraryName) {
+        countsFor(libraryName).issued.add(1);
+    }
+
+    /**
+     * @param customer the customer a license was issued to
+     * @param libraryName the library the license was for
+     */
+    public void consumed(String customer, String libraryName) {
+        countsFor(libraryName).consumed.add(1);
+        release(customer, libraryName, 1);
+    }
+
+    /**
+     * @param customer the customer a license was issued to
+     * @param libraryName the library the license was for
+     */
+    public void expired(String customer, String libraryName) {
+        countsFor(libraryName).expired.add(1);
+        release(customer, libraryName, 1);
+    }
+
+    /**
+     * @param libraryName a library
+     * @return a human readable summary of the library's licenses
+     */
+    public String getStatistics(String libraryName) {
+        Counts counts = libraries.get(libraryName);
+        return libraryName + ": " + (counts == null ? "no licenses issued" : counts.summary());
+    }
+
+    /**
+     * @return a human readable summary of every library's licenses, one library per line
+     */
+    public String getStatistics() {
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<String, Counts> entry : new TreeMap<String, Counts>(libraries).entrySet()) {
+            stats.append(entry.getKey()).append(": ").append(entry.getValue().summary())
+                    .append('\n');
+        }
+        return stats.toString();
+    }
+
+    /**
+     * @param libraryName a library
+     * @return the library's counts, created if need be
+     */
+    private Counts countsFor(String libraryName) {
+        Counts counts = libraries.get(libraryName);
+        if (counts == null) {
+            Counts created = new Counts();
+            counts = libraries.putIfAbsent(libraryName, created);
+            if (counts == null) {
+                counts = created;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @param customer a customer
+     * @param libraryName a library
+     * @return the number of licenses the customer has outstanding for the library, created if
+     * need be
+     */
+    private AtomicLong outstandingFor(String customer, String libraryName) {
+        String key = customer + "\n" + libraryName;
+        AtomicLong count = outstanding.get(key);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = outstanding.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,151 @@
+package snp.swh;
+
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The encrypted forms of the licenses that are still outstanding, so that a license we never
+ * issued, or that has been consumed or has expired, can be turned away without decrypting it.
+ * Decrypting a license costs an RSA private key operation, which is by far the most expensive
+ * part of checking one; looking it up here costs a hash.
+ * Only a keyed 64 bit hash of each encrypted license is kept, rather than the license itself,
+ * which keeps the filter small. The key is chosen at random when the filter is created, so that
+ * nobody outside the SWH can craft licenses that collide with outstanding ones. A license that
+ * passes the filter is not necessarily one we issued, and is still decrypted and checked as
+ * before.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class LicenseFilter {
+
+    /**
+     * The encoding encrypted licenses are hashed in; they are hex strings, so this is exact.
+     */
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The SipHash key.
+     */
+    private final long k0, k1;
+
+    /**
+     * The hashes of the outstanding licenses.
+     */
+    private final Set<Long> hashes =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * Creates an empty filter with a random key.
+     */
+    public LicenseFilter() {
+        SecureRandom random = new SecureRandom();
+        k0 = random.nextLong();
+        k1 = random.nextLong();
+    }
+
+    /**
+     * @param encrypted an encrypted license that is now outstanding
+     */
+    public void add(String encrypted) {
+        hashes.add(hash(encrypted));
+    }
+
+    /**
+     * @param encrypted an encrypted license that is no longer outstanding
+     */
+    public void remove(String encrypted) {
+        hashes.remove(hash(encrypted));
+    }
+
+    /**
+     * @param encrypted an encrypted license
+     * @return false if the license is certainly not outstanding, true if it may be
+     */
+    public boolean mightContain(String encrypted) {
+        return hashes.contains(hash(encrypted));
+    }
+
+    /**
+     * @return the number of licenses in the filter
+     */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * @param encrypted an encrypted license
+     * @return the SipHash-2-4 of the license under this filter's key
+     */
+    private long hash(String encrypted) {
+        return sipHash(k0, k1, encrypted.getBytes(ASCII));
+    }
+
+    /**
+     * SipHash-2-4, as described by Aumasson and Bernstein.
+     * @param k0 the first half of the key, as a little endian number
+     * @param k1 the second half of the key, as a little endian number
+     * @param data the message
+     * @return the hash of the message
+     */
+    static long sipHash(long k0, long k1, byte[] data) {
+        long[] v = {0x736f6d6570736575L ^ k0, 0x646f72616e646f6dL ^ k1,
+            0x6c7967656e657261L ^ k0, 0x7465646279746573L ^ k1};
+        int last = data.length & ~7;
+        for (int i = 0; i < last; i += 8) {
+            compress(v, littleEndian(data, i, 8));
+        }
+        // the final block holds the rest of the message and its length
+        compress(v, littleEndian(data, last, data.length - last) | ((long) data.length << 56));
+        v[2] ^= 0xff;
+        for (int i = 0; i < 4; i++) {
+            round(v);
+        }
+        return v[0] ^ v[1] ^ v[2] ^ v[3];
+    }
+
+    /**
+     * Mixes one block of the message into the state.
+     * @param v the state
+     * @param m the block
+     */
+    private static void compress(long[] v, long m) {
+        v[3] ^= m;
+        round(v);
+        round(v);
+        v[0] ^= m;
+    }
+
+    /**
+     * One SipRound.
+     * @param v the state
+     */
+    private static void round(long[] v) {
+        v[0] += v[1];
+        v[1] = Long.rotateLeft(v[1], 13) ^ v[0];
+        v[0] = Long.rotateLeft(v[0], 32);
+        v[2] += v[3];
+        v[3] = Long.rotateLeft(v[3], 16) ^ v[2];
+        v[0] += v[3];
+        v[3] = Long.rotateLeft(v[3], 21) ^ v[0];
+        v[2] += v[1];
+        v[1] = Long.rotateLeft(v[1], 17) ^ v[2];
+        v[2] = Long.rotateLeft(v[2], 32);
+    }
+
+    /**
+     * @param data bytes
+     * @param offset where to start reading
+     * @param length how many bytes to read, at most 8
+     * @return the bytes read as a little endian number
+     */
+    private static long littleEndian(byte[] data, int offset, int length) {
+        long n = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            n = (n << 8) | (data[offset + i] & 0xffL);
+        }
+        return n;
+    }
+}
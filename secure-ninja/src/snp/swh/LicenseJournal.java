@@ -0,0 +1,249 @@
+package snp.swh;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import snp.LicenseToken;
+import snp.Log;
+import snp.NetworkUtilities;
+
+/**
+ * Keeps the licenses a SWH has issued and consumed on disk, so that they survive a restart.
+ * Every license is appended to the journal as it is issued, and every consumption as it is
+ * committed; nothing is held back in memory, so issuing a very large order costs no more memory
+ * than a small one. Licenses are encrypted with our key pair, so the key pair is kept alongside
+ * the journal, and licenses issued before a restart can still be decrypted after it.
+ * When the SWH starts, the journal is replayed, then compacted: licenses that have been consumed
+ * or have expired are dropped from it.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class LicenseJournal {
+
+    /**
+     * Told about each license that is still outstanding when the journal is replayed.
+     */
+    public interface Listener {
+
+        /**
+         * @param key the (unwrapped) license
+         * @param libraryName the library the license is for
+         * @param encrypted the encrypted license
+         * @param customer the customer the license was issued to
+         * @param ttlMillis how much longer the license may go unused, in milliseconds; 0 if it
+         * never expires
+         */
+        void issued(String key, String libraryName, String encrypted, String customer,
+                long ttlMillis);
+    }
+
+    /**
+     * The encoding of the journal and key files.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The directory the journal and key pair are kept in.
+     */
+    private final File dir;
+
+    /**
+     * The journal.
+     */
+    private final File file;
+
+    /**
+     * Appends to the journal; null until the journal has been replayed.
+     */
+    private Writer out;
+
+    /**
+     * The stream under out, so that the journal can be forced to disk.
+     */
+    private FileOutputStream fileOut;
+
+    /**
+     * Holds a license as hex whilst it is written; guarded by this.
+     */
+    private final char[] hex = new char[LicenseToken.HEX_DIGITS];
+
+    /**
+     * @param dir the directory the journal and key pair are kept in; created if need be
+     */
+    public LicenseJournal(File dir) {
+        this.dir = dir;
+        this.file = new File(dir, "licenses.journal");
+        dir.mkdirs();
+    }
+
+    /**
+     * Loads the key pair licenses are encrypted with, or generates and saves one if there is
+     * none yet.
+     * @param algo the key algorithm
+     * @param keySize the size of a generated key
+     * @return the key pair
+     * @throws IOException if the key pair could not be read or saved
+     * @throws GeneralSecurityException if the key pair could not be decoded or generated
+     */
+    public KeyPair loadKeyPair(String algo, int keySize)
+            throws IOException, GeneralSecurityException {
+        File keyFile = new File(dir, "license.key");
+        if (keyFile.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(keyFile), UTF8));
+            try {
+                KeyFactory factory = KeyFactory.getInstance(algo);
+                return new KeyPair(factory.generatePublic(new X509EncodedKeySpec(
+                        NetworkUtilities.hexStringToByteArray(in.readLine()))),
+                        factory.generatePrivate(new PKCS8EncodedKeySpec(
+                                NetworkUtilities.hexStringToByteArray(in.readLine()))));
+            } finally {
+                in.close();
+            }
+        }
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(algo);
+        keyGen.initialize(keySize);
+        KeyPair keyPair = keyGen.genKeyPair();
+        File tmp = new File(dir, "license.key.tmp");
+        Writer keyOut = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+        try {
+            // only we should be able to read our private key
+            tmp.setReadable(false, false);
+            tmp.setReadable(true, true);
+            keyOut.write(NetworkUtilities.bytesToHex(keyPair.getPublic().getEncoded()) + "\n");
+            keyOut.write(NetworkUtilities.bytesToHex(keyPair.getPrivate().getEncoded()) + "\n");
+        } finally {
+            keyOut.close();
+        }
+        if (!tmp.renameTo(keyFile)) {
+            throw new IOException("Could not save key pair to " + keyFile);
+        }
+        Log.log("Generated a new license key pair in %s\n", keyFile);
+        return keyPair;
+    }
+
+    /**
+     * Tells a listener about every license that is still outstanding, then compacts the journal
+     * down to those licenses and opens it for appending.
+     * @param listener told about each outstanding license
+     * @return the number of outstanding licenses
+     * @throws IOException if the journal could not be read or rewritten
+     */
+    public int replay(Listener listener) throws IOException {
+        // issue records of licenses not (yet) consumed, in the order they were issued
+        Map<String, String[]> live = new LinkedHashMap<String, String[]>();
+        if (file.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] record = line.split(" ");
+                    if (record[0].equals("I") && record.length == 6) {
+                        live.put(record[1], record);
+                    } else if (record[0].equals("C") && record.length == 2) {
+                        live.remove(record[1]);
+                    } else {
+                        // a record cut off by a crash
+                        Log.log("Skipping malformed journal record: %s\n", line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        File tmp = new File(dir, "licenses.journal.tmp");
+        Writer compacted = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                UTF8));
+        int n = 0;
+        try {
+            for (String[] record : live.values()) {
+                long expiresAt = Long.parseLong(record[4]);
+                if (expiresAt != 0 && expiresAt <= now) {
+                    continue;
+                }
+                listener.issued(record[1], record[2], record[5], record[3],
+                        expiresAt == 0 ? 0 : expiresAt - now);
+                compacted.write(join(record));
+                n++;
+            }
+        } finally {
+            compacted.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Could not compact " + file);
+        }
+
+        fileOut = new FileOutputStream(file, true);
+        out = new BufferedWriter(new OutputStreamWriter(fileOut, UTF8));
+        return n;
+    }
+
+    /**
+     * Records an issued license. The record is buffered until the next sync.
+     * @param key the (unwrapped) license
+     * @param libraryName the library the license is for
+     * @param encrypted the encrypted license
+     * @param customer the customer the license was issued to
+     * @param ttlMillis how long the license may go unused, in milliseconds; 0 if it never expires
+     * @throws IOException if the record could not be written
+     */
+    public synchronized void issued(String key, String libraryName, String encrypted,
+            String customer, long ttlMillis) throws IOException {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        out.write(join(new String[] {"I", key, libraryName, customer, Long.toString(expiresAt),
+            encrypted}));
+    }
+
+    /**
+     * Records a consumed license, and forces it to disk.
+     * @param key the (unwrapped) license
+     * @throws IOException if the record could not be written
+     */
+    public synchronized void consumed(LicenseToken key) throws IOException {
+        key.toHex(hex, 0);
+        out.write("C ");
+        out.write(hex);
+        out.write('\n');
+        sync();
+    }
+
+    /**
+     * Forces every record written so far to disk.
+     * @throws IOException if the records could not be written
+     */
+    public synchronized void sync() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    /**
+     * @param record the fields of a record
+     * @return the record as a line of the journal
+     */
+    private static String join(String[] record) {
+        StringBuilder line = new StringBuilder();
+        for (String field : record) {
+            line.append(line.length() == 0 ? "" : " ").append(field);
+        }
+        return line.append('\n').toString();
+    }
+}
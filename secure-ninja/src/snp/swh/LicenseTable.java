@@ -0,0 +1,518 @@
+package snp.swh;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import snp.License;
+import snp.LicenseToken;
+
+/**
+ * The state of every license we have issued.
+ * A license is issued, then reserved for the developer a Linker is verifying it for, then consumed
+ * once the Linker ACKs the library it unlocks. The library compiled for a reservation is kept
+ * (see KeptLibraries) until the reservation ends, so if the transfer fails, the Linker can ask
+ * again for the same developer and be sent the same library without it being compiled again,
+ * whilst nobody else can use the license in the meantime. A reservation that is not committed in
+ * time expires, and the license can be reserved afresh.
+ * Each license's state is an immutable slot in a concurrent map, and every transition replaces
+ * the slot with a single compare-and-set, so checking a license and reserving it is one atomic
+ * step: two Linkers racing to verify the same license cannot both win, a late ACK cannot consume a
+ * license that has since been reserved by someone else, and no locks are taken.
+ * A license may be issued with a time to live, after which it expires unused. Expired licenses,
+ * reservations and remembered consumed licenses are timed out by a timer wheel, a tick at a time,
+ * so the table is never scanned as a whole.
+ * The encrypted forms of the licenses that are still outstanding are kept in a LicenseFilter, so
+ * that licenses which cannot be used can be turned away without decrypting them. Those of the
+ * remembered consumed licenses are kept in another, so that a consumed license presented again is
+ * still counted as reused when it is turned away.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class LicenseTable {
+
+    /**
+     * The states a license can be in.
+     */
+    public enum State {
+        /** Issued to a developer and not yet used. */
+        ISSUED,
+        /** Being used by a Linker on behalf of one developer. */
+        RESERVED,
+        /** Used; the license is kept for a while only so that reuse can be recognised. */
+        CONSUMED
+    }
+
+    /**
+     * How often the timer wheel advances, in milliseconds; licenses are timed out up to this much
+     * late (though an expired license is never accepted, whether or not it has been timed out).
+     */
+    private static final long TICK_MILLIS = 1000;
+
+    /**
+     * The most memory the libraries kept for reservations may take up, in bytes.
+     */
+    private static final long KEPT_LIBRARY_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * The state of one license.
+     */
+    public static class Slot {
+
+        /**
+         * The license.
+         */
+        private final License license;
+
+        /**
+         * The state of the license.
+         */
+        private final State state;
+
+        /**
+         * Identifies the developer a reserved license is reserved for; null otherwise.
+         */
+        private final String developerID;
+
+        /**
+         * When this state of the license ends, on the System.nanoTime clock; 0 if never.
+         */
+        private final long expiresAt;
+
+        /**
+         * When the license expires unused, on the System.nanoTime clock; 0 if never.
+         */
+        private final long licenseExpiresAt;
+
+        /**
+         * The customer the license was issued to.
+         */
+        private final String customer;
+
+        /**
+         * @param license the license
+         * @param state the state of the license
+         * @param developerID identifies the developer a reserved license is reserved for
+         * @param expiresAt when this state of the license ends; 0 if never
+         * @param licenseExpiresAt when the license expires unused; 0 if never
+         * @param customer the customer the license was issued to
+         */
+        private Slot(License license, State state, String developerID, long expiresAt,
+                long licenseExpiresAt, String customer) {
+            this.license = license;
+            this.state = state;
+            this.developerID = developerID;
+            this.expiresAt = expiresAt;
+            this.licenseExpiresAt = licenseExpiresAt;
+            this.customer = customer;
+        }
+
+        /**
+         * @return the license
+         */
+        public License getLicense() {
+            return license;
+        }
+
+        /**
+         * @param now the current time on the System.nanoTime clock
+         * @return true if this state of the license has ended
+         */
+        private boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt - now <= 0;
+        }
+
+        /**
+         * @param now the current time on the System.nanoTime clock
+         * @return true if the license has expired unused
+         */
+        private boolean isLicenseExpired(long now) {
+            return licenseExpiresAt != 0 && licenseExpiresAt - now <= 0;
+        }
+    }
+
+    /**
+     * How long a reservation lasts, and how long a consumed license is remembered, in nanoseconds.
+     */
+    private final long ttlNanos;
+
+    /**
+     * The slot of each license.
+     */
+    private final ConcurrentMap<LicenseToken, Slot> slots =
+            new ConcurrentHashMap<LicenseToken, Slot>();
+
+    /**
+     * Times out slots whose state ends.
+     */
+    private final TimerWheel<Map.Entry<LicenseToken, Slot>> wheel =
+            new TimerWheel<Map.Entry<LicenseToken, Slot>>(TICK_MILLIS);
+
+    /**
+     * The encrypted forms of the licenses that are issued or reserved.
+     */
+    private final LicenseFilter outstanding = new LicenseFilter();
+
+    /**
+     * The encrypted forms of the consumed licenses that are still remembered.
+     */
+    private final LicenseFilter rememberedConsumed = new LicenseFilter();
+
+    /**
+     * The libraries compiled for reservations, which are dropped whenever a reservation ends.
+     */
+    private final KeptLibraries keptLibraries = new KeptLibraries(KEPT_LIBRARY_BYTES);
+
+    /**
+     * The licenses of each library, and of each customer, in each state.
+     */
+    private final LibraryCounters libraryCounters = new LibraryCounters();
+
+    /**
+     * Number of licenses in each state, by the state's ordinal.
+     */
+    private final AtomicLong[] counts = new AtomicLong[State.values().length];
+
+    /**
+     * Number of licenses issued, reservations made, reservations resumed, licenses consumed,
+     * reservations refused because someone else holds the license, consumed licenses presented
+     * again, licenses that expired unused, and licenses turned away without being decrypted.
+     */
+    private final AtomicLong issued = new AtomicLong(), reservations = new AtomicLong(),
+            resumed = new AtomicLong(), committed = new AtomicLong(), conflicts = new AtomicLong(),
+            reused = new AtomicLong(), expired = new AtomicLong(), filtered = new AtomicLong();
+
+    /**
+     * Advances the timer wheel.
+     */
+    private final ScheduledExecutorService ticker;
+
+    /**
+     * @param ttlMillis how long a reservation lasts, and how long a consumed license is
+     * remembered, in milliseconds
+     */
+    public LicenseTable(long ttlMillis) {
+        ttlNanos = ttlMillis * 1000000L;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new AtomicLong();
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "license-expiry");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        ticker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a license as issued.
+     * @param key the (unwrapped) license
+     * @param license the license
+     * @param ttlMillis how long the license may go unused before it expires, in milliseconds; 0
+     * if it never expires
+     * @param customer the customer the license is issued to, whose quota it has been counted
+     * against
+     * @return true if the license was issued, false if it already had been
+     */
+    public boolean issue(LicenseToken key, License license, long ttlMillis, String customer) {
+        long licenseExpiresAt = ttlMillis > 0 ? System.nanoTime() + ttlMillis * 1000000L : 0;
+        Slot slot = new Slot(license, State.ISSUED, null, licenseExpiresAt, licenseExpiresAt,
+                customer);
+        if (slots.putIfAbsent(key, slot) == null) {
+            issued.incrementAndGet();
+            libraryCounters.issued(license.getLibraryName());
+            counts[State.ISSUED.ordinal()].incrementAndGet();
+            outstanding.add(license.getEncryptedLicenseString());
+            schedule(key, slot);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells a listener about every license that is issued or reserved, as the journal does when
+     * it is replayed; a reserved license is told of as issued, since reservations are not ours to
+     * hand on. Licenses that change state meanwhile may or may not be told of.
+     * @param listener told about each outstanding license
+     * @return the number of licenses told of
+     */
+    public int forEachOutstanding(LicenseJournal.Listener listener) {
+        int n = 0;
+        for (Map.Entry<LicenseToken, Slot> entry : slots.entrySet()) {
+            Slot slot = entry.getValue();
+            long now = System.nanoTime();
+            if (slot.state == State.CONSUMED || slot.isLicenseExpired(now)) {
+                continue;
+            }
+            long ttlMillis = slot.licenseExpiresAt == 0 ? 0
+                    : Math.max(1, (slot.licenseExpiresAt - now) / 1000000L);
+            listener.issued(entry.getKey().toString(), slot.license.getLibraryName(),
+                    slot.license.getEncryptedLicenseString(), slot.customer, ttlMillis);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Checks an encrypted license against the licenses that are outstanding, which is far cheaper
+     * than decrypting it. A license turned away here is counted as filtered, and as reused if it
+     * has been consumed before; use isPossiblyOutstanding for lookups that do not use licenses.
+     * @param encrypted an encrypted license
+     * @return false if the license is certainly not issued or reserved, so there is no need to
+     * decrypt it; true if it may be
+     */
+    public boolean mightBeOutstanding(String encrypted) {
+        if (isPossiblyOutstanding(encrypted)) {
+            return true;
+        }
+        filtered.incrementAndGet();
+        if (rememberedConsumed.mightContain(encrypted)) {
+            reused.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * Checks an encrypted license against the licenses that are outstanding like
+     * mightBeOutstanding, without counting it, for lookups such as CHK that do not try to use it.
+     * @param encrypted an encrypted license
+     * @return false if the license is certainly not issued or reserved; true if it may be
+     */
+    public boolean isPossiblyOutstanding(String encrypted) {
+        return outstanding.mightContain(encrypted);
+    }
+
+    /**
+     * @param key the (unwrapped) license
+     * @return the license, or null if we did not issue it, or it has been consumed or has expired
+     */
+    public License getLicense(LicenseToken key) {
+        Slot slot = slots.get(key);
+        return slot == null || slot.state == State.CONSUMED
+                || slot.isLicenseExpired(System.nanoTime()) ? null : slot.license;
+    }
+
+    /**
+     * Reserves a license for a developer, or resumes the developer's reservation of it, in one
+     * atomic step.
+     * @param key the (unwrapped) license
+     * @param developerID identifies the developer the license is being used for
+     * @return the reservation; or null if we did not issue the license, it has been consumed or
+     * has expired, or it is reserved for someone else
+     */
+    public Slot reserve(LicenseToken key, String developerID) {
+        long now = System.nanoTime();
+        while (true) {
+            Slot current = slots.get(key);
+            if (current == null) {
+                return null;
+            }
+            if (current.state == State.CONSUMED) {
+                reused.incrementAndGet();
+                return null;
+            }
+            if (current.isExpired(now)) {
+                if (current.state == State.ISSUED || current.isLicenseExpired(now)) {
+                    // the wheel has not got round to it yet
+                    expire(key, current, now);
+                    return null;
+                }
+                // an abandoned reservation, which anyone may take over
+            } else if (current.state == State.RESERVED) {
+                if (current.developerID.equals(developerID)) {
+                    resumed.incrementAndGet();
+                    return current;
+                }
+                conflicts.incrementAndGet();
+                return null;
+            }
+            Slot reserved = new Slot(current.license, State.RESERVED, developerID,
+                    now + ttlNanos, current.licenseExpiresAt, current.customer);
+            if (replace(key, current, reserved)) {
+                reservations.incrementAndGet();
+                return reserved;
+            }
+        }
+    }
+
+    /**
+     * Consumes a reserved license.
+     * @param key the (unwrapped) license
+     * @param reservation the reservation being committed
+     * @return true if the license was consumed, false if the reservation had expired and the
+     * license has since been reserved again or has expired
+     */
+    public boolean commit(LicenseToken key, Slot reservation) {
+        Slot consumed = new Slot(reservation.license, State.CONSUMED, null,
+                System.nanoTime() + ttlNanos, 0, reservation.customer);
+        if (replace(key, reservation, consumed)) {
+            committed.incrementAndGet();
+            libraryCounters.consumed(reservation.customer, reservation.license.getLibraryName());
+            outstanding.remove(reservation.license.getEncryptedLicenseString());
+            rememberedConsumed.add(reservation.license.getEncryptedLicenseString());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends a reservation without consuming the license, so that it can be used afresh.
+     * @param key the (unwrapped) license
+     * @param reservation the reservation to end; a newer reservation of the license is kept
+     */
+    public void release(LicenseToken key, Slot reservation) {
+        replace(key, reservation, new Slot(reservation.license, State.ISSUED, null,
+                reservation.licenseExpiresAt, reservation.licenseExpiresAt, reservation.customer));
+    }
+
+    /**
+     * Keeps the library compiled for a reservation until the reservation ends, so that a retry
+     * can be sent it without compiling it again.
+     * @param key the (unwrapped) license
+     * @param reservation the reservation the library was compiled for
+     * @param entries the library, by path within a JAR
+     */
+    public void keepLibrary(LicenseToken key, Slot reservation, Map<String, byte[]> entries) {
+        if (slots.get(key) == reservation) {
+            keptLibraries.put(key, reservation, entries, reservation.expiresAt);
+        }
+    }
+
+    /**
+     * @param key the (unwrapped) license
+     * @param reservation a reservation being resumed
+     * @return the library compiled for the reservation, by path within a JAR, or null if it was
+     * never compiled or has been evicted
+     */
+    public Map<String, byte[]> getKeptLibrary(LicenseToken key, Slot reservation) {
+        return keptLibraries.get(key, reservation);
+    }
+
+    /**
+     * Stops timing out licenses, once the table is no longer used.
+     */
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * @return the licenses of each library, and of each customer, in each state
+     */
+    public LibraryCounters getLibraryCounters() {
+        return libraryCounters;
+    }
+
+    /**
+     * @return a human readable summary of the licenses' states
+     */
+    public String getStatistics() {
+        long issuedNow = counts[State.ISSUED.ordinal()].get();
+        long reservedNow = counts[State.RESERVED.ordinal()].get();
+        return String.format("live=%d (issued=%d reserved=%d) consumed=%d expired=%d "
+                + "remembered-consumed=%d (lifetime: issued=%d reservations=%d resumed=%d "
+                + "conflicts=%d reused=%d filtered=%d)", issuedNow + reservedNow, issuedNow,
+                reservedNow, committed.get(), expired.get(), counts[State.CONSUMED.ordinal()].get(),
+                issued.get(), reservations.get(), resumed.get(), conflicts.get(), reused.get(),
+                filtered.get()) + "\nkept libraries: " + keptLibraries.getStatistics();
+    }
+
+    /**
+     * Moves a license from one slot to another, keeping count of the licenses in each state and
+     * scheduling the end of the new state.
+     * @param key the (unwrapped) license
+     * @param from the slot the license is expected to be in
+     * @param to the new slot
+     * @return true if the license was moved, false if it was not in the expected slot
+     */
+    private boolean replace(LicenseToken key, Slot from, Slot to) {
+        if (!slots.replace(key, from, to)) {
+            return false;
+        }
+        if (from.state == State.RESERVED) {
+            keptLibraries.remove(key);
+        }
+        counts[from.state.ordinal()].decrementAndGet();
+        counts[to.state.ordinal()].incrementAndGet();
+        schedule(key, to);
+        return true;
+    }
+
+    /**
+     * Forgets a license.
+     * @param key the (unwrapped) license
+     * @param slot the slot the license is expected to be in
+     * @return true if the license was forgotten, false if it was not in the expected slot
+     */
+    private boolean remove(LicenseToken key, Slot slot) {
+        if (!slots.remove(key, slot)) {
+            return false;
+        }
+        if (slot.state == State.RESERVED) {
+            keptLibraries.remove(key);
+        }
+        counts[slot.state.ordinal()].decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Has the timer wheel time out a slot when its state ends, if it ever does.
+     * @param key the (unwrapped) license
+     * @param slot the license's slot
+     */
+    private void schedule(LicenseToken key, Slot slot) {
+        if (slot.expiresAt != 0) {
+            wheel.schedule(new SimpleImmutableEntry<LicenseToken, Slot>(key, slot), slot.expiresAt);
+        }
+    }
+
+    /**
+     * Ends the state of a slot whose time is up: an unused license that has expired is forgotten,
+     * an abandoned reservation becomes an issued license again (unless the license has expired in
+     * the meantime), and a remembered consumed license is forgotten.
+     * @param key the (unwrapped) license
+     * @param slot the slot whose time is up
+     * @param now the current time on the System.nanoTime clock
+     */
+    private void expire(LicenseToken key, Slot slot, long now) {
+        if (slot.state == State.RESERVED && !slot.isLicenseExpired(now)) {
+            release(key, slot);
+        } else if (remove(key, slot)) {
+            if (slot.state == State.CONSUMED) {
+                rememberedConsumed.remove(slot.license.getEncryptedLicenseString());
+                return;
+            }
+            expired.incrementAndGet();
+            outstanding.remove(slot.license.getEncryptedLicenseString());
+            libraryCounters.expired(slot.customer, slot.license.getLibraryName());
+        }
+    }
+
+    /**
+     * Advances the timer wheel, ending the state of every slot whose time is up. Slots that have
+     * since been replaced are ignored.
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        for (Map.Entry<LicenseToken, Slot> due : wheel.advance(now)) {
+            Slot slot = due.getValue();
+            if (slots.get(due.getKey()) == slot) {
+                expire(due.getKey(), slot, now);
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package snp.swh;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import snp.Deadline;
+import snp.Log;
+import snp.SecurityUtilities;
+
+/**
+ * Follows a primary SWH, keeping a read-only copy of its licenses.
+ * We connect to the primary with SYNC and prove that we belong to the same company by signing a
+ * challenge with the private key of our key store, which the primary checks against its own
+ * certificate. The primary then sends us the key pair its licenses are encrypted with, a snapshot
+ * of the licenses that are outstanding, and from then on every license it issues or consumes, as
+ * the records of its ReplicationLog. Whilst nothing is happening the primary sends a heartbeat
+ * every second, so we can tell a quiet primary from a dead one.
+ * If the connection is lost, we connect again and start afresh from a new snapshot, unless the
+ * primary comes back with a different key pair: it has then restarted without the licenses we
+ * hold, and a snapshot would wipe them, so we take over from it instead. If the primary cannot
+ * be reached for failoverMillis, we take over from it too: we stop following it and the SWH
+ * starts serving every command with the licenses we hold. Nothing stops a primary that was only
+ * cut off from us from carrying on as well, so the failover time should be well above the time
+ * the primary might be unreachable for without having died.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class Replica implements Runnable {
+
+    /**
+     * Where the records sent by the primary are applied.
+     */
+    public interface Store extends LicenseJournal.Listener {
+
+        /**
+         * Discards every license held, ahead of a new snapshot.
+         * @param keyPair the key pair the primary's licenses are encrypted with
+         */
+        void reset(KeyPair keyPair);
+
+        /**
+         * @param key the (unwrapped) license the primary consumed
+         */
+        void consumed(String key);
+    }
+
+    /**
+     * How often the primary sends a heartbeat whilst there are no records to send, in
+     * milliseconds.
+     */
+    public static final long HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * How long we wait for a record or heartbeat before giving the connection up, in
+     * milliseconds.
+     */
+    private static final int READ_TIMEOUT_MILLIS = (int) (3 * HEARTBEAT_MILLIS);
+
+    /**
+     * How long connecting to the primary and proving who we are may take, in milliseconds.
+     */
+    private static final long HANDSHAKE_MILLIS = 10000;
+
+    /**
+     * How long we wait before connecting to the primary again, in milliseconds.
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * The primary, as host:port.
+     */
+    private final String primary;
+
+    /**
+     * Makes connections to the primary, trusting its certificate.
+     */
+    private final SSLSocketFactory factory;
+
+    /**
+     * The private key of our key store, which we sign the primary's challenge with.
+     */
+    private final PrivateKey identity;
+
+    /**
+     * The algorithm of the key pair the primary encrypts licenses with.
+     */
+    private final String keyAlgo;
+
+    /**
+     * How long the primary may be unreachable before we take over from it, in milliseconds.
+     */
+    private final long failoverMillis;
+
+    /**
+     * Where records are applied.
+     */
+    private final Store store;
+
+    /**
+     * The key pair the primary sent with its first snapshot, or null before then.
+     */
+    private KeyPair keyPair = null;
+
+    /**
+     * Whether we have taken over from the primary.
+     */
+    private volatile boolean promoted = false;
+
+    /**
+     * The number of the last record applied, and the number of the last record the primary had
+     * written when we last heard from it.
+     */
+    private volatile long appliedSeq = 0, headSeq = 0;
+
+    /**
+     * How long the last record applied took to reach us, in milliseconds.
+     */
+    private volatile long lagMillis = 0;
+
+    /**
+     * When we last heard from the primary, in milliseconds since the epoch; 0 if never.
+     */
+    private volatile long lastHeardMillis = 0;
+
+    /**
+     * Number of snapshots taken from the primary.
+     */
+    private volatile long snapshots = 0;
+
+    /**
+     * @param primary the primary, as host:port
+     * @param factory makes connections to the primary, trusting its certificate
+     * @param identity the private key of our key store
+     * @param keyAlgo the algorithm of the key pair the primary encrypts licenses with
+     * @param failoverMillis how long the primary may be unreachable before we take over from it
+     * @param store where records are applied
+     */
+    public Replica(String primary, SSLSocketFactory factory, PrivateKey identity, String keyAlgo,
+            long failoverMillis, Store store) {
+        this.primary = primary;
+        this.factory = factory;
+        this.identity = identity;
+        this.keyAlgo = keyAlgo;
+        this.failoverMillis = failoverMillis;
+        this.store = store;
+    }
+
+    /**
+     * Starts following the primary on a thread of its own.
+     */
+    public void start() {
+        Thread t = new Thread(this, "replica-of-" + primary);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Follows the primary until it has been unreachable for failoverMillis, then takes over.
+     */
+    @Override
+    public void run() {
+        long lastContact = System.currentTimeMillis();
+        while (true) {
+            try {
+                follow();
+                if (promoted) {
+                    return;
+                }
+            } catch (IOException e) {
+                Log.error("Lost primary %s: %s\n", primary, e);
+            } catch (GeneralSecurityException e) {
+                Log.error("Could not decode the key pair of primary %s\n", primary);
+                e.printStackTrace();
+            }
+            lastContact = Math.max(lastContact, lastHeardMillis);
+            if (System.currentTimeMillis() - lastContact >= failoverMillis) {
+                Log.log("Primary %s unreachable for %d ms, taking over from it\n", primary,
+                        System.currentTimeMillis() - lastContact);
+                promoted = true;
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true once we have taken over from the primary, so that we should serve every
+     * command; false whilst we only serve reads
+     */
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    /**
+     * @return a human readable summary of how far behind the primary we are
+     */
+    public String getStatistics() {
+        if (promoted) {
+            return String.format("promoted, was replica of %s at seq=%d", primary, appliedSeq);
+        }
+        long heard = lastHeardMillis;
+        return String.format("replica of %s applied=%d behind=%d lag-ms=%d last-heard-ms=%s "
+                + "snapshots=%d", primary, appliedSeq, Math.max(0, headSeq - appliedSeq),
+                lagMillis, heard == 0 ? "never" : System.currentTimeMillis() - heard, snapshots);
+    }
+
+    /**
+     * Connects to the primary, proves who we are, and applies what it sends until the
+     * connection is lost.
+     * @throws IOException if the connection could not be made, or was lost
+     * @throws GeneralSecurityException if the primary's key pair could not be decoded
+     */
+    private void follow() throws IOException, GeneralSecurityException {
+        int colon = primary.lastIndexOf(':');
+        Deadline deadline = Deadline.in(HANDSHAKE_MILLIS);
+        SSLSocket connection = deadline.connect(factory, primary.substring(0, colon),
+                Integer.parseInt(primary.substring(colon + 1)));
+        try {
+            DataInputStream inStream = new DataInputStream(connection.getInputStream());
+            DataOutputStream outStream = new DataOutputStream(connection.getOutputStream());
+            outStream.writeUTF("SYNC");
+            deadline.write(outStream);
+
+            // the primary says whether it will take us on before challenging us
+            int status = inStream.readInt();
+            lastHeardMillis = System.currentTimeMillis();
+            if (status != 0) {
+                throw new IOException("primary refused to replicate to us with status " + status);
+            }
+            byte[] signature = SecurityUtilities.sign(identity, readBytes(inStream));
+            if (signature == null) {
+                throw new IOException("could not sign the primary's challenge");
+            }
+            outStream.writeInt(signature.length);
+            outStream.write(signature);
+
+            status = inStream.readInt();
+            if (status == -1) {
+                throw new IOException("primary did not accept our signature");
+            } else if (status != 0) {
+                throw new IOException("primary refused to replicate to us with status " + status);
+            }
+            KeyFactory keyFactory = KeyFactory.getInstance(keyAlgo);
+            KeyPair keyPair = new KeyPair(
+                    keyFactory.generatePublic(new X509EncodedKeySpec(readBytes(inStream))),
+                    keyFactory.generatePrivate(new PKCS8EncodedKeySpec(readBytes(inStream))));
+            if (this.keyPair != null && !sameKeyPair(this.keyPair, keyPair)) {
+                // a primary with a new key pair has lost the licenses we hold, so keep them
+                Log.log("Primary %s came back with a new key pair, taking over from it\n",
+                        primary);
+                promoted = true;
+                return;
+            }
+            this.keyPair = keyPair;
+            store.reset(keyPair);
+            snapshots++;
+            Log.log("Following primary %s\n", primary);
+
+            connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+            while (true) {
+                long seq = inStream.readLong();
+                long timeMillis = inStream.readLong();
+                headSeq = inStream.readLong();
+                String line = inStream.readUTF();
+                lastHeardMillis = System.currentTimeMillis();
+                if (apply(line)) {
+                    appliedSeq = seq;
+                    lagMillis = Math.max(0, lastHeardMillis - timeMillis);
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Applies a record sent by the primary.
+     * @param line the record: an issued license ("I ..."), a consumed license ("C ..."), the end
+     * of the snapshot ("S") or a heartbeat ("H")
+     * @return true if the record moves us forward in the primary's log, false for a heartbeat
+     * @throws IOException if the record is malformed
+     */
+    private boolean apply(String line) throws IOException {
+        String[] record = line.split(" ");
+        if (record[0].equals("I") && record.length == 6) {
+            long expiresAt;
+            try {
+                expiresAt = Long.parseLong(record[4]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed replication record: " + line);
+            }
+            long ttlMillis = expiresAt == 0 ? 0 : expiresAt - System.currentTimeMillis();
+            if (expiresAt == 0 || ttlMillis > 0) {
+                store.issued(record[1], record[2], record[5], record[3], ttlMillis);
+            }
+            return true;
+        } else if (record[0].equals("C") && record.length == 2) {
+            store.consumed(record[1]);
+            return true;
+        } else if (record[0].equals("S") && record.length == 1) {
+            return true;
+        } else if (record[0].equals("H") && record.length == 1) {
+            return false;
+        }
+        throw new IOException("Malformed replication record: " + line);
+    }
+
+    /**
+     * @param a a key pair
+     * @param b another key pair
+     * @return true if both halves of the key pairs are encoded the same
+     */
+    private static boolean sameKeyPair(KeyPair a, KeyPair b) {
+        return Arrays.equals(a.getPublic().getEncoded(), b.getPublic().getEncoded())
+                && Arrays.equals(a.getPrivate().getEncoded(), b.getPrivate().getEncoded());
+    }
+
+    /**
+     * @param inStream the stream to read from
+     * @return a length-prefixed array of bytes: a challenge or a key
+     * @throws IOException if the bytes could not be read
+     */
+    private static byte[] readBytes(DataInputStream inStream) throws IOException {
+        int length = inStream.readInt();
+        if (length < 0 || length > 1 << 16) {
+            throw new IOException("Implausible length " + length);
+        }
+        byte[] bytes = new byte[length];
+        inStream.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,267 @@
+package snp.swh;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import snp.LicenseToken;
+
+/**
+ * The licenses a primary SWH issues and consumes, as a numbered log that is streamed to its
+ * replicas. Records are the same lines as our journal's: "I license library customer expiresAt
+ * encrypted" for an issued license, where expiresAt is in milliseconds since the epoch (0 if the
+ * license never expires), and "C license" for a consumed one.
+ * Nothing is kept once it has been handed to the replicas: each replica has a queue of its own,
+ * which records are added to as they are written, and a replica that falls so far behind that its
+ * queue fills is dropped, rather than holding back the licenses we issue. A dropped replica
+ * connects again and starts afresh from a snapshot of the licenses that are outstanding.
+ * A replica subscribes before the snapshot is taken, so a license that changes whilst the
+ * snapshot is being taken may reach the replica twice; applying a record twice does no harm.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class ReplicationLog {
+
+    /**
+     * A record of the log, as handed to a replica.
+     */
+    public static class Record {
+
+        /**
+         * The number of the record; records are numbered from 1, in the order they were written.
+         */
+        private final long seq;
+
+        /**
+         * When the record was written, in milliseconds since the epoch.
+         */
+        private final long timeMillis;
+
+        /**
+         * The record itself.
+         */
+        private final String line;
+
+        /**
+         * @param seq the number of the record
+         * @param timeMillis when the record was written
+         * @param line the record itself
+         */
+        private Record(long seq, long timeMillis, String line) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.line = line;
+        }
+
+        /**
+         * @return the number of the record
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * @return when the record was written, in milliseconds since the epoch
+         */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        /**
+         * @return the record itself
+         */
+        public String getLine() {
+            return line;
+        }
+    }
+
+    /**
+     * The records waiting to be sent to one replica.
+     */
+    public class Subscriber {
+
+        /**
+         * The records written since the replica subscribed that have not yet been sent to it.
+         */
+        private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(queueLimit);
+
+        /**
+         * The number of the last record written before the replica subscribed.
+         */
+        private final long startSeq;
+
+        /**
+         * Whether the replica fell too far behind and was dropped.
+         */
+        private volatile boolean dropped = false;
+
+        /**
+         * @param startSeq the number of the last record written before the replica subscribed
+         */
+        private Subscriber(long startSeq) {
+            this.startSeq = startSeq;
+        }
+
+        /**
+         * @return the number of the last record written before the replica subscribed, which
+         * a snapshot taken after subscribing is at least as recent as
+         */
+        public long getStartSeq() {
+            return startSeq;
+        }
+
+        /**
+         * Waits for the next record to send to the replica.
+         * @param timeoutMillis how long to wait, in milliseconds
+         * @return the record, or null if none was written in time or the replica has been
+         * dropped
+         * @throws InterruptedException if interrupted whilst waiting
+         */
+        public Record poll(long timeoutMillis) throws InterruptedException {
+            return dropped ? null : queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return true if the replica fell too far behind and was dropped
+         */
+        public boolean isDropped() {
+            return dropped;
+        }
+    }
+
+    /**
+     * The most records that may be waiting for a replica before it is dropped.
+     */
+    private final int queueLimit;
+
+    /**
+     * The most replicas that may subscribe at once.
+     */
+    private final int maxSubscribers;
+
+    /**
+     * The replicas subscribed to the log.
+     */
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    /**
+     * The number of the last record written; guarded by this.
+     */
+    private long seq = 0;
+
+    /**
+     * Number of replicas dropped for falling too far behind.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param queueLimit the most records that may be waiting for a replica before it is dropped
+     * @param maxSubscribers the most replicas that may subscribe at once
+     */
+    public ReplicationLog(int queueLimit, int maxSubscribers) {
+        this.queueLimit = queueLimit;
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    /**
+     * Writes an issued license to the log.
+     * @param key the (unwrapped) license
+     * @param libraryName the library the license is for
+     * @param encrypted the encrypted license
+     * @param customer the customer the license was issued to
+     * @param ttlMillis how long the license may go unused, in milliseconds; 0 if it never expires
+     */
+    public void issued(String key, String libraryName, String encrypted, String customer,
+            long ttlMillis) {
+        append(issueRecord(key, libraryName, encrypted, customer, ttlMillis));
+    }
+
+    /**
+     * Writes a consumed license to the log. The record is only formatted if a replica is
+     * subscribed to it.
+     * @param key the (unwrapped) license
+     */
+    public synchronized void consumed(LicenseToken key) {
+        if (subscribers.isEmpty()) {
+            seq++;
+            return;
+        }
+        append("C " + key);
+    }
+
+    /**
+     * @param key the (unwrapped) license
+     * @param libraryName the library the license is for
+     * @param encrypted the encrypted license
+     * @param customer the customer the license was issued to
+     * @param ttlMillis how long the license may go unused, in milliseconds; 0 if it never expires
+     * @return the record of the license being issued
+     */
+    public static String issueRecord(String key, String libraryName, String encrypted,
+            String customer, long ttlMillis) {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        return "I " + key + " " + libraryName + " " + customer + " " + expiresAt + " "
+                + encrypted;
+    }
+
+    /**
+     * Subscribes a replica to every record written from now on.
+     * @return the replica's subscription, or null if as many replicas as we allow are subscribed
+     */
+    public synchronized Subscriber subscribe() {
+        if (subscribers.size() >= maxSubscribers) {
+            return null;
+        }
+        Subscriber subscriber = new Subscriber(seq);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * @return true if as many replicas as we allow are subscribed
+     */
+    public boolean isFull() {
+        return subscribers.size() >= maxSubscribers;
+    }
+
+    /**
+     * Stops handing records to a replica.
+     * @param subscriber the replica's subscription
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * @return the number of the last record written
+     */
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return a human readable summary of the log and its replicas
+     */
+    public String getStatistics() {
+        return String.format("seq=%d replicas=%d dropped=%d", getSeq(), subscribers.size(),
+                dropped.get());
+    }
+
+    /**
+     * Numbers a record and hands it to every replica, dropping any replica whose queue is full.
+     * @param line the record
+     */
+    private synchronized void append(String line) {
+        Record record = new Record(++seq, System.currentTimeMillis(), line);
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.queue.offer(record)) {
+                subscriber.dropped = true;
+                subscribers.remove(subscriber);
+                dropped.incrementAndGet();
+            }
+        }
+    }
+}
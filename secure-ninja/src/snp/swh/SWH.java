@@ -1,21 +1,36 @@
 package snp.swh;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -24,12 +39,18 @@ import javax.crypto.NoSuchPaddingException;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 import snp.CompileUtility;
+import snp.CompileWorkerPool;
+import snp.Deadline;
 import snp.License;
+import snp.LicenseToken;
+import snp.ShardRing;
 import snp.Log;
 import snp.NetworkUtilities;
 import snp.SecurityUtilities;
+import snp.swh.LicenseTable.Slot;
 /**
  * Our implementation of the Software House (SWH).
  * SWH provides functionality for requesting licenses and verifying licenses + sending libraries.
@@ -44,9 +65,11 @@ public class SWH {
     private String srcPath;
 
     /**
-     * A map from license strings to licenses.
+     * The state of every license we have issued, by license string.
+     * Requests are handled concurrently, so every change of state is a single atomic step.
+     * A replica replaces the table whenever it takes a new snapshot from its primary.
      */
-    private Map<String, License> clientLicenses;
+    private volatile LicenseTable licenseTable;
 
     /**
      * A map of libraries to source files.
@@ -72,8 +95,235 @@ public class SWH {
      * Note: En/decrypting didn't really need to be asymmetric if it was all done with a secret that
      * only the software house knew.
      * In light of this, it might have been a weakness/inefficiency to choose asymmetric encryption.
+     * A replica uses its primary's key pair, so that it can decrypt the primary's licenses.
      */
-    private KeyPair myKey;
+    private volatile KeyPair myKey;
+
+    /**
+     * The private key and certificate of our key store, with which replicas prove that they belong
+     * to the same company as their primary; null if they could not be loaded.
+     */
+    private KeyStore.PrivateKeyEntry identity;
+
+    /**
+     * Holds library classes compiled ahead of time for issued licenses; null unless speculative
+     * precompilation has been enabled.
+     */
+    private ClassStore precompiled;
+
+    /**
+     * Whether libraries are compiled once and shared by every licensee, with the license delivered
+     * as a sealed resource, rather than compiled with the license baked into the source.
+     */
+    private boolean sharedClasses = false;
+
+    /**
+     * A map from fully qualified classname to the version (see sharedClassKey) of the library whose
+     * shared class files are kept, and the JAR entries of those class files. Only the latest
+     * version of each library is kept, so editing a library's source leaves nothing behind.
+     */
+    private Map<String, Map.Entry<String, Map<String, byte[]>>> sharedClassCache =
+            new ConcurrentHashMap<String, Map.Entry<String, Map<String, byte[]>>>();
+
+    /**
+     * Number of times a library's shared class files were already compiled.
+     */
+    private final AtomicLong sharedClassHits = new AtomicLong();
+
+    /**
+     * Number of times a library's shared class files had to be compiled.
+     */
+    private final AtomicLong sharedClassMisses = new AtomicLong();
+
+    /**
+     * Number of licenses Linkers have reported consuming after verifying them offline, and number
+     * of those that were already consumed (double spent), had expired, or were never ours.
+     */
+    private final AtomicLong consumptionsReported = new AtomicLong(),
+            consumptionsRejected = new AtomicLong();
+
+    /**
+     * Reads the command of each accepted connection and passes it on to reqLane or verLane.
+     */
+    private Lane intakeLane;
+
+    /**
+     * Handles the cheap commands: REQ, BREQ, STAT, SEATS, KEY and CON.
+     */
+    private Lane reqLane;
+
+    /**
+     * Handles the expensive commands: VER, BVER, LIB and CHK.
+     */
+    private Lane verLane;
+
+    /**
+     * The number of threads, and the queue limit, of reqLane.
+     */
+    private int reqLaneThreads = 4, reqLaneQueue = 64;
+
+    /**
+     * The number of threads, and the queue limit, of verLane.
+     */
+    private int verLaneThreads = 4, verLaneQueue = 16;
+
+    /**
+     * The number of threads, and the queue limit, of intakeLane. Intake only reads a command, so a
+     * couple of threads are plenty.
+     */
+    private static final int INTAKE_THREADS = 2, INTAKE_QUEUE = 256;
+
+    /**
+     * Per-client rate limits for REQ and BREQ, and for VER, BVER, LIB and CHK.
+     */
+    private TokenBuckets reqBuckets, verBuckets;
+
+    /**
+     * The number of REQs and BREQs each client may make per second, and in a burst.
+     */
+    private int reqRate = 20, reqBurst = 40;
+
+    /**
+     * The number of VERs, BVERs, LIBs and CHKs each client may make per second, and in a burst.
+     */
+    private int verRate = 10, verBurst = 20;
+
+    /**
+     * The number of compile worker processes; 0 to compile inside the SWH.
+     */
+    private int numCompileWorkers = 0;
+
+    /**
+     * The maximum heap of each compile worker process, in megabytes.
+     */
+    private int compileWorkerHeapMB = 256;
+
+    /**
+     * How many compilations a compile worker does before it is replaced.
+     */
+    private int compileWorkerRecycle = 500;
+
+    /**
+     * Decides how many compilations may run at once, adapting to how long they take.
+     */
+    private AdaptiveLimiter compileLimiter;
+
+    /**
+     * The number of compilations compileLimiter allows at first, and the most it will ever allow.
+     */
+    private int compileLimitInitial = Runtime.getRuntime().availableProcessors(),
+            compileLimitMax = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How long a VER or BVER may wait for compileLimiter before it is turned away, in
+     * milliseconds.
+     */
+    private int compileWaitMillis = 1000;
+
+    /**
+     * How long a license stays reserved for a Linker that has not ACKed its library, in
+     * milliseconds.
+     */
+    private int reservationTTLMillis = 60000;
+
+    /**
+     * How long an issued license may go unused before it expires, in milliseconds, for libraries
+     * without a time to live of their own; 0 if licenses never expire.
+     */
+    private long licenseTTLMillis = 0;
+
+    /**
+     * How long an issued license may go unused before it expires, in milliseconds, by library.
+     */
+    private final Map<String, Long> libraryLicenseTTLMillis = new HashMap<String, Long>();
+
+    /**
+     * The most licenses each customer may have outstanding for a library, for libraries without
+     * a quota of their own; 0 for no limit.
+     */
+    private long defaultQuota = 0;
+
+    /**
+     * The most licenses each customer may have outstanding, by library.
+     */
+    private final Map<String, Long> libraryQuotas = new HashMap<String, Long>();
+
+    /**
+     * The most licenses issued over a single connection, whether to one REQ or across every entry
+     * of a BREQ; larger orders are granted in part, and the Developer asks again for the rest.
+     */
+    private int maxOrder = 10000;
+
+    /**
+     * How many licenses are written before waiting for the Developer to ask for more.
+     */
+    private static final int ISSUE_CHUNK = 256;
+
+    /**
+     * How long the Developer may take to ask for the next chunk of licenses, in milliseconds,
+     * however far away its deadline is; storing a chunk takes it far less.
+     */
+    private static final int CHUNK_ACK_MILLIS = 5000;
+
+    /**
+     * The directory our license journal is kept in, or null if licenses are kept in memory only.
+     */
+    private File journalDir;
+
+    /**
+     * Records issued and consumed licenses on disk; null if journalDir is.
+     */
+    private LicenseJournal journal;
+
+    /**
+     * The licenses we issue and consume, as streamed to our replicas.
+     */
+    private final ReplicationLog replicationLog = new ReplicationLog(REPLICATION_QUEUE,
+            MAX_REPLICAS);
+
+    /**
+     * The most records of replicationLog that may be waiting for a replica before it is dropped,
+     * and the most replicas that may follow us at once.
+     */
+    private static final int REPLICATION_QUEUE = 65536, MAX_REPLICAS = 8;
+
+    /**
+     * The number of random bytes a replica signs to prove who it is.
+     */
+    private static final int CHALLENGE_BYTES = 32;
+
+    /**
+     * The developer that licenses consumed by our primary are reserved for before a replica
+     * consumes them too.
+     */
+    private static final String REPLICATION_DEVELOPER = "replication";
+
+    /**
+     * The primary SWH we replicate, as host:port; null if we are a primary ourselves.
+     */
+    private String primaryAddress;
+
+    /**
+     * The trust store holding our primary's certificate; null if we are a primary.
+     */
+    private String primaryTrustFile;
+
+    /**
+     * How long our primary may be unreachable before we take over from it, in milliseconds.
+     */
+    private int failoverMillis = 10000;
+
+    /**
+     * Follows our primary; null if we are a primary ourselves.
+     */
+    private Replica replica;
+
+    /**
+     * Returned by compileLibraries instead of class files when compileLimiter turns the
+     * compilation away; compared by identity.
+     */
+    private static final Map<String, byte[]> OVERLOADED =
+            Collections.unmodifiableMap(new HashMap<String, byte[]>());
 
     /**
      * key size for asymmetric encryption keys.
@@ -85,15 +335,58 @@ public class SWH {
      */
     private static final String algo = "RSA";
 
+    /**
+     * How long a client has to send its command and deadline once connected, in milliseconds.
+     */
+    private static final int COMMAND_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The longest deadline we honour, in milliseconds; clients asking for more get this much.
+     */
+    private static final long MAX_DEADLINE_MILLIS = 120000;
+
+    /**
+     * Other SWHs, as host:port, that serve the same libraries and can verify our licenses; they
+     * are advertised to Developers with every license we issue.
+     */
+    private List<String> replicas = new ArrayList<String>();
+
+    /**
+     * The SWHs of our cluster, which split the licenses of our libraries between them; null if we
+     * are not part of a cluster.
+     */
+    private ShardRing shardRing;
+
+    /**
+     * Which of the SWHs of shardRing we are, as host:port; null if we are not part of a cluster.
+     */
+    private String shardName;
+
+    /**
+     * Our index in shardRing, once shardName has been checked against it.
+     */
+    private int shardIndex = -1;
+
+    /**
+     * Number of digests drawn whilst issuing licenses that belonged to other SWHs of our cluster,
+     * and so were drawn again.
+     */
+    private final AtomicLong shardRedraws = new AtomicLong();
+
+    /**
+     * The largest number of libraries we are willing to answer in a single bulk request.
+     */
+    private static final int MAX_BULK_ENTRIES = 1024;
+
     public SWH(String srcPath, int serverPort, String keyFile, String password)
             throws UnknownHostException, IOException, NoSuchAlgorithmException {
-        clientLicenses = new HashMap<String, License>();
         libraries = new HashMap<String, File>();
 
         sslservfact = (SSLServerSocketFactory) SecurityUtilities.getSSLServerSocketFactory(keyFile,
                 password);
         serverConnection = (SSLServerSocket) sslservfact.createServerSocket(serverPort, 0,
                 InetAddress.getLocalHost());
+        identity = SecurityUtilities.getPrivateKeyEntry(keyFile, password);
 
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance(algo);
         keyGen.initialize(keySize);
@@ -109,13 +402,140 @@ public class SWH {
     }
 
     /**
-     * Listens for, and calls the appropriate commands, depending upon the requests that are given
-     * to the SWH.
+     * Loads our key pair from journalDir, so that licenses issued before a restart can still be
+     * decrypted, then puts the licenses in the journal that are still outstanding back into
+     * licenseTable.
+     * @throws IOException if the journal or key pair could not be read
+     */
+    private void openJournal() throws IOException {
+        journal = new LicenseJournal(journalDir);
+        try {
+            myKey = journal.loadKeyPair(algo, keySize);
+        } catch (GeneralSecurityException e) {
+            Log.error("Could not load the license key pair from %s\n", journalDir);
+            throw new IOException(e);
+        }
+        int n = journal.replay(new LicenseJournal.Listener() {
+            @Override
+            public void issued(String key, String libraryName, String encrypted,
+                    String customer, long ttlMillis) {
+                restoreLicense(key, libraryName, encrypted, customer, ttlMillis);
+            }
+        });
+        Log.log("Recovered %d outstanding licenses from %s\n", n, journalDir);
+    }
+
+    /**
+     * Puts back a license that was issued by us before a restart, or by our primary, counting it
+     * against its customer's quota.
+     * @param key the (unwrapped) license
+     * @param libraryName the library the license is for
+     * @param encrypted the encrypted license
+     * @param customer the customer the license was issued to
+     * @param ttlMillis how much longer the license may go unused, in milliseconds; 0 if it never
+     * expires
+     */
+    private void restoreLicense(String key, String libraryName, String encrypted,
+            String customer, long ttlMillis) {
+        LicenseToken token = toToken(key);
+        if (token == null) {
+            Log.log("Skipping malformed license %s\n", key);
+            return;
+        }
+        LicenseTable table = licenseTable;
+        table.getLibraryCounters().acquire(customer, libraryName, 1, 0);
+        if (!table.issue(token, new License(token, serverConnection.getInetAddress(), libraryName,
+                serverConnection.getLocalPort(), encrypted), ttlMillis, customer)) {
+            table.getLibraryCounters().release(customer, libraryName, 1);
+        }
+    }
+
+    /**
+     * Sets up a replica of primaryAddress, once every setting has been applied.
+     * @param password the password of our key store, which is also that of primaryTrustFile
+     * @return false if we have a primary but no trust store for it, keep a journal of our own, or
+     * could not load our key store or the trust store; true otherwise
+     */
+    private boolean followPrimary(String password) {
+        if (primaryAddress == null) {
+            return true;
+        }
+        if (primaryTrustFile == null || journalDir != null || identity == null) {
+            return false;
+        }
+        SSLSocketFactory factory = SecurityUtilities.getSSLSocketFactory(primaryTrustFile,
+                password);
+        if (factory == null) {
+            return false;
+        }
+        replica = new Replica(primaryAddress, factory, identity.getPrivateKey(), algo,
+                failoverMillis, new Replica.Store() {
+                    @Override
+                    public void reset(KeyPair keyPair) {
+                        LicenseTable old = licenseTable;
+                        licenseTable = new LicenseTable(reservationTTLMillis);
+                        myKey = keyPair;
+                        old.close();
+                    }
+
+                    @Override
+                    public void issued(String key, String libraryName, String encrypted,
+                            String customer, long ttlMillis) {
+                        restoreLicense(key, libraryName, encrypted, customer, ttlMillis);
+                    }
+
+                    @Override
+                    public void consumed(String key) {
+                        LicenseToken token = toToken(key);
+                        LicenseTable table = licenseTable;
+                        Slot reservation = token == null ? null
+                                : table.reserve(token, REPLICATION_DEVELOPER);
+                        if (reservation != null) {
+                            table.commit(token, reservation);
+                        }
+                    }
+                });
+        Log.log("Replicating the licenses of primary %s\n", primaryAddress);
+        return true;
+    }
+
+    /**
+     * @return true if we are a replica that has not taken over from its primary, and so must not
+     * issue, reserve or consume licenses
+     */
+    private boolean isReadOnly() {
+        return replica != null && !replica.isPromoted();
+    }
+
+    /**
+     * Listens for connections and hands each one to the intake lane, which reads its command and
+     * passes it on to the lane for that kind of command. Cheap license requests (REQ, BREQ, STAT,
+     * SEATS, KEY and CON) and expensive license verifications (VER, BVER, LIB and CHK) have
+     * separate lanes, so a storm of VERs from Linkers cannot starve Developers who are buying
+     * licenses. A replica's SYNC has a thread of its own for as long as it follows us.
      * @throws IOException
      */
     private void listenForCommands() throws IOException {
-        SSLSocket connection = null;
+        if (numCompileWorkers > 0) {
+            CompileUtility.setWorkerPool(new CompileWorkerPool(numCompileWorkers,
+                    compileWorkerHeapMB, compileWorkerRecycle));
+        }
+        compileLimiter = new AdaptiveLimiter(compileLimitInitial, 1, compileLimitMax,
+                compileWaitMillis);
+        reqBuckets = new TokenBuckets(reqRate, reqBurst);
+        verBuckets = new TokenBuckets(verRate, verBurst);
+        licenseTable = new LicenseTable(reservationTTLMillis);
+        if (journalDir != null) {
+            openJournal();
+        }
+        if (replica != null) {
+            replica.start();
+        }
+        intakeLane = new Lane("intake", INTAKE_THREADS, INTAKE_QUEUE, Thread.MAX_PRIORITY);
+        reqLane = new Lane("req", reqLaneThreads, reqLaneQueue, Thread.NORM_PRIORITY + 1);
+        verLane = new Lane("ver", verLaneThreads, verLaneQueue, Thread.NORM_PRIORITY - 1);
         do {
+            SSLSocket connection = null;
             try {
                 connection = (SSLSocket) serverConnection.accept();
             } catch (IOException e) {
@@ -124,179 +544,1279 @@ public class SWH {
             }
 
             if (connection != null) {
-                Log.log("Accepting connection from "
-                        + connection.getInetAddress().getCanonicalHostName() + ":"
-                        + connection.getPort());
-                DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
-                if (inStream != null) {
-                    String command = null;
+                final SSLSocket accepted = connection;
+                if (!intakeLane.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchConnection(accepted);
+                    }
+                })) {
+                    Log.log("Intake is full, dropping connection");
+                    closeConnection(connection);
+                }
+            }
+        } while (true);
+    }
+
+    /**
+     * Reads a command, and the deadline that comes with it, from connection and queues the
+     * command on the appropriate lane. If the client has used up its rate for that kind of
+     * command, the command is refused with a throttled (-5) status; if the lane is full, it is
+     * refused with a busy (-3) status; and if the deadline passes before the command leaves the
+     * lane's queue, it is refused with a deadline exceeded (-6) status. A Linker's health probe
+     * (PING) is answered immediately instead, and a replica's SYNC is handed a thread of its own.
+     * Whilst we are a replica, commands that would issue, reserve or consume licenses (REQ, BREQ,
+     * VER, BVER and CON) are refused with an unavailable (-2) status.
+     * @param connection the accepted connection
+     */
+    private void dispatchConnection(final SSLSocket connection) {
+        Log.log("Accepting connection from "
+                + connection.getInetAddress().getCanonicalHostName() + ":"
+                + connection.getPort());
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        String command = null;
+        Deadline deadline = null;
+        if (inStream != null) {
+            try {
+                // a client that connects and then says nothing must not hold an intake thread
+                connection.setSoTimeout(COMMAND_TIMEOUT_MILLIS);
+                command = inStream.readUTF();
+                deadline = Deadline.read(inStream, MAX_DEADLINE_MILLIS);
+                deadline.applyTo(connection);
+            } catch (IOException e) {
+                Log.error("Could read command " + "from stream");
+                e.printStackTrace();
+            }
+        }
+
+        if (command != null && deadline != null && command.equalsIgnoreCase("PING")) {
+            // answered straight from intake, so that a probe tells whether we are up rather than
+            // how long our queues are
+            answerPing(connection);
+            closeConnection(connection);
+            return;
+        }
+        if (command != null && deadline != null && command.equalsIgnoreCase("SYNC")) {
+            acceptReplica(connection);
+            return;
+        }
+
+        Lane lane = null;
+        TokenBuckets buckets = null;
+        if (command != null) {
+            if (command.equalsIgnoreCase("REQ") || command.equalsIgnoreCase("BREQ")) {
+                lane = reqLane;
+                buckets = reqBuckets;
+            } else if (command.equalsIgnoreCase("STAT") || command.equalsIgnoreCase("SEATS")
+                    || command.equalsIgnoreCase("KEY")) {
+                lane = reqLane;
+            } else if (command.equalsIgnoreCase("CON")) {
+                // consumption reports come from Linkers, so they share the Linkers' rate limit;
+                // a throttled report is kept by the Linker and sent again later
+                lane = reqLane;
+                buckets = verBuckets;
+            } else if (command.equalsIgnoreCase("VER") || command.equalsIgnoreCase("BVER")
+                    || command.equalsIgnoreCase("LIB") || command.equalsIgnoreCase("CHK")) {
+                lane = verLane;
+                buckets = verBuckets;
+            }
+        }
+        if (lane == null || deadline == null) {
+            closeConnection(connection);
+            return;
+        }
+
+        if (isReadOnly() && (command.equalsIgnoreCase("REQ") || command.equalsIgnoreCase("BREQ")
+                || command.equalsIgnoreCase("VER") || command.equalsIgnoreCase("BVER")
+                || command.equalsIgnoreCase("CON"))) {
+            Log.log("Refusing %s whilst we are a replica of %s\n", command, primaryAddress);
+            refuse(command, connection, -2);
+            closeConnection(connection);
+            return;
+        }
+
+        // clients do not present certificates, so they are told apart by address
+        String client = connection.getInetAddress().getHostAddress();
+        if (buckets != null && !buckets.tryAcquire(client)) {
+            Log.log("%s is sending %s too quickly, throttling\n", client, command);
+            refuse(command, connection, -5);
+            closeConnection(connection);
+            return;
+        }
+
+        final String accepted = command;
+        final Deadline acceptedDeadline = deadline;
+        if (!lane.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (acceptedDeadline.isExpired()) {
+                    Log.log("Deadline for %s passed whilst it was queued, refusing\n", accepted);
+                    refuse(accepted, connection, -6);
+                    closeConnection(connection);
+                } else {
+                    handleCommand(accepted, acceptedDeadline, connection);
+                }
+            }
+        })) {
+            Log.log("Too busy to handle %s, refusing\n", command);
+            refuse(command, connection, -3);
+            closeConnection(connection);
+        }
+    }
+
+    /**
+     * Takes on a replica that has asked to follow us with SYNC, unless we are a replica ourselves
+     * (-2) or are already followed by as many replicas as we allow (-3), and serves it on a thread
+     * of its own.
+     * @param connection the connection the SYNC was read from
+     */
+    private void acceptReplica(final SSLSocket connection) {
+        int status = 0;
+        if (isReadOnly()) {
+            Log.log("Refusing SYNC whilst we are a replica of %s\n", primaryAddress);
+            status = -2;
+        } else if (replicationLog.isFull()) {
+            Log.log("Already followed by %d replicas, refusing SYNC\n", MAX_REPLICAS);
+            status = -3;
+        }
+        if (status != 0) {
+            refuse("SYNC", connection, status);
+            closeConnection(connection);
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serveReplica(connection);
+                } finally {
+                    closeConnection(connection);
+                }
+            }
+        }, "replication-" + connection.getInetAddress().getHostAddress() + ":"
+                + connection.getPort());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Streams our licenses to a replica until it falls too far behind or goes away.
+     * We send a status of 0, then a random challenge, which the replica must sign with the private
+     * key of the key store we were given, as proof that it belongs to our company; we check the
+     * signature against our own certificate, and answer -1 if it does not match. Only then is the
+     * replica subscribed to replicationLog, so that a peer which cannot prove who it is never
+     * takes up a subscription or makes us queue records for it; if as many replicas as we allow
+     * have subscribed meanwhile, we answer -3. Otherwise we answer 0, then send our key pair
+     * (X.509 encoded public key, then PKCS#8 encoded private key, each prefixed by its length),
+     * then a snapshot of the licenses that are outstanding, then every record of replicationLog
+     * from the moment the replica subscribed. Each is sent as the number of the record, when it
+     * was written in milliseconds since the epoch, the number of the last record written, and the
+     * record itself; the snapshot is sent as records numbered where the replica subscribed, and
+     * ends with an "S" record. Whilst there are no records to send, an "H" record is sent every
+     * Replica.HEARTBEAT_MILLIS, so that the replica knows we are alive.
+     * @param connection the connection the SYNC was read from
+     */
+    private void serveReplica(SSLSocket connection) {
+        ReplicationLog.Subscriber subscriber = null;
+        String address = connection.getInetAddress().getHostAddress() + ":" + connection.getPort();
+        try {
+            final DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
+                    connection.getOutputStream()));
+            DataInputStream inStream = new DataInputStream(connection.getInputStream());
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            new SecureRandom().nextBytes(challenge);
+            outStream.writeInt(0);
+            outStream.writeInt(challenge.length);
+            outStream.write(challenge);
+            outStream.flush();
+            int length = inStream.readInt();
+            byte[] signature = new byte[length < 0 || length > 4096 ? 0 : length];
+            inStream.readFully(signature);
+            if (!isSignedByUs(challenge, signature)) {
+                Log.log("Replica at %s could not prove it is one of us, refusing SYNC\n",
+                        address);
+                outStream.writeInt(-1);
+                outStream.flush();
+                return;
+            }
+            subscriber = replicationLog.subscribe();
+            if (subscriber == null) {
+                Log.log("Already followed by %d replicas, refusing SYNC\n", MAX_REPLICAS);
+                outStream.writeInt(-3);
+                outStream.flush();
+                return;
+            }
+            Log.log("Replica at %s is following us\n", address);
+            outStream.writeInt(0);
+            KeyPair keyPair = myKey;
+            byte[] publicKey = keyPair.getPublic().getEncoded();
+            byte[] privateKey = keyPair.getPrivate().getEncoded();
+            outStream.writeInt(publicKey.length);
+            outStream.write(publicKey);
+            outStream.writeInt(privateKey.length);
+            outStream.write(privateKey);
+
+            // the listener cannot throw, so the first failure is kept for after the snapshot
+            final long startSeq = subscriber.getStartSeq();
+            final IOException[] failure = new IOException[1];
+            int n = licenseTable.forEachOutstanding(new LicenseJournal.Listener() {
+                @Override
+                public void issued(String key, String libraryName, String encrypted,
+                        String customer, long ttlMillis) {
                     try {
-                        command = inStream.readUTF();
+                        if (failure[0] == null) {
+                            writeRecord(outStream, startSeq, startSeq, ReplicationLog.issueRecord(
+                                    key, libraryName, encrypted, customer, ttlMillis));
+                        }
                     } catch (IOException e) {
-                        Log.error("Could read command " + "from stream");
-                        e.printStackTrace();
+                        failure[0] = e;
                     }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            writeRecord(outStream, startSeq, replicationLog.getSeq(), "S");
+            Log.log("Sent a snapshot of %d licenses to replica at %s\n", n, address);
+
+            while (true) {
+                ReplicationLog.Record record = subscriber.poll(0);
+                if (record == null) {
+                    outStream.flush();
+                    record = subscriber.poll(Replica.HEARTBEAT_MILLIS);
+                }
+                if (subscriber.isDropped()) {
+                    Log.log("Replica at %s fell too far behind, dropping it\n", address);
+                    return;
+                }
+                long head = replicationLog.getSeq();
+                if (record == null) {
+                    writeRecord(outStream, head, head, "H");
+                } else {
+                    outStream.writeLong(record.getSeq());
+                    outStream.writeLong(record.getTimeMillis());
+                    outStream.writeLong(head);
+                    outStream.writeUTF(record.getLine());
+                }
+            }
+        } catch (IOException e) {
+            Log.log("Lost replica at %s: %s\n", address, e.getMessage());
+        } catch (InterruptedException e) {
+            Log.error("Interrupted whilst serving replica at %s\n", address);
+        } finally {
+            if (subscriber != null) {
+                replicationLog.unsubscribe(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Writes a record written now to a replica.
+     * @param outStream the stream to the replica
+     * @param seq the number of the record
+     * @param head the number of the last record written
+     * @param line the record
+     * @throws IOException if the record could not be written
+     */
+    private static void writeRecord(DataOutputStream outStream, long seq, long head, String line)
+            throws IOException {
+        outStream.writeLong(seq);
+        outStream.writeLong(System.currentTimeMillis());
+        outStream.writeLong(head);
+        outStream.writeUTF(line);
+    }
+
+    /**
+     * @param challenge the challenge sent to a replica
+     * @param signature the replica's signature over the challenge
+     * @return true if the signature was made with our own private key
+     */
+    private boolean isSignedByUs(byte[] challenge, byte[] signature) {
+        return identity != null && SecurityUtilities.verify(
+                identity.getCertificate().getPublicKey(), challenge, signature);
+    }
+
+    /**
+     * Answers a Linker's health probe.
+     * @param connection the connection the PING was read from
+     */
+    private void answerPing(SSLSocket connection) {
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+        if (outStream != null) {
+            try {
+                outStream.writeInt(0);
+            } catch (IOException e) {
+                Log.error("Could not answer health probe");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Calls the appropriate method for a command, then closes connection.
+     * @param command the command read from connection
+     * @param deadline when the client needs an answer by
+     * @param connection the accepted connection
+     */
+    private void handleCommand(String command, Deadline deadline, SSLSocket connection) {
+        if (command.equalsIgnoreCase("REQ")) {
+            generateLicenses(connection);
+        } else if (command.equalsIgnoreCase("BREQ")) {
+            generateBulkLicenses(connection);
+        } else if (command.equalsIgnoreCase("VER")) {
+            acceptLicenses(connection, deadline);
+        } else if (command.equalsIgnoreCase("BVER")) {
+            acceptBulkLicenses(connection, deadline);
+        } else if (command.equalsIgnoreCase("STAT")) {
+            sendStatistics(connection);
+        } else if (command.equalsIgnoreCase("SEATS")) {
+            sendSeats(connection);
+        } else if (command.equalsIgnoreCase("KEY")) {
+            sendPublicKey(connection);
+        } else if (command.equalsIgnoreCase("LIB")) {
+            sendSharedLibrary(connection, deadline);
+        } else if (command.equalsIgnoreCase("CON")) {
+            acceptConsumptions(connection);
+        } else if (command.equalsIgnoreCase("CHK")) {
+            checkLicenses(connection);
+        }
+        closeConnection(connection);
+    }
+
+    /**
+     * Refuses a command without doing it, answering with a refusal status wherever the command
+     * would normally receive its first status code or count.
+     * @param command the command being refused
+     * @param connection the connection the command was read from
+     * @param status the refusal status: -2 if we are a replica and may not do it, -3 if we are too
+     * busy, -5 if the client is throttled, -6 if the client's deadline has passed
+     */
+    private void refuse(String command, SSLSocket connection, int status) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+        if (inStream == null || outStream == null) {
+            return;
+        }
+        try {
+            if (command.equalsIgnoreCase("BVER")) {
+                // the Linker expects one status per license, so we need to know how many it sent
+                inStream.readUTF();
+                rejectBatch(inStream, outStream, inStream.readInt(), status);
+            } else if (command.equalsIgnoreCase("STAT") || command.equalsIgnoreCase("SEATS")) {
+                outStream.writeUTF(status == -6 ? "deadline exceeded\n" : "busy\n");
+            } else {
+                outStream.writeInt(status);
+            }
+        } catch (IOException e) {
+            Log.error("Could not refuse " + command);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes an accepted connection.
+     * @param connection the connection to close
+     */
+    private void closeConnection(SSLSocket connection) {
+        try {
+            Log.log("Closing connection to "
+                    + connection.getInetAddress().getCanonicalHostName() + ":"
+                    + connection.getPort());
+            connection.close();
+        } catch (IOException e) {
+            Log.error("IO error whilst" + " closing connection");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a human readable summary of this SWH's internal statistics to the remote host of
+     * connection.
+     * @param connection the connected socket
+     */
+    private void sendStatistics(SSLSocket connection) {
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+        if (outStream != null) {
+            StringBuilder stats = new StringBuilder();
+            stats.append("licenses: ").append(licenseTable.getStatistics()).append('\n');
+            stats.append(String.format("offline consumption: reported=%d rejected=%d\n",
+                    consumptionsReported.get(), consumptionsRejected.get()));
+            stats.append("replication: ").append(replica == null ? "primary"
+                    : replica.getStatistics()).append("; log ")
+                    .append(replicationLog.getStatistics()).append('\n');
+            if (shardRing != null) {
+                stats.append(String.format("shard: %s (%d of %d) redraws=%d\n", shardName,
+                        shardIndex + 1, shardRing.getShards().size(), shardRedraws.get()));
+            }
+            if (precompiled != null) {
+                stats.append(precompiled.getStatistics()).append('\n');
+            }
+            if (sharedClasses) {
+                stats.append(String.format("shared classes: cached=%d hits=%d misses=%d\n",
+                        sharedClassCache.size(), sharedClassHits.get(), sharedClassMisses.get()));
+            }
+            stats.append(compileLimiter.getStatistics()).append('\n');
+            stats.append(CompileUtility.getStatistics()).append('\n');
+            stats.append("req rate: ").append(reqBuckets.getStatistics()).append('\n');
+            stats.append("ver rate: ").append(verBuckets.getStatistics()).append('\n');
+            stats.append(intakeLane.getStatistics()).append('\n');
+            stats.append(reqLane.getStatistics()).append('\n');
+            stats.append(verLane.getStatistics()).append('\n');
+            try {
+                outStream.writeUTF(stats.toString());
+            } catch (IOException e) {
+                Log.error("Could not send statistics");
+                e.printStackTrace();
+            }
+            NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+        }
+        Log.logEnd();
+    }
+
+    /**
+     * Applies an optional setting, given on the command line as name=value.
+     * Recognised settings are:
+     * precompile=[n], which compiles each library as soon as a license for it is issued and keeps
+     * up to n compiled libraries for the Linker's VER;
+     * reqlane=[threads]/[queue], the threads and queue limit for REQ, BREQ, STAT, SEATS, KEY and
+     * CON (default 4/64);
+     * verlane=[threads]/[queue], the threads and queue limit for VER, BVER, LIB and CHK
+     * (default 4/16);
+     * compileworkers=[n], which compiles libraries in n separate worker processes rather than
+     * inside the SWH, so that compile load cannot stall license issuance;
+     * workerheap=[MB], the maximum heap of each compile worker process (default 256);
+     * workerrecycle=[n], how many compilations a compile worker does before it is replaced
+     * (default 500);
+     * reqrate=[per second]/[burst], how many REQs and BREQs each client may make (default 20/40);
+     * verrate=[per second]/[burst], how many VERs, BVERs, LIBs, CHKs and CONs each client may
+     * make (default 10/20);
+     * compilelimit=[initial]/[max], how many compilations may run at once to begin with, and at
+     * most, as the limit adapts to compile latency (default one and four per processor);
+     * compilewait=[ms], how long a VER or BVER may wait to start compiling before it is turned
+     * away as overloaded (default 1000);
+     * replicas=[host:port,...], other SWHs serving the same libraries, which Linkers may verify
+     * our licenses with instead (default none);
+     * reservettl=[ms], how long a verified license stays reserved for the developer it was
+     * verified for whilst the Linker has not ACKed its library, and how long a consumed license is
+     * remembered so that reuse of it is recognised (default 60000);
+     * licensettl=[ms], how long an issued license may go unused before it expires (default 0, for
+     * never), and licensettl.[library]=[ms], the same for one library;
+     * quota=[n], how many licenses for a library each customer may have outstanding (issued and
+     * neither consumed nor expired) at once (default 0, for no limit), and quota.[library]=[n],
+     * the same for one library;
+     * maxorder=[n], the most licenses issued over a single connection, to one REQ or across every
+     * entry of a BREQ, larger orders being granted in part (default 10000);
+     * journal=[directory], where to keep a journal of issued and consumed licenses, and the key
+     * pair licenses are encrypted with, so that outstanding licenses survive a restart (default
+     * none, for licenses to be kept in memory only);
+     * primary=[host:port], a primary SWH serving the same libraries with the same key store, whose
+     * licenses we replicate (see Replica): whilst following it we serve only KEY, LIB, CHK, STAT
+     * and SEATS, and if it is unreachable for failover=[ms] (default 10000) we take over from it;
+     * truststore=[file], the trust store holding the primary's certificate, opened with our key
+     * store's password; a replica cannot keep a journal of its own (default none, for us to be a
+     * primary);
+     * shards=[host:port,...], every SWH of a cluster serving the same libraries, in the same order
+     * on each of them, between which the licenses are split by consistent hashing (see
+     * ShardRing), and shard=[host:port], which of them we are; each SWH of the cluster then only
+     * issues licenses that hash to itself, so any agent holding a license and the list of shards
+     * can tell which SWH verifies it (default none, for a SWH of its own); and
+     * protection=[source|resource], which chooses between baking each license into the source of
+     * the library (the default), or serving one shared class file per library version along with
+     * a sealed license resource; licenses issued whilst serving shared classes are sealed too, so
+     * that Linkers can verify them without a VER.
+     * @param name the name of the setting
+     * @param value the value of the setting
+     * @return true if the setting was recognised and applied, false otherwise
+     */
+    private boolean configure(String name, String value) {
+        try {
+            if (name.equals("precompile")) {
+                precompiled = new ClassStore(Integer.parseInt(value));
+                Log.log("Precompiling up to %s libraries\n", value);
+                return true;
+            } else if (name.equals("reqlane") || name.equals("verlane")) {
+                String[] sizes = value.split("/");
+                if (sizes.length != 2) {
+                    throw new IllegalArgumentException(value);
+                }
+                if (name.equals("reqlane")) {
+                    reqLaneThreads = positive(sizes[0]);
+                    reqLaneQueue = positive(sizes[1]);
+                } else {
+                    verLaneThreads = positive(sizes[0]);
+                    verLaneQueue = positive(sizes[1]);
+                }
+                return true;
+            } else if (name.equals("reqrate") || name.equals("verrate")) {
+                String[] rates = value.split("/");
+                if (rates.length != 2) {
+                    throw new IllegalArgumentException(value);
+                }
+                if (name.equals("reqrate")) {
+                    reqRate = positive(rates[0]);
+                    reqBurst = positive(rates[1]);
+                } else {
+                    verRate = positive(rates[0]);
+                    verBurst = positive(rates[1]);
+                }
+                return true;
+            } else if (name.equals("compilelimit")) {
+                String[] limits = value.split("/");
+                if (limits.length != 2) {
+                    throw new IllegalArgumentException(value);
+                }
+                compileLimitInitial = positive(limits[0]);
+                compileLimitMax = positive(limits[1]);
+                if (compileLimitInitial > compileLimitMax) {
+                    throw new IllegalArgumentException(value);
+                }
+                return true;
+            } else if (name.equals("compilewait")) {
+                compileWaitMillis = positive(value);
+                return true;
+            } else if (name.equals("replicas")) {
+                for (String replica : value.split(",")) {
+                    int colon = replica.lastIndexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException(replica);
+                    }
+                    positive(replica.substring(colon + 1));
+                    replicas.add(replica);
+                }
+                return true;
+            } else if (name.equals("reservettl")) {
+                reservationTTLMillis = positive(value);
+                return true;
+            } else if (name.equals("licensettl")) {
+                licenseTTLMillis = positiveLong(value);
+                return true;
+            } else if (name.startsWith("licensettl.") && name.length() > "licensettl.".length()) {
+                libraryLicenseTTLMillis.put(name.substring("licensettl.".length()),
+                        positiveLong(value));
+                return true;
+            } else if (name.equals("quota")) {
+                defaultQuota = positive(value);
+                return true;
+            } else if (name.startsWith("quota.") && name.length() > "quota.".length()) {
+                libraryQuotas.put(name.substring("quota.".length()), positiveLong(value));
+                return true;
+            } else if (name.equals("maxorder")) {
+                maxOrder = positive(value);
+                return true;
+            } else if (name.equals("shards")) {
+                shardRing = ShardRing.parse(value);
+                return true;
+            } else if (name.equals("shard")) {
+                shardName = value;
+                return true;
+            } else if (name.equals("journal")) {
+                journalDir = new File(value);
+                return true;
+            } else if (name.equals("primary")) {
+                int colon = value.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException(value);
+                }
+                positive(value.substring(colon + 1));
+                primaryAddress = value;
+                return true;
+            } else if (name.equals("truststore")) {
+                primaryTrustFile = value;
+                return true;
+            } else if (name.equals("failover")) {
+                failoverMillis = positive(value);
+                return true;
+            } else if (name.equals("compileworkers")) {
+                numCompileWorkers = positive(value);
+                return true;
+            } else if (name.equals("workerheap")) {
+                compileWorkerHeapMB = positive(value);
+                return true;
+            } else if (name.equals("workerrecycle")) {
+                compileWorkerRecycle = positive(value);
+                return true;
+            } else if (name.equals("protection")) {
+                if (value.equals("source") || value.equals("resource")) {
+                    sharedClasses = value.equals("resource");
+                    return true;
+                }
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            Log.error("Invalid value for %s: %s\n", name, value);
+        }
+        return false;
+    }
+
+    /**
+     * Finds where we are in our cluster, once every setting has been applied.
+     * @return false if only one of shards and shard was given, or shard is not one of shards;
+     * true otherwise
+     */
+    private boolean joinShards() {
+        if (shardRing == null && shardName == null) {
+            return true;
+        }
+        shardIndex = shardRing == null || shardName == null ? -1 : shardRing.indexOf(shardName);
+        if (shardIndex < 0) {
+            return false;
+        }
+        Log.log("Issuing the licenses of shard %s of %s\n", shardName, shardRing.getShards());
+        return true;
+    }
+
+    /**
+     * @param value the value of a setting
+     * @return the value as a positive integer
+     * @throws IllegalArgumentException if the value is not a positive integer
+     */
+    private static int positive(String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException(value);
+        }
+        return n;
+    }
+
+    /**
+     * @param value the value of a setting
+     * @return the value as a positive long
+     * @throws IllegalArgumentException if the value is not a positive long
+     */
+    private static long positiveLong(String value) {
+        long n = Long.parseLong(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException(value);
+        }
+        return n;
+    }
+
+    /**
+     * Checks that every library named by a setting is one we are responsible for, once the
+     * libraries have been read.
+     * @return false if a licensettl.[library] or quota.[library] setting names a library we do not
+     * serve, which is most likely a typo that would otherwise leave the library's licenses without
+     * their TTL or quota
+     */
+    private boolean checkLibrarySettings() {
+        return checkLibraryNames("licensettl", libraryLicenseTTLMillis.keySet())
+                & checkLibraryNames("quota", libraryQuotas.keySet());
+    }
+
+    /**
+     * @param setting the name of a per library setting, without the library
+     * @param libNames the libraries the setting was given for
+     * @return false, having logged each of them, if any of the libraries is not one we serve
+     */
+    private boolean checkLibraryNames(String setting, Set<String> libNames) {
+        boolean ok = true;
+        for (String libName : libNames) {
+            if (!libraries.containsKey(libName)) {
+                Log.error("%s.%s names a library we are not responsible for\n", setting, libName);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * @param libName
+     * @param srcFile the source file for the associated library
+     */
+    private void addLibraryFile(String libName, File srcFile) {
+        libraries.put(libName, srcFile);
+    }
+
+    /**
+     * generates licenses for the remote host of connection
+     * @param connection
+     */
+    private void generateLicenses(SSLSocket connection) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+
+        if (inStream != null && outStream != null) {
+            Log.log("Reading license request from "
+                    + connection.getInetAddress().getCanonicalHostName() + ":"
+                    + connection.getPort());
+
+            int numLicenses = -1;
+            String libName = null;
+            try {
+                libName = inStream.readUTF();
+                numLicenses = inStream.readInt();
 
-                    if (command != null) {
-                        if (command.equalsIgnoreCase("REQ")) {
-                            generateLicenses(connection);
-                        } else if (command.equalsIgnoreCase("VER")) {
-                            acceptLicenses(connection);
+                Log.log(connection.getInetAddress().getCanonicalHostName() + ":"
+                        + connection.getPort() + " requested " + numLicenses + " licenses for "
+                        + libName);
+            } catch (IOException e) {
+                Log.error("Could not read library name and numLicenses");
+                e.printStackTrace();
+            }
+
+            writeLicenses(connection, inStream, outStream, libName, numLicenses, maxOrder);
+
+            NetworkUtilities.closeSocketDataInputStream(inStream, connection);
+            NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+
+            Log.logEnd();
+        }
+    }
+
+    /**
+     * Generates licenses for several libraries for the remote host of connection in a single
+     * round-trip.
+     * The request is a count of entries followed by that many (library name, number of licenses)
+     * pairs. The response echoes the count, then for each entry (in request order) the library
+     * name followed by exactly what a REQ would have answered for that library. The entries share
+     * a single maxOrder between them, so once it is used up the remaining entries are granted
+     * none, and the Developer asks again, on a new connection, for what it is still missing.
+     * @param connection the connected socket
+     */
+    private void generateBulkLicenses(SSLSocket connection) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+
+        if (inStream != null && outStream != null) {
+            Log.log("Reading bulk license request from "
+                    + connection.getInetAddress().getCanonicalHostName() + ":"
+                    + connection.getPort());
+
+            // the whole request is read before we answer, so that the Developer can write all of
+            // its entries without waiting on us
+            List<String> libNames = new ArrayList<String>();
+            List<Integer> counts = new ArrayList<Integer>();
+            int nEntries = -1;
+            try {
+                nEntries = inStream.readInt();
+                if (nEntries > MAX_BULK_ENTRIES) {
+                    Log.log("Bulk request of %d entries exceeds limit of %d\n", nEntries,
+                            MAX_BULK_ENTRIES);
+                    nEntries = -1;
+                }
+                for (int i = 0; i < nEntries; i++) {
+                    libNames.add(inStream.readUTF());
+                    counts.add(inStream.readInt());
+                }
+            } catch (IOException e) {
+                Log.error("Could not read bulk license request");
+                e.printStackTrace();
+                nEntries = -1;
+            }
+
+            try {
+                if (nEntries > 0) {
+                    outStream.writeInt(nEntries);
+                    int allowance = maxOrder;
+                    for (int i = 0; i < nEntries; i++) {
+                        Log.log(connection.getInetAddress().getCanonicalHostName() + ":"
+                                + connection.getPort() + " requested " + counts.get(i)
+                                + " licenses for " + libNames.get(i));
+                        outStream.writeUTF(libNames.get(i));
+                        int issued = writeLicenses(connection, inStream, outStream,
+                                libNames.get(i), counts.get(i), allowance);
+                        if (issued < 0) {
+                            break;
                         }
+                        allowance -= issued;
                     }
+                } else {
+                    Log.log("Refusing bulk license request");
+                    outStream.writeInt(-1);
                 }
+            } catch (IOException e) {
+                Log.error("encountered I/O error whilst answering bulk license request");
+                e.printStackTrace();
             }
 
+            NetworkUtilities.closeSocketDataInputStream(inStream, connection);
+            NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+
+            Log.logEnd();
+        }
+    }
+
+    /**
+     * Generates up to numLicenses licenses for libName and streams them to outStream.
+     * The number of licenses granted is written first: numLicenses, or allowance if fewer, in
+     * which case the Developer asks again for the rest. If it is not 0, it is followed by the
+     * number of our replicas and each replica's (host, port), then the licenses in chunks of at
+     * most ISSUE_CHUNK, each prefixed by its size. After each chunk but the last, we wait for the
+     * Developer to send an int on inStream: 1 once it has stored the chunk and wants the next,
+     * anything else to stop. So neither side holds more than a chunk at a time, however large the
+     * order, and a slow Developer is paced rather than buffered for; one that does not answer
+     * within CHUNK_ACK_MILLIS is given up on, rather than holding a thread until its deadline.
+     * Each chunk is recorded, and the journal synced, before any of it is written, so that the
+     * Developer never holds a license we could forget by restarting.
+     * -1 is written instead of the number granted if the request cannot be honoured, or -8 if it
+     * would take the customer over their quota of outstanding licenses for the library.
+     * Each license is written unencrypted, then encrypted, then sealed: when serving shared
+     * classes, the seal is our signature over the library name and license, with which a Linker
+     * can verify the license itself (see OfflineVerifier in the Linker); otherwise it is empty.
+     * @param connection the connected socket, used to record where the licenses were issued from
+     * @param inStream the stream the Developer asks for each further chunk on
+     * @param outStream the stream to write the licenses to
+     * @param libName the library the licenses are for
+     * @param numLicenses the number of licenses requested
+     * @param allowance the most licenses that may still be issued over this connection
+     * @return the number of licenses issued (0 if the request was refused), or -1 if an I/O error
+     * occurred and the connection should be abandoned
+     */
+    private int writeLicenses(SSLSocket connection, DataInputStream inStream,
+            DataOutputStream outStream, String libName, int numLicenses, int allowance) {
+        // clients do not present certificates, so customers are told apart by address
+        String customer = connection.getInetAddress().getHostAddress();
+        boolean valid = numLicenses > 0 && libName != null && libraries.containsKey(libName);
+        int granted = Math.min(numLicenses, allowance);
+        if (valid && granted <= 0) {
             try {
-                Log.log("Closing connection to "
-                        + connection.getInetAddress().getCanonicalHostName() + ":"
-                        + connection.getPort());
-                connection.close();
+                Log.log("Connection has had its %d licenses, granting none of %d more\n",
+                        maxOrder, numLicenses);
+                outStream.writeInt(0);
             } catch (IOException e) {
-                Log.error("IO error whilst" + " closing connection");
+                Log.error("could not say no to Developer");
                 e.printStackTrace();
+                return -1;
             }
-        } while (true);
+            return 0;
+        }
+        long remaining = !valid ? 0 : licenseTable.getLibraryCounters().acquire(customer,
+                libName, granted, quotaFor(libName));
+        if (valid && remaining < granted) {
+            try {
+                Log.log("%s has %d of its quota of %s licenses left, refusing %d more\n",
+                        customer, remaining, libName, granted);
+                outStream.writeInt(-8);
+            } catch (IOException e) {
+                Log.error("could not say no to Developer");
+                e.printStackTrace();
+                return -1;
+            }
+        } else if (valid) {
+            int issued = 0;
+            try {
+                Log.log("Generating %d of %d licenses for %s:%d\n", granted, numLicenses,
+                        connection.getInetAddress().getCanonicalHostName(), connection.getPort());
+                outStream.writeInt(granted);
+
+                // tell the developer where else these licenses can be verified
+                outStream.writeInt(replicas.size());
+                for (String replica : replicas) {
+                    int colon = replica.lastIndexOf(':');
+                    outStream.writeUTF(replica.substring(0, colon));
+                    outStream.writeInt(Integer.parseInt(replica.substring(colon + 1)));
+                }
+
+                // the digest is reusable once digest() has been called, so one will do for the
+                // whole batch
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                InetAddress localHost = InetAddress.getLocalHost();
+                List<License> chunk = new ArrayList<License>(Math.min(ISSUE_CHUNK, granted));
+                while (issued < granted) {
+                    chunk.clear();
+                    while (chunk.size() < Math.min(ISSUE_CHUNK, granted - issued)) {
+                        LicenseToken token = newLicense(md, libName, issued);
+                        String unencrypted = wrapLicense(token, myKey.getPublic());
+                        String seal = sharedClasses ? signLicense(libName, token.toString())
+                                : null;
+                        // the seal is kept with the license, so serving the library does not
+                        // sign it again
+                        License license = new License(token, localHost, libName,
+                                connection.getLocalPort(), unencrypted,
+                                Collections.<String>emptyList(), seal == null ? "" : seal);
+                        addLicense(license, customer);
+                        chunk.add(license);
+                        issued++;
+                        if (precompiled != null && !sharedClasses) {
+                            precompiled.precompile(license.getToken(), libName,
+                                    libraries.get(libName));
+                        }
+                    }
+                    // a license the Developer holds must survive our restarting, so the chunk is
+                    // on disk before any of it is sent
+                    if (journal != null) {
+                        journal.sync();
+                    }
+                    outStream.writeInt(chunk.size());
+                    for (License license : chunk) {
+                        outStream.writeUTF(license.getLicenseString());
+                        outStream.writeUTF(license.getEncryptedLicenseString());
+                        outStream.writeUTF(license.getSeal());
+                    }
+                    outStream.flush();
+                    if (issued < granted) {
+                        int timeout = connection.getSoTimeout();
+                        connection.setSoTimeout(timeout == 0 ? CHUNK_ACK_MILLIS
+                                : Math.min(timeout, CHUNK_ACK_MILLIS));
+                        if (inStream.readInt() != 1) {
+                            Log.log("Developer stopped after %d of %d licenses\n", issued,
+                                    granted);
+                            break;
+                        }
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                Log.error("Developer did not ask for more licenses in time, stopping after %d of "
+                        + "%d\n", issued, granted);
+                return -1;
+            } catch (IOException e) {
+                Log.error("encountered I/O error whilst " + "generating licenses");
+                e.printStackTrace();
+                return -1;
+            } catch (NoSuchAlgorithmException e) {
+                Log.error("could not construct MD5 message" + "digest");
+                e.printStackTrace();
+                return -1;
+            } finally {
+                // licenses that were never issued do not count against the quota
+                licenseTable.getLibraryCounters().release(customer, libName, granted - issued);
+            }
+            return issued;
+        } else {
+            try {
+                Log.log("Refusing developer license request");
+                Log.log("Found values:\n\tnumLicenses: %d\n"
+                        + "\tlibName: %s\n\thasLibrary? %s\n", numLicenses, libName,
+                        libraries.containsKey(libName));
+                outStream.writeInt(-1);
+            } catch (IOException e) {
+                Log.error("could not say no to Developer");
+                e.printStackTrace();
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Draws a new license. When we are part of a cluster, licenses that hash to another SWH of the
+     * cluster are drawn again, so that the license itself says which SWH it belongs to.
+     * @param md the digest to draw the license with
+     * @param libName the library the license is for
+     * @param n how many licenses have been issued in this order so far
+     * @return the license
+     */
+    private LicenseToken newLicense(MessageDigest md, String libName, int n) {
+        while (true) {
+            // construct a license based on some attributes, plus a salt from Math.random()
+            String s = libName + n + System.currentTimeMillis() + Math.random();
+
+            // Note that s.getBytes() is not platform independent.
+            // Better approach would be to use character encodings.
+            LicenseToken token = LicenseToken.fromBytes(md.digest(s.getBytes()));
+            if (shardRing == null || shardRing.ownerOf(token) == shardIndex) {
+                return token;
+            }
+            shardRedraws.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a license to client licenses, to expire if its library has a time to live, records it
+     * in our journal if we keep one, and hands it to our replicas
+     * @param l
+     * @param customer the customer the license is issued to
+     * @throws IOException if the license could not be recorded in the journal
+     */
+    private void addLicense(License l, String customer) throws IOException {
+        Long ttl = libraryLicenseTTLMillis.get(l.getLibraryName());
+        long ttlMillis = ttl == null ? licenseTTLMillis : ttl;
+        String licenseString = l.getLicenseString();
+        if (journal != null) {
+            journal.issued(licenseString, l.getLibraryName(), l.getEncryptedLicenseString(),
+                    customer, ttlMillis);
+        }
+        // logged before the license is in the table, where a VER could consume it and log its
+        // "C" record; holding the log meanwhile stops a replica subscribing in between, and so
+        // taking a snapshot that misses the license and a log that starts after its "I" record
+        synchronized (replicationLog) {
+            replicationLog.issued(licenseString, l.getLibraryName(),
+                    l.getEncryptedLicenseString(), customer, ttlMillis);
+            licenseTable.issue(l.getToken(), l, ttlMillis, customer);
+        }
     }
 
     /**
-     * @param libName
-     * @param srcFile the source file for the associated library
+     * @param libraryName a library
+     * @return the most licenses for the library each customer may have outstanding; 0 for no
+     * limit
      */
-    private void addLibraryFile(String libName, File srcFile) {
-        libraries.put(libName, srcFile);
+    private long quotaFor(String libraryName) {
+        Long quota = libraryQuotas.get(libraryName);
+        return quota == null ? defaultQuota : quota;
     }
 
     /**
-     * generates licenses for the remote host of connection
-     * @param connection
+     * Sends a human readable count of the licenses issued, outstanding, consumed and expired for a
+     * library, or for every library, to the remote host of connection. The counts are kept as
+     * licenses change state, so no licenses are looked at to answer.
+     * The request is the library name, or "*" for every library.
+     * @param connection the connected socket
      */
-    private void generateLicenses(SSLSocket connection) {
+    private void sendSeats(SSLSocket connection) {
         DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
         DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
-
         if (inStream != null && outStream != null) {
-            Log.log("Reading license request from "
-                    + connection.getInetAddress().getCanonicalHostName() + ":"
-                    + connection.getPort());
-
-            int numLicenses = -1;
-            String libName = null;
             try {
-                libName = inStream.readUTF();
-                numLicenses = inStream.readInt();
+                String libraryName = inStream.readUTF();
+                LibraryCounters counters = licenseTable.getLibraryCounters();
+                outStream.writeUTF(libraryName.equals("*") ? counters.getStatistics()
+                        : counters.getStatistics(libraryName) + "\n");
+            } catch (IOException e) {
+                Log.error("Could not send seat counts");
+                e.printStackTrace();
+            }
+        }
+    }
 
-                Log.log(connection.getInetAddress().getCanonicalHostName() + ":"
-                        + connection.getPort() + " requested " + numLicenses + " licenses for "
-                        + libName);
+    /**
+     * Sends our public key to the remote host of connection, so that a Linker can verify sealed
+     * licenses itself: a status of 0, then the length of the X.509 encoded key, then the key.
+     * @param connection the connected socket
+     */
+    private void sendPublicKey(SSLSocket connection) {
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+        if (outStream != null) {
+            try {
+                byte[] encoded = myKey.getPublic().getEncoded();
+                outStream.writeInt(0);
+                outStream.writeInt(encoded.length);
+                outStream.write(encoded);
             } catch (IOException e) {
-                Log.error("Could not read library name and numLicenses");
+                Log.error("Could not send public key");
                 e.printStackTrace();
             }
+        }
+    }
 
-            if (numLicenses > 0 && libName != null && libraries.containsKey(libName)) {
-                try {
-                    Log.log("Generating licenses for "
-                            + connection.getInetAddress().getCanonicalHostName() + ":"
-                            + connection.getPort());
-                    outStream.writeInt(numLicenses);
-
-                    for (int i = 0; i < numLicenses; i++) {
-                        // construct a license based on some attributes, plus a salt from
-                        // Math.random()
-                        String s = libName + i + System.currentTimeMillis() + Math.random();
-                        MessageDigest md = MessageDigest.getInstance("MD5");
-
-                        // Note that s.getBytes() is not platform independent.
-                        // Better approach would be to use character encodings.
-                        String license = NetworkUtilities.bytesToHex(md.digest(s.getBytes()));
-                        outStream.writeUTF(license);
-
-                        String unencrypted = wrapLicense(license, myKey.getPublic());
-                        outStream.writeUTF(unencrypted);
-
-                        addLicense(license, new License(license, InetAddress.getLocalHost(),
-                                libName, connection.getLocalPort(), unencrypted));
-                    }
-                } catch (IOException e) {
-                    Log.error("encountered I/O error whilst " + "generating licenses");
-                    e.printStackTrace();
-                } catch (NoSuchAlgorithmException e) {
-                    Log.error("could not construct MD5 message" + "digest");
-                    e.printStackTrace();
+    /**
+     * Sends the shared class files of a library, without any license, to a Linker that verifies
+     * sealed licenses itself and adds their license resources on its own.
+     * The request is the library name. The response is a status code (0 if the class files
+     * follow, -1 if we do not serve the library as shared classes, -2 if it could not be compiled,
+     * -4 if we are too overloaded to compile it, -6 if the deadline passed) and, if 0, the class
+     * files as a bundle.
+     * @param connection the connected socket
+     * @param deadline when the Linker needs an answer by
+     */
+    private void sendSharedLibrary(SSLSocket connection, Deadline deadline) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+        if (inStream != null && outStream != null) {
+            try {
+                String libraryName = inStream.readUTF();
+                Map<String, byte[]> entries = null;
+                int status = -1;
+                if (sharedClasses && libraries.containsKey(libraryName)) {
+                    Log.log("Sending shared class files of %s\n", libraryName);
+                    entries = sharedClassEntries(
+                            Collections.singletonMap(libraryName, libraries.get(libraryName)),
+                            deadline);
+                    status = entries == OVERLOADED ? -4
+                            : entries != null ? 0 : deadline.isExpired() ? -6 : -2;
                 }
-            } else {
-                try {
-                    Log.log("Refusing developer license request");
-                    Log.log("Found values:\n\tnumLicenses: %d\n"
-                            + "\tlibName: %s\n\thasLibrary? %s\n", numLicenses, libName,
-                            libraries.containsKey(libName));
-                    outStream.writeInt(-1);
-                } catch (IOException e) {
-                    Log.error("could not say no to Developer");
-                    e.printStackTrace();
+                outStream.writeInt(status);
+                if (status == 0) {
+                    NetworkUtilities.writeBundle(connection, entries);
                 }
+            } catch (IOException e) {
+                Log.error("I/O error whilst sending shared class files");
+                e.printStackTrace();
             }
-
-            NetworkUtilities.closeSocketDataInputStream(inStream, connection);
-            NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
-
-            Log.logEnd();
         }
     }
 
     /**
-     * Adds a license to client licenses
-     * @param licenseString
-     * @param l
+     * Consumes licenses that a Linker has verified offline and already used. Linkers report these
+     * in batches, after the fact, so a license that was already consumed here has been spent
+     * twice; all we can do is refuse the report and log it.
+     * The request is the number of licenses, then each (unencrypted) license and the developer it
+     * was used for. The response is 0, then a status code for each license: 0 if it has now been
+     * consumed, -1 if it was already consumed, reserved for someone else, expired or unknown.
+     * @param connection the connected socket
      */
-    private void addLicense(String licenseString, License l) {
-        clientLicenses.put(licenseString, l);
+    private void acceptConsumptions(SSLSocket connection) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+        if (inStream != null && outStream != null) {
+            try {
+                int nLicenses = inStream.readInt();
+                if (nLicenses > MAX_BULK_ENTRIES || nLicenses < 0) {
+                    Log.log("Consumption report of %d licenses exceeds limit of %d\n", nLicenses,
+                            MAX_BULK_ENTRIES);
+                    outStream.writeInt(-1);
+                    return;
+                }
+                String[] licenses = new String[nLicenses];
+                String[] developerIDs = new String[nLicenses];
+                for (int i = 0; i < nLicenses; i++) {
+                    licenses[i] = inStream.readUTF();
+                    developerIDs[i] = inStream.readUTF();
+                }
+                outStream.writeInt(0);
+                for (int i = 0; i < nLicenses; i++) {
+                    consumptionsReported.incrementAndGet();
+                    LicenseToken token = toToken(licenses[i]);
+                    // a license issued here before the cluster changed may now hash to another
+                    // SWH, but it is still ours to consume, so only the table decides
+                    Slot reservation = token == null ? null
+                            : licenseTable.reserve(token, developerIDs[i]);
+                    if (reservation != null) {
+                        decrementLicense(token, reservation);
+                        outStream.writeInt(0);
+                    } else if (token != null && shardRing != null
+                            && shardRing.ownerOf(token) != shardIndex) {
+                        consumptionsRejected.incrementAndGet();
+                        Log.log("License %s was used offline for %s, but belongs to %s, not us\n",
+                                licenses[i], developerIDs[i], shardRing.ownerAddress(token));
+                        outStream.writeInt(-1);
+                    } else {
+                        consumptionsRejected.incrementAndGet();
+                        Log.log("License %s was used offline for %s, but was already consumed, "
+                                + "is reserved for someone else, has expired or is not ours\n",
+                                licenses[i], developerIDs[i]);
+                        outStream.writeInt(-1);
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("I/O error whilst reading consumption report");
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
-     * 
-     * @param license
-     * @return the licnese or null
+     * Tells the remote host of connection whether licenses are outstanding (issued, or reserved
+     * and not yet consumed), without reserving or consuming them. Nothing changes, so replicas
+     * answer CHK for their primary.
+     * The request is the number of licenses, then each (encrypted) license. The response is the
+     * number of licenses, or -1 if there are too many, then a status code for each license (0 if
+     * it is outstanding, -1 if it was consumed, has expired or is not ours) and the library it
+     * unlocks, or "" if it is not outstanding.
+     * @param connection the connected socket
      */
-    private License getLicense(String license) {
-        if (clientLicenses.containsKey(license)) {
-            return clientLicenses.get(license);
+    private void checkLicenses(SSLSocket connection) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+        if (inStream != null && outStream != null) {
+            try {
+                int nLicenses = inStream.readInt();
+                if (nLicenses > MAX_BULK_ENTRIES || nLicenses < 0) {
+                    Log.log("Check of %d licenses exceeds limit of %d\n", nLicenses,
+                            MAX_BULK_ENTRIES);
+                    outStream.writeInt(-1);
+                    return;
+                }
+                String[] encrypted = new String[nLicenses];
+                for (int i = 0; i < nLicenses; i++) {
+                    encrypted[i] = inStream.readUTF();
+                }
+                outStream.writeInt(nLicenses);
+                LicenseTable table = licenseTable;
+                for (int i = 0; i < nLicenses; i++) {
+                    // only looking, so not counted as a turned away or reused license
+                    LicenseToken license = table.isPossiblyOutstanding(encrypted[i])
+                            ? unwrapLicense(encrypted[i]) : null;
+                    License known = license == null ? null : table.getLicense(license);
+                    outStream.writeInt(known == null ? -1 : 0);
+                    outStream.writeUTF(known == null ? "" : known.getLibraryName());
+                }
+            } catch (IOException e) {
+                Log.error("I/O error whilst checking licenses");
+                e.printStackTrace();
+            }
         }
-        return null;
     }
 
     /**
      * Verifies that the license provided by acceptLicenses is okay.
+     * A verified license is reserved for the developer until the Linker ACKs its class file; if
+     * the transfer fails, a VER for the same developer before the reservation expires is resent
+     * the class file already compiled for it, unless it has been evicted meanwhile.
+     * The answer is a status code (0 accepted, -1 rejected, -2 our services are down, -4 too many
+     * compilations in progress, -6 the deadline passed, or -9 if we serve shared classes, which
+     * only BVER can carry), followed by the class file if the license was accepted.
      * @param connection
+     * @param deadline when the Linker needs an answer by
      */
-    private void acceptLicenses(SSLSocket connection) {
+    private void acceptLicenses(SSLSocket connection, Deadline deadline) {
         DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
         DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
         
         if (inStream != null) {
             Log.log("Checking if license is legitimate");
-            String license = null, developerID = null;
+            LicenseToken license = null;
+            String developerID = null;
             try {
-                license = inStream.readUTF();
+                String encrypted = inStream.readUTF();
                 developerID = inStream.readUTF();
-                Log.log("Read in license %s\n", license);
-                license = unwrapLicense(license);
+                Log.log("Read in license %s\n", encrypted);
+                // only licenses that may still be outstanding are worth decrypting
+                license = !sharedClasses && licenseTable.mightBeOutstanding(encrypted)
+                        ? unwrapLicense(encrypted) : null;
             } catch (IOException e) {
                 Log.error("I/O error whilst reading licenses");
                 e.printStackTrace();
             }
 
-            if (license != null && verifyLicense(license) && developerID != null) {
-                License temp = clientLicenses.get(license);
-                String libraryName = temp.getLibraryName();
+            if (sharedClasses) {
+                // a single VER can only carry the class file itself, not the license resource that
+                // shared classes need, so those are only served by BVER; -2 would have the Linker
+                // count us as down
+                Log.log("Informing linker that we only verify with BVER");
+                try {
+                    outStream.writeInt(-9);
+                } catch (IOException e) {
+                    Log.error("encountered I/O error whilst sending rejection to Linker");
+                    e.printStackTrace();
+                }
+                NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+                NetworkUtilities.closeSocketDataInputStream(inStream, connection);
+                Log.logEnd();
+                return;
+            }
+
+            // checking the license and reserving it is a single step, so two Linkers cannot both
+            // be sent the library for the same license
+            Slot reservation = null;
+            if (license != null && developerID != null) {
+                reservation = licenseTable.reserve(license, developerID);
+            }
+
+            if (reservation != null) {
+                String libraryName = reservation.getLicense().getLibraryName();
                 Log.log("License corresponds to library %s\n", libraryName);
 
-                Log.log("Compiling class file");
+                Map<String, byte[]> classes = licenseTable.getKeptLibrary(license, reservation);
+                if (classes != null) {
+                    Log.log("Resuming reservation with the class file already compiled for it");
+                } else {
+                    Log.log("Compiling class file");
+                    classes = compileLibraries(
+                            Collections.singletonMap(libraryName, libraries.get(libraryName)),
+                            Collections.singletonMap(libraryName, license), deadline);
+                }
+                String classPath = NetworkUtilities.classPath(libraryName);
+                if (classes == null || classes == OVERLOADED || !classes.containsKey(classPath)) {
+                    // nothing was sent, so there is nothing to resume
+                    licenseTable.release(license, reservation);
+                } else {
+                    licenseTable.keepLibrary(license, reservation,
+                            entriesFor(libraryName, classes));
+                }
+                if (classes == OVERLOADED || (classes == null && deadline.isExpired())) {
+                    Log.log(classes == OVERLOADED ? "Informing linker that we are overloaded"
+                            : "Informing linker that its deadline has passed");
+
+                    try {
+                        outStream.writeInt(classes == OVERLOADED ? -4 : -6);
+                    } catch (IOException e) {
+                        Log.error("encountered I/O error whilst sending rejection to Linker");
+                        e.printStackTrace();
+                    }
 
-                
-                if (!CompileUtility
-                        .compileSWHFile(libraries.get(libraryName), libraryName, license)) {
+                    NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+                } else if (classes == null || !classes.containsKey(classPath)) {
                     Log.error("Could not compile " + libraryName);
 
                     Log.log("Informing linker that our services are down");
@@ -309,42 +1829,34 @@ public class SWH {
                     }
                     
                     NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
-                }
-
-                // libraryName is a fully qualified classname, e.g. goo.buzz.Buzz
-                // therefore, classFilePath is the unqualified className (Buzz) and the ".class"
-                // extension.
-                String classFilePath = libraryName.substring(libraryName.lastIndexOf('.') + 1)
-                + ".class";
-                File toWrite = new File(classFilePath);
-                try {
-                    outStream.writeInt(0);
-                } catch(IOException e) {
-                    Log.error("Error: encountered I/O error during confirmation of license verification");
-                    e.printStackTrace();
-                }
-                
-                if (toWrite.exists() && NetworkUtilities.writeFile(connection, toWrite, libraryName)) {
+                } else {
                     try {
-                        if (inStream.readInt() == 0) {
-                            Log.log("File sent successfully, removing license");
-                            decrementLicense(license);
-                        } else {
-                            Log.log("Something went wrong on the linker's end");
-                            // N.B.: it would be nice to have some kind of resend protocol here
-                            // however, we were constrained on time and decided  to focus on other
-                            // aspects of the project
-                        }
-                    } catch (IOException e) {
-                        Log.error("Error: encountered I/O error during file transfer");
+                        outStream.writeInt(0);
+                    } catch(IOException e) {
+                        Log.error("Error: encountered I/O error during confirmation of license "
+                                + "verification");
                         e.printStackTrace();
                     }
-                    
-                    Log.log("Deleting generated class file");
-                    toWrite.delete();
+
+                    if (NetworkUtilities.writeEntry(connection, classes.get(classPath),
+                            classPath)) {
+                        try {
+                            if (inStream.readInt() == 0) {
+                                Log.log("File sent successfully, removing license");
+                                decrementLicense(license, reservation);
+                            } else {
+                                // the license stays reserved, so the Linker can VER it again for
+                                // the same developer and be resent the same class file
+                                Log.log("Something went wrong on the linker's end");
+                            }
+                        } catch (IOException e) {
+                            Log.error("Error: encountered I/O error during file transfer");
+                            e.printStackTrace();
+                        }
+                    }
                 }
             } else {
-                Log.log("Could not verify license, sending rejection to Linker");
+                Log.log("Could not verify or reserve license, sending rejection to Linker");
                
                 try {
                     outStream.writeInt(-1);
@@ -361,12 +1873,443 @@ public class SWH {
         Log.logEnd();
     }
 
+    /**
+     * Turns a whole BVER batch away, answering every license in it with the same status, since the
+     * Linker reads exactly one status per license it sent. The licenses are read (and ignored)
+     * first, so that a Linker still writing a large batch is not left blocked whilst we write, and
+     * so that we never write more than the Linker has sent us.
+     * @param inStream the stream the batch's licenses are still to be read from
+     * @param outStream the stream to answer on
+     * @param nLicenses the number of licenses in the batch
+     * @param status the status to answer each license with
+     * @throws IOException if the batch could not be read or answered
+     */
+    private static void rejectBatch(DataInputStream inStream, DataOutputStream outStream,
+            int nLicenses, int status) throws IOException {
+        for (int i = 0; i < nLicenses; i++) {
+            inStream.readUTF();
+        }
+        for (int i = 0; i < nLicenses; i++) {
+            outStream.writeInt(status);
+        }
+    }
+
+    /**
+     * Verifies a batch of licenses from a Linker and sends back every library they unlock,
+     * compiling all of those libraries in a single compiler invocation.
+     * The request (after the command and its deadline) is the developer ID, the number of
+     * licenses and then each (encrypted) license.
+     * The response is a status code per license, in request order (0 accepted, -1 rejected, -2
+     * our services are down, -4 too many compilations in progress to take the batch on, -6 the
+     * deadline passed; or, if the batch is refused before it is read, -3 busy, -5 throttled or
+     * -6 the deadline passed whilst the batch was queued; or -1 for every license of a batch of
+     * more than MAX_BULK_ENTRIES), followed by a bundle of
+     * JAR entries for each accepted license: the library's class files, plus its sealed license
+     * when serving shared classes. The Linker then ACKs each accepted license in turn, and only
+     * ACKed licenses are consumed.
+     * Each accepted license is reserved for the developer until it is ACKed, so a batch whose
+     * transfer failed can be sent again for the same developer and is resent the libraries
+     * already compiled for it (compiling only those evicted meanwhile), whilst a license reserved
+     * for another developer is rejected.
+     * A license for a library that already appears earlier in the batch is rejected (but not
+     * consumed), since a JAR can only hold one copy of each library.
+     * @param connection the connected socket
+     * @param deadline when the Linker needs an answer by
+     */
+    private void acceptBulkLicenses(SSLSocket connection, Deadline deadline) {
+        DataInputStream inStream = NetworkUtilities.getDataInputStream(connection);
+        DataOutputStream outStream = NetworkUtilities.getDataOutputStream(connection);
+
+        if (inStream != null && outStream != null) {
+            Log.log("Checking if batch of licenses is legitimate");
+            String developerID = null;
+            List<String> encrypted = new ArrayList<String>();
+            try {
+                developerID = inStream.readUTF();
+                int nLicenses = inStream.readInt();
+                if (nLicenses > MAX_BULK_ENTRIES) {
+                    Log.log("Batch of %d licenses exceeds limit of %d\n", nLicenses,
+                            MAX_BULK_ENTRIES);
+                    rejectBatch(inStream, outStream, nLicenses, -1);
+                    developerID = null;
+                    nLicenses = 0;
+                }
+                for (int i = 0; i < nLicenses; i++) {
+                    encrypted.add(inStream.readUTF());
+                }
+            } catch (IOException e) {
+                Log.error("I/O error whilst reading batch of licenses");
+                e.printStackTrace();
+                developerID = null;
+            }
+
+            if (developerID != null) {
+                int[] statuses = new int[encrypted.size()];
+                LicenseToken[] licenses = new LicenseToken[encrypted.size()];
+                String[] libraryNames = new String[encrypted.size()];
+                Slot[] reserved = new Slot[encrypted.size()];
+                List<Map<String, byte[]>> bundles = new ArrayList<Map<String, byte[]>>();
+                Set<String> batchLibraries = new HashSet<String>();
+                Map<String, File> files = new HashMap<String, File>();
+                Map<String, LicenseToken> fileLicenses = new HashMap<String, LicenseToken>();
+
+                for (int i = 0; i < encrypted.size(); i++) {
+                    bundles.add(null);
+                    Log.log("Read in license %s\n", encrypted.get(i));
+                    LicenseToken license = licenseTable.mightBeOutstanding(encrypted.get(i))
+                            ? unwrapLicense(encrypted.get(i)) : null;
+                    License known = license == null ? null : licenseTable.getLicense(license);
+                    if (known != null) {
+                        String libraryName = known.getLibraryName();
+                        if (batchLibraries.contains(libraryName)) {
+                            Log.log("Library %s is already in this batch\n", libraryName);
+                            statuses[i] = -1;
+                        } else if ((reserved[i] = licenseTable.reserve(license, developerID))
+                                == null) {
+                            Log.log("License for %s was consumed or is reserved for someone "
+                                    + "else\n", libraryName);
+                            statuses[i] = -1;
+                        } else {
+                            Log.log("License corresponds to library %s\n", libraryName);
+                            licenses[i] = license;
+                            libraryNames[i] = libraryName;
+                            batchLibraries.add(libraryName);
+                            Map<String, byte[]> kept = licenseTable.getKeptLibrary(license,
+                                    reserved[i]);
+                            if (kept != null) {
+                                Log.log("Resuming reservation with %s already compiled\n",
+                                        libraryName);
+                                bundles.set(i, kept);
+                            } else {
+                                files.put(libraryName, libraries.get(libraryName));
+                                fileLicenses.put(libraryName, license);
+                            }
+                            statuses[i] = 0;
+                        }
+                    } else {
+                        Log.log("Could not verify license");
+                        statuses[i] = -1;
+                    }
+                }
+
+                if (!files.isEmpty()) {
+                    Log.log("Compiling %d class files\n", files.size());
+                    Map<String, byte[]> entries = compileLibraries(files, fileLicenses, deadline);
+                    int status = 0;
+                    if (entries == OVERLOADED || (entries == null && deadline.isExpired())) {
+                        status = entries == OVERLOADED ? -4 : -6;
+                        Log.log(status == -4 ? "Informing linker that we are overloaded"
+                                : "Informing linker that its deadline has passed");
+                    } else if (entries == null) {
+                        Log.error("Could not compile batch of libraries");
+                        Log.log("Informing linker that our services are down");
+                        status = -2;
+                    }
+                    for (int i = 0; i < statuses.length; i++) {
+                        if (statuses[i] == 0 && bundles.get(i) == null) {
+                            if (status == 0) {
+                                bundles.set(i, entriesFor(libraryNames[i], entries));
+                                licenseTable.keepLibrary(licenses[i], reserved[i],
+                                        bundles.get(i));
+                            } else {
+                                // nothing was sent, so there is nothing to resume
+                                statuses[i] = status;
+                                licenseTable.release(licenses[i], reserved[i]);
+                            }
+                        }
+                    }
+                }
+
+                try {
+                    for (int status : statuses) {
+                        outStream.writeInt(status);
+                    }
+                    boolean sent = true;
+                    boolean any = false;
+                    for (int i = 0; i < statuses.length && sent; i++) {
+                        if (statuses[i] == 0) {
+                            sent = NetworkUtilities.writeBundle(connection, bundles.get(i));
+                            any = true;
+                        }
+                    }
+
+                    if (sent && any) {
+                        // a license the Linker has not ACKed by its deadline is not consumed
+                        deadline.applyTo(connection);
+                    }
+                    for (int i = 0; i < statuses.length && sent; i++) {
+                        if (statuses[i] == 0) {
+                            if (inStream.readInt() == 0) {
+                                Log.log("Library %s sent successfully, removing license\n",
+                                        libraryNames[i]);
+                                decrementLicense(licenses[i], reserved[i]);
+                            } else {
+                                Log.log("Something went wrong on the linker's end with %s\n",
+                                        libraryNames[i]);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    // unACKed licenses stay reserved, so the Linker can BVER them again for the
+                    // same developer and be resent the same libraries
+                    Log.error("Error: encountered I/O error during batch transfer");
+                    e.printStackTrace();
+                }
+            }
+
+            NetworkUtilities.closeSocketDataInputStream(inStream, connection);
+            NetworkUtilities.closeSocketDataOutputStream(outStream, connection);
+        }
+
+        Log.logEnd();
+    }
+
+    /**
+     * Compiles libraries, each protected by its own license, using any classes that were already
+     * compiled speculatively and compiling the rest in a single compiler invocation.
+     * When serving shared classes, the libraries' shared class files are used instead, together
+     * with a sealed license resource for each library.
+     * @param files a map from fully qualified classname to the library's source file
+     * @param licenses a map from fully qualified classname to the license protecting it
+     * @param deadline when to give up compiling
+     * @return a map from path within a JAR to the contents of that JAR entry, null if
+     * compilation failed or did not finish in time, or OVERLOADED if the compile limiter turned
+     * the compilation away
+     */
+    private Map<String, byte[]> compileLibraries(Map<String, File> files,
+            Map<String, LicenseToken> licenses, Deadline deadline) {
+        if (sharedClasses) {
+            return sharedLibraries(files, licenses, deadline);
+        }
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        Map<String, File> toCompile = new HashMap<String, File>(files);
+        if (precompiled != null) {
+            for (String libraryName : files.keySet()) {
+                Map<String, byte[]> ready = precompiled.get(licenses.get(libraryName));
+                if (ready != null) {
+                    Log.log("Using precompiled classes for %s\n", libraryName);
+                    classes.putAll(ready);
+                    toCompile.remove(libraryName);
+                }
+            }
+        }
+        if (!toCompile.isEmpty()) {
+            // the compiler bakes licenses into source, so only here are they needed as text
+            Map<String, String> licenseStrings = new HashMap<String, String>();
+            for (String libraryName : toCompile.keySet()) {
+                licenseStrings.put(libraryName, licenses.get(libraryName).toString());
+            }
+            Map<String, byte[]> compiled = limitedCompile(toCompile, licenseStrings, deadline);
+            if (compiled == null || compiled == OVERLOADED) {
+                return compiled;
+            }
+            classes.putAll(compiled);
+        }
+        return toEntries(classes);
+    }
+
+    /**
+     * Looks up (compiling if necessary) the shared class files of libraries, and seals a license
+     * resource for each of them.
+     * @param files a map from fully qualified classname to the library's source file
+     * @param licenses a map from fully qualified classname to the license being used
+     * @param deadline when to give up compiling
+     * @return a map from path within a JAR to the contents of that JAR entry, null if
+     * compilation or sealing failed or did not finish in time, or OVERLOADED if the compile
+     * limiter turned the compilation away
+     */
+    private Map<String, byte[]> sharedLibraries(Map<String, File> files,
+            Map<String, LicenseToken> licenses, Deadline deadline) {
+        Map<String, byte[]> entries = sharedClassEntries(files, deadline);
+        if (entries == null || entries == OVERLOADED) {
+            return entries;
+        }
+        for (String libraryName : files.keySet()) {
+            byte[] sealed = sealLicense(libraryName, licenses.get(libraryName));
+            if (sealed == null) {
+                return null;
+            }
+            entries.put(CompileUtility.licenseResourcePath(libraryName), sealed);
+        }
+        return entries;
+    }
+
+    /**
+     * Looks up (compiling if necessary) the shared class files of libraries.
+     * @param files a map from fully qualified classname to the library's source file
+     * @param deadline when to give up compiling
+     * @return a map from path within a JAR to the contents of that JAR entry, null if
+     * compilation failed or did not finish in time, or OVERLOADED if the compile limiter turned
+     * the compilation away
+     */
+    private Map<String, byte[]> sharedClassEntries(Map<String, File> files, Deadline deadline) {
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        Map<String, File> toCompile = new HashMap<String, File>();
+        Map<String, String> versions = new HashMap<String, String>();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            // the version is taken before compiling, so that an edit meanwhile compiles again
+            String version = sharedClassKey(file.getKey(), file.getValue());
+            versions.put(file.getKey(), version);
+            Map.Entry<String, Map<String, byte[]>> cached = sharedClassCache.get(file.getKey());
+            if (cached != null && cached.getKey().equals(version)) {
+                sharedClassHits.incrementAndGet();
+                entries.putAll(cached.getValue());
+            } else {
+                sharedClassMisses.incrementAndGet();
+                toCompile.put(file.getKey(), file.getValue());
+            }
+        }
+        if (!toCompile.isEmpty()) {
+            Map<String, byte[]> compiled = limitedCompile(toCompile, null, deadline);
+            if (compiled == null || compiled == OVERLOADED) {
+                return compiled;
+            }
+            Map<String, byte[]> compiledEntries = toEntries(compiled);
+            for (String libraryName : toCompile.keySet()) {
+                // replaces any older version of the library
+                sharedClassCache.put(libraryName, new SimpleImmutableEntry<String,
+                        Map<String, byte[]>>(versions.get(libraryName),
+                        entriesFor(libraryName, compiledEntries)));
+            }
+            entries.putAll(compiledEntries);
+        }
+        return entries;
+    }
+
+    /**
+     * Compiles libraries once the compile limiter allows it, and tells the limiter how long the
+     * compilation took per library, if it succeeded and was not shared with another caller.
+     * @param files a map from fully qualified classname to the library's source file
+     * @param licenses a map from fully qualified classname to the license protecting it, or null to
+     * compile shared classes
+     * @param deadline when to give up waiting for the limiter, and compiling
+     * @return a map from binary classname to class file bytes, null if compilation failed or did
+     * not finish in time, or OVERLOADED if the limiter turned the compilation away
+     */
+    private Map<String, byte[]> limitedCompile(Map<String, File> files,
+            Map<String, String> licenses, Deadline deadline) {
+        if (deadline.isExpired()) {
+            return null;
+        }
+        if (!compileLimiter.acquire(deadline.remainingMillis())) {
+            if (deadline.isExpired()) {
+                return null;
+            }
+            Log.log("Too many compilations in progress, turning %d libraries away\n",
+                    files.size());
+            return OVERLOADED;
+        }
+        long start = System.nanoTime();
+        Map<String, byte[]> classes = null;
+        try {
+            classes = licenses == null
+                    ? CompileUtility.compileSharedSWHClasses(files, myKey.getPublic(), deadline)
+                    : CompileUtility.compileSWHClasses(files, licenses, deadline);
+            return classes;
+        } finally {
+            // failures and compilations joined part way would drag the no-load latency down
+            if (classes != null && CompileUtility.lastCompileWasOwn()) {
+                compileLimiter.release((System.nanoTime() - start) / files.size());
+            } else {
+                compileLimiter.release();
+            }
+        }
+    }
+
+    /**
+     * @param libraryName the fully qualified classname of a library
+     * @param srcFile the library's source file
+     * @return the key identifying this version of the library's shared class files; editing the
+     * source file produces a new key, which replaces the old one in sharedClassCache
+     */
+    private static String sharedClassKey(String libraryName, File srcFile) {
+        return libraryName + "@" + srcFile.lastModified() + ":" + srcFile.length();
+    }
+
+    /**
+     * Produces the license resource for a library compiled as shared classes. The first line is
+     * the license itself, which the library reads when it is loaded; the second line is our
+     * signature over the library name and license, which the library checks against our public
+     * key as it loads, refusing to load if the resource was forged or moved from another library.
+     * The seal made when the license was issued is used if we still have it; only licenses
+     * replayed from the journal or a snapshot, which do not keep their seals, are signed again.
+     * @param libraryName the fully qualified classname of the library
+     * @param license the license
+     * @return the contents of the resource, or null if it could not be signed
+     */
+    private byte[] sealLicense(String libraryName, LicenseToken license) {
+        License issued = licenseTable.getLicense(license);
+        String hex = license.toString();
+        String seal = issued != null && issued.getLibraryName().equals(libraryName)
+                && !issued.getSeal().isEmpty() ? issued.getSeal() : signLicense(libraryName, hex);
+        return seal == null ? null : CompileUtility.licenseResource(hex, seal);
+    }
+
+    /**
+     * Signs a license together with the library it is for, so that anyone with our public key can
+     * check that we issued it, without asking us.
+     * @param libraryName the fully qualified classname of the library
+     * @param license the license
+     * @return our signature, in hex, or null if the license could not be signed
+     */
+    private String signLicense(String libraryName, String license) {
+        try {
+            Signature signer = Signature.getInstance(CompileUtility.LICENSE_SEAL_ALGO);
+            signer.initSign(myKey.getPrivate());
+            signer.update(CompileUtility.licenseSealInput(libraryName, license));
+            return NetworkUtilities.bytesToHex(signer.sign());
+        } catch (NoSuchAlgorithmException e) {
+            Log.error("Could not find Signature instance for "
+                    + CompileUtility.LICENSE_SEAL_ALGO);
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            Log.error("Provided private key was invalid");
+            e.printStackTrace();
+        } catch (SignatureException e) {
+            Log.error("Could not sign license");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @param classes a map from binary classname to class file bytes
+     * @return the same class files, keyed by their path within a JAR
+     */
+    private static Map<String, byte[]> toEntries(Map<String, byte[]> classes) {
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            entries.put(NetworkUtilities.classPath(entry.getKey()), entry.getValue());
+        }
+        return entries;
+    }
+
+    /**
+     * @param libraryName a fully qualified classname, e.g. fb.fizz.Fizz
+     * @param entries a map from path within a JAR to the contents of that JAR entry
+     * @return the entries belonging to libraryName: the class itself, any nested classes and its
+     * license resource
+     */
+    private static Map<String, byte[]> entriesFor(String libraryName, Map<String, byte[]> entries) {
+        String classPath = NetworkUtilities.classPath(libraryName);
+        String nestedPrefix = libraryName.replace('.', '/') + "$";
+        String licensePath = CompileUtility.licenseResourcePath(libraryName);
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            if (entry.getKey().equals(classPath) || entry.getKey().startsWith(nestedPrefix)
+                    || entry.getKey().equals(licensePath)) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
     /**
      * 
      * @param license
      * @return the unwrapped (decrypted) license or null
      */
-    private String unwrapLicense(String license) {
+    private LicenseToken unwrapLicense(String license) {
         // Decrypt license string using our own private key
         PrivateKey privKey = myKey.getPrivate();
         try {
@@ -374,9 +2317,11 @@ public class SWH {
             cipher.init(Cipher.DECRYPT_MODE, privKey);
             byte[] licenseBytes = NetworkUtilities.hexStringToByteArray(license);
             byte[] decrypted = cipher.doFinal(licenseBytes);
-
-            String decryptedLicense = NetworkUtilities.bytesToHex(decrypted);
-            return decryptedLicense;
+            if (decrypted.length != LicenseToken.BYTES) {
+                Log.log("Decrypted license is %d bytes long, not a license\n", decrypted.length);
+                return null;
+            }
+            return LicenseToken.fromBytes(decrypted);
         } catch (NoSuchAlgorithmException e) {
             Log.error("Could not find Cipher instance for RSA");
             e.printStackTrace();
@@ -397,20 +2342,40 @@ public class SWH {
     }
 
     /**
-     * @param license
-     * @return true if the license can be found in clientLicenses, and false otherwise
+     * Consumes a reserved license, now that the Linker has ACKed the library it unlocks.
+     * @param license the (unwrapped) license
+     * @param reservation the license's reservation
      */
-    private boolean verifyLicense(String license) {
-        License temp = getLicense(license);
-        if (temp != null) {
-            clientLicenses.remove(temp);
-            return true;
+    private void decrementLicense(LicenseToken license, Slot reservation) {
+        if (!licenseTable.commit(license, reservation)) {
+            // the library has been sent, but the license is no longer ours to consume
+            Log.log("Reservation of license %s expired before the linker ACKed it\n", license);
+        } else {
+            if (journal != null) {
+                try {
+                    journal.consumed(license);
+                } catch (IOException e) {
+                    Log.error("Could not record consumption of license %s\n", license);
+                    e.printStackTrace();
+                }
+            }
+            replicationLog.consumed(license);
+        }
+        if (precompiled != null) {
+            precompiled.remove(license);
         }
-        return false;
     }
 
-    private void decrementLicense(String license) {
-        clientLicenses.remove(license);
+    /**
+     * @param license a license in hex, as a Linker sent it
+     * @return the license, or null if it is not one
+     */
+    private static LicenseToken toToken(String license) {
+        try {
+            return LicenseToken.fromHex(license);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     /**
@@ -418,7 +2383,7 @@ public class SWH {
      * @param pubKey
      * @return the wrapped (encrypted) license using the public key or null
      */
-    private String wrapLicense(String license, PublicKey pubKey) {
+    private String wrapLicense(LicenseToken license, PublicKey pubKey) {
         if (pubKey == null) {
             System.out.println("Null PublicKey received");
             return null;
@@ -428,7 +2393,7 @@ public class SWH {
         try {
             Cipher cipher = Cipher.getInstance("RSA");
             cipher.init(Cipher.ENCRYPT_MODE, pubKey);
-            byte[] encrypted = cipher.doFinal(NetworkUtilities.hexStringToByteArray(license));
+            byte[] encrypted = cipher.doFinal(license.toBytes());
             String encryptedLicense = NetworkUtilities.bytesToHex(encrypted);
             return encryptedLicense;
         } catch (NoSuchAlgorithmException e) {
@@ -451,12 +2416,37 @@ public class SWH {
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 4) {
-            System.err.println("Usage: needs 4 arguments.");
+        if (args.length < 4) {
+            System.err.println("Usage: needs 4 arguments, then any optional settings.");
             System.err.println("\tArgument 1 = port number");
             System.err.println("\tArgument 2 = keystore filepath");
             System.err.println("\tArgument 3 = keystore password");
             System.err.println("\tArgument 4 = classpath");
+            System.err.println("\tOptional settings, each as name=value:");
+            System.err.println("\t\tprecompile=<number of libraries to keep precompiled>");
+            System.err.println("\t\treqlane=<threads>/<queue limit> for REQ, BREQ, STAT etc.");
+            System.err.println("\t\tverlane=<threads>/<queue limit> for VER, BVER, LIB, CHK");
+            System.err.println("\t\tcompileworkers=<number of compile worker processes>");
+            System.err.println("\t\tworkerheap=<compile worker heap in MB>");
+            System.err.println("\t\tworkerrecycle=<compilations before a worker is replaced>");
+            System.err.println("\t\treqrate=<per second>/<burst> of REQ and BREQ per client");
+            System.err.println("\t\tverrate=<per second>/<burst> of VER, BVER, LIB, CHK, CON");
+            System.err.println("\t\tcompilelimit=<initial>/<max> concurrent compilations");
+            System.err.println("\t\tcompilewait=<ms to wait for a compilation slot>");
+            System.err.println("\t\treplicas=<host:port>,... of SWHs serving the same libraries");
+            System.err.println("\t\treservettl=<ms a verified license stays reserved>");
+            System.err.println("\t\tlicensettl=<ms an issued license may go unused>");
+            System.err.println("\t\tlicensettl.<library>=<ms for that library's licenses>");
+            System.err.println("\t\tquota=<licenses each customer may have outstanding>");
+            System.err.println("\t\tquota.<library>=<the same, for that library>");
+            System.err.println("\t\tmaxorder=<most licenses issued per REQ or BREQ connection>");
+            System.err.println("\t\tjournal=<directory to keep issued licenses and keys in>");
+            System.err.println("\t\tprimary=<host:port> of the SWH whose licenses we replicate");
+            System.err.println("\t\ttruststore=<trust store holding the primary's certificate>");
+            System.err.println("\t\tfailover=<ms the primary may be unreachable, default 10000>");
+            System.err.println("\t\tshards=<host:port>,... of every SWH in our cluster");
+            System.err.println("\t\tshard=<host:port> of this SWH in the cluster");
+            System.err.println("\t\tprotection=<source|resource>");
             System.exit(1);
         }
 
@@ -479,6 +2469,23 @@ public class SWH {
             e.printStackTrace();
         }
         if (swh != null) {
+            for (int i = 4; i < args.length; i++) {
+                String[] setting = args[i].split("=", 2);
+                if (setting.length != 2 || !swh.configure(setting[0], setting[1])) {
+                    System.err.println("Unrecognised setting: " + args[i]);
+                    System.exit(1);
+                }
+            }
+            if (!swh.joinShards()) {
+                System.err.println("shard=<host:port> must be one of shards=<host:port>,...");
+                System.exit(1);
+            }
+            if (!swh.followPrimary(password)) {
+                System.err.println("primary=<host:port> needs truststore=<file>, and cannot be "
+                        + "combined with journal=<directory>");
+                System.exit(1);
+            }
+
             Scanner sc = new Scanner(System.in);
             System.out.println("How many files is this SoftwareHouse responsible for?");
             int nFiles = sc.nextInt();
@@ -493,6 +2500,11 @@ public class SWH {
                 swh.addLibraryFile(libName, f);
             }
             sc.close();
+            if (!swh.checkLibrarySettings()) {
+                System.err.println("licensettl.<library> and quota.<library> must name one of "
+                        + "our libraries");
+                System.exit(1);
+            }
             swh.listenForCommands();
         }
 
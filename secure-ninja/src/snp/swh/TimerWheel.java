@@ -0,0 +1,181 @@
+package snp.swh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hierarchical timer wheel, for timing out large numbers of items cheaply.
+ * Time is divided into ticks. The lowest wheel has a bucket for each of the next 64 ticks; each
+ * wheel above it has buckets 64 times as wide as the one below, so four wheels reach about 16.7
+ * million ticks ahead. An item is put in the bucket of the lowest wheel that reaches its due time,
+ * and whenever a lower wheel comes round, the next bucket of the wheel above is emptied into the
+ * wheels below. Advancing the wheel therefore only ever touches the buckets that are due, and each
+ * item is moved at most once per wheel, however many items there are.
+ * Items may be scheduled from any thread without locking; they are picked up by the single thread
+ * that advances the wheel.
+ * @param <T> the type of item timed out
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class TimerWheel<T> {
+
+    /**
+     * The number of bits of a tick each wheel covers, so each wheel has 2^BITS buckets.
+     */
+    private static final int BITS = 6;
+
+    /**
+     * The number of buckets in each wheel.
+     */
+    private static final int BUCKETS = 1 << BITS;
+
+    /**
+     * Picks out a bucket index from a tick.
+     */
+    private static final long MASK = BUCKETS - 1;
+
+    /**
+     * The number of wheels.
+     */
+    private static final int WHEELS = 4;
+
+    /**
+     * An item and the tick it is due at.
+     * @param <T> the type of item
+     */
+    private static class Timeout<T> {
+
+        /**
+         * The item.
+         */
+        private final T item;
+
+        /**
+         * The tick the item is due at.
+         */
+        private final long dueTick;
+
+        /**
+         * @param item the item
+         * @param dueTick the tick the item is due at
+         */
+        private Timeout(T item, long dueTick) {
+            this.item = item;
+            this.dueTick = dueTick;
+        }
+    }
+
+    /**
+     * The length of a tick, in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * The time of tick 0, on the System.nanoTime clock.
+     */
+    private final long origin;
+
+    /**
+     * The buckets of each wheel.
+     */
+    private final List<List<Timeout<T>>> buckets = new ArrayList<List<Timeout<T>>>();
+
+    /**
+     * Items scheduled since the wheel last advanced.
+     */
+    private final ConcurrentLinkedQueue<Timeout<T>> scheduled =
+            new ConcurrentLinkedQueue<Timeout<T>>();
+
+    /**
+     * The last tick the wheel advanced to; only touched by the advancing thread.
+     */
+    private long currentTick = 0;
+
+    /**
+     * @param tickMillis the length of a tick, in milliseconds; items are timed out up to a tick
+     * late
+     */
+    public TimerWheel(long tickMillis) {
+        tickNanos = tickMillis * 1000000L;
+        origin = System.nanoTime();
+        for (int i = 0; i < WHEELS * BUCKETS; i++) {
+            buckets.add(new ArrayList<Timeout<T>>());
+        }
+    }
+
+    /**
+     * Schedules an item to be timed out.
+     * @param item the item
+     * @param dueNanos when the item is due, on the System.nanoTime clock
+     */
+    public void schedule(T item, long dueNanos) {
+        scheduled.add(new Timeout<T>(item, (dueNanos - origin + tickNanos - 1) / tickNanos));
+    }
+
+    /**
+     * Advances the wheel to the current time. Should only ever be called from one thread.
+     * @param nowNanos the current time, on the System.nanoTime clock
+     * @return the items that have fallen due
+     */
+    public List<T> advance(long nowNanos) {
+        List<T> due = new ArrayList<T>();
+        Timeout<T> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            insert(timeout, due);
+        }
+
+        long target = (nowNanos - origin) / tickNanos;
+        while (currentTick < target) {
+            currentTick++;
+            // when a wheel comes round, the next bucket of the wheel above is spread out below
+            for (int wheel = 1; wheel < WHEELS
+                    && (currentTick & ((1L << (BITS * wheel)) - 1)) == 0; wheel++) {
+                List<Timeout<T>> bucket = bucket(wheel, currentTick >> (BITS * wheel));
+                List<Timeout<T>> cascading = new ArrayList<Timeout<T>>(bucket);
+                bucket.clear();
+                for (Timeout<T> t : cascading) {
+                    insert(t, due);
+                }
+            }
+            List<Timeout<T>> bucket = bucket(0, currentTick);
+            List<Timeout<T>> firing = new ArrayList<Timeout<T>>(bucket);
+            bucket.clear();
+            for (Timeout<T> t : firing) {
+                insert(t, due);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Puts a timeout in the bucket that will next be looked at before it is due, or adds its item
+     * to due if it is already due.
+     * @param timeout the timeout
+     * @param due where items that are already due are added
+     */
+    private void insert(Timeout<T> timeout, List<T> due) {
+        long delta = timeout.dueTick - currentTick;
+        if (delta <= 0) {
+            due.add(timeout.item);
+            return;
+        }
+        int wheel = 0;
+        while (wheel < WHEELS - 1 && delta >= 1L << (BITS * (wheel + 1))) {
+            wheel++;
+        }
+        // beyond the top wheel, the timeout waits in the furthest bucket and is placed again
+        // when that bucket is reached
+        long tick = Math.min(timeout.dueTick, currentTick + (1L << (BITS * WHEELS)) - 1);
+        bucket(wheel, tick >> (BITS * wheel)).add(timeout);
+    }
+
+    /**
+     * @param wheel the wheel
+     * @param slot the tick, shifted down to the width of the wheel's buckets
+     * @return the bucket
+     */
+    private List<Timeout<T>> bucket(int wheel, long slot) {
+        return buckets.get(wheel * BUCKETS + (int) (slot & MASK));
+    }
+}
@@ -0,0 +1,125 @@
+package snp.swh;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket per client, so that no one client can use more than its share of a command.
+ * Each bucket holds up to burst tokens and refills at rate tokens per second; a request that
+ * finds its client's bucket empty is throttled.
+ * A bucket is kept as the single time at which it will next be full (the generic cell rate
+ * algorithm), so taking a token is one compare-and-set and needs no locks.
+ * @author Edwin Tay(20529864) & Wan Ying Goh(20784663)
+ * @version Oct 2013
+ */
+public class TokenBuckets {
+
+    /**
+     * Once this many clients have buckets, full buckets are forgotten (a full bucket is the same as
+     * no bucket at all).
+     */
+    private static final int PRUNE_ABOVE = 4096;
+
+    /**
+     * The shortest time between two prunes, in nanoseconds, so that a stream of new clients does
+     * not have every one of them scan all the buckets.
+     */
+    private static final long MIN_PRUNE_INTERVAL_NANOS = 1000000000L;
+
+    /**
+     * The time it takes one token to refill, in nanoseconds.
+     */
+    private final long nanosPerToken;
+
+    /**
+     * The time it takes an empty bucket to refill completely, in nanoseconds.
+     */
+    private final long burstNanos;
+
+    /**
+     * The earliest time (on the System.nanoTime clock) at which the buckets may be pruned again.
+     * Every bucket seen by one prune is full by then, since none is ever more than burstNanos from
+     * full.
+     */
+    private final AtomicLong nextPrune = new AtomicLong(System.nanoTime());
+
+    /**
+     * For each client, the time (on the System.nanoTime clock) at which its bucket will be full.
+     */
+    private final ConcurrentMap<String, AtomicLong> fullAt =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Number of requests allowed and throttled.
+     */
+    private final AtomicLong allowed = new AtomicLong(), throttled = new AtomicLong();
+
+    /**
+     * @param rate the number of tokens each bucket gains per second
+     * @param burst the number of tokens each bucket can hold
+     */
+    public TokenBuckets(int rate, int burst) {
+        nanosPerToken = 1000000000L / rate;
+        burstNanos = nanosPerToken * burst;
+    }
+
+    /**
+     * Takes a token from a client's bucket.
+     * @param client identifies the client
+     * @return true if the client had a token, false if the client should be throttled
+     */
+    public boolean tryAcquire(String client) {
+        long now = System.nanoTime();
+        AtomicLong bucket = fullAt.get(client);
+        if (bucket == null) {
+            long pruneAt = nextPrune.get();
+            if (fullAt.size() > PRUNE_ABOVE && pruneAt - now <= 0 && nextPrune.compareAndSet(
+                    pruneAt, now + Math.max(burstNanos, MIN_PRUNE_INTERVAL_NANOS))) {
+                prune(now);
+            }
+            AtomicLong fresh = new AtomicLong(now);
+            bucket = fullAt.putIfAbsent(client, fresh);
+            if (bucket == null) {
+                bucket = fresh;
+            }
+        }
+
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + nanosPerToken;
+            if (next - now > burstNanos) {
+                throttled.incrementAndGet();
+                return false;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                allowed.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return a human readable summary of how much has been throttled
+     */
+    public String getStatistics() {
+        return String.format("clients=%d allowed=%d throttled=%d", fullAt.size(), allowed.get(),
+                throttled.get());
+    }
+
+    /**
+     * Forgets the buckets that have refilled completely. Only one thread prunes at a time, and no
+     * more often than every MIN_PRUNE_INTERVAL_NANOS or burstNanos, whichever is longer.
+     * @param now the current time on the System.nanoTime clock
+     */
+    private void prune(long now) {
+        Iterator<Map.Entry<String, AtomicLong>> it = fullAt.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().get() - now <= 0) {
+                it.remove();
+            }
+        }
+    }
+}